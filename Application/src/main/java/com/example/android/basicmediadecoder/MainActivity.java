@@ -18,12 +18,8 @@ package com.example.android.basicmediadecoder;
 
 
 import android.Manifest;
-import android.animation.TimeAnimator;
 import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.media.MediaCodec;
-import android.media.MediaExtractor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.support.v4.app.ActivityCompat;
@@ -38,10 +34,14 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.TextView;
 
-import com.example.android.common.media.AudioMediaCodecWrapper;
-import com.example.android.common.media.MediaCodecWrapper;
+import com.example.android.common.media.ByteBufferPool;
+import com.example.android.common.media.CodecPool;
+import com.example.android.common.media.PlaybackEngine;
+import com.example.android.common.media.PlaylistEngine;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This activity uses a {@link android.view.TextureView} to render the frames of a video decoded using
@@ -49,17 +49,17 @@ import java.io.IOException;
  */
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
     private TextureView mPlaybackView;
-    private TimeAnimator mTimeAnimator = new TimeAnimator();
 
-    // A utility that wraps up the underlying input and output buffer processing operations
-    // into an east to use API.
-    private MediaCodecWrapper mCodecWrapper;
-    private MediaExtractor mExtractor = new MediaExtractor();
+    // Plays the files back to back, decoding their tracks on background threads.
+    private PlaylistEngine mPlaylistEngine;
+    // Plays a single file from the action menu, which can seek and change the speed.
+    private PlaybackEngine mPlaybackEngine;
+    // Keeps the decoders of the last playback warm for the next one.
+    private final CodecPool mCodecPool = new CodecPool();
     TextView mAttribView = null;
-    private AudioMediaCodecWrapper mAudioCodecWrapper;
-    private MediaExtractor mAudioMediaExtractor;
-    private TimeAnimator mAudioTimeAnimator;
 
     /**
      * Called when the activity is first created.
@@ -68,6 +68,11 @@ public class MainActivity extends AppCompatActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.sample_main);
+        if (BuildConfig.DEBUG) {
+            // Report sample buffers the pipeline fails to give back.
+            ByteBufferPool.setDefault(
+                    new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES, true));
+        }
         mPlaybackView = (TextureView) findViewById(R.id.PlaybackView);
         mAttribView = (TextView) findViewById(R.id.AttribView);
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
@@ -75,27 +80,55 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCodecPool.clear();
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
-        if (mTimeAnimator != null && mTimeAnimator.isRunning()) {
-            mTimeAnimator.end();
+        if (mPlaylistEngine != null || mPlaybackEngine != null) {
+            releasePlayback();
+            ByteBufferPool.getDefault().logOutstanding();
         }
+    }
 
-        if (mCodecWrapper != null) {
-            mCodecWrapper.stopAndRelease();
-            mExtractor.release();
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.action_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_play:
+                mAttribView.setVisibility(View.VISIBLE);
+                startFilePlayback();
+                return true;
+            case R.id.menu_seek_forward:
+                if (mPlaybackEngine != null) {
+                    mPlaybackEngine.seekTo(mPlaybackEngine.getPositionUs() + SEEK_STEP_US,
+                            PlaybackEngine.SEEK_MODE_ACCURATE);
+                }
+                return true;
+            case R.id.menu_speed:
+                if (mPlaybackEngine != null) {
+                    float speed = mPlaybackEngine.getPlaybackSpeed();
+                    mPlaybackEngine.setPlaybackSpeed(speed >= MAX_SPEED ? 1 : speed + 0.5f);
+                }
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
         }
     }
 
     public void play(View view) {
         mAttribView.setVisibility(View.VISIBLE);
         startPlayback();
-        try {
-            startAudioPlayback();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
     private static final String[] MP4_FILE_1 = {
@@ -107,188 +140,84 @@ public class MainActivity extends AppCompatActivity {
             , "liuyuedeyu.mp4"//4六月的雨
             , "sanguolian.mp4"//5三国恋
     };
-    private static String mMp4FilePath = Environment.getExternalStorageDirectory().getPath() + "/zmp4mv/" + MP4_FILE_1[4];
+    private static final String MP4_DIR = Environment.getExternalStorageDirectory().getPath() + "/zmp4mv/";
 
-    public void startAudioPlayback() throws IOException {
-        // Construct a URI that points to the video resource that we want to play
-        Uri videoUri = Uri.parse("android.resource://"
-                + getPackageName() + "/"
-                + R.raw.vid_bigbuckbunny);
+    private static final long SEEK_STEP_US = 10000000;
+    private static final float MAX_SPEED = 2;
 
-        mAudioMediaExtractor = new MediaExtractor();
-        // BEGIN_INCLUDE(initialize_extractor)
-//        mAudioMediaExtractor.setDataSource(this, videoUri, null);
-        mAudioMediaExtractor.setDataSource(mMp4FilePath);
-        int nTracks = mAudioMediaExtractor.getTrackCount();
+    public void startPlayback() {
+        releasePlayback();
 
-        // Begin by unselecting all of the tracks in the extractor, so we won't see
-        // any tracks that we haven't explicitly selected.
-        for (int i = 0; i < nTracks; ++i) {
-            mAudioMediaExtractor.unselectTrack(i);
+        List<String> paths = new ArrayList<String>();
+        for (String name : MP4_FILE_1) {
+            paths.add(MP4_DIR + name);
         }
-
-        // Find the first video track in the stream. In a real-world application
-        // it's possible that the stream would contain multiple tracks, but this
-        // sample assumes that we just want to play the first one.
-        for (int i = 0; i < nTracks; ++i) {
-            // Try to create a video codec for this track. This call will return null if the
-            // track is not a video track, or not a recognized video format. Once it returns
-            // a valid MediaCodecWrapper, we can break out of the loop.
-            mAudioCodecWrapper = AudioMediaCodecWrapper.fromAudioFormat(mAudioMediaExtractor.getTrackFormat(i));
-            if (mAudioCodecWrapper != null) {
-                mAudioCodecWrapper.prepareAudioTrack(mAudioMediaExtractor.getTrackFormat(i));
-                mAudioMediaExtractor.selectTrack(i);
-                break;
+        // The engine decodes every track on its own thread and opens the next file while the
+        // current one is finishing, so the only work left for the UI thread is reacting to the
+        // end of playback.
+        mPlaylistEngine = new PlaylistEngine(paths,
+                new Surface(mPlaybackView.getSurfaceTexture()));
+        mPlaylistEngine.setCodecPool(mCodecPool);
+        mPlaylistEngine.setListener(new PlaylistEngine.Listener() {
+            @Override
+            public void onItemStarted(PlaylistEngine sender, int index) {
             }
-        }
-        if (mAudioCodecWrapper == null) {
-            return;
-        }
-        // END_INCLUDE(initialize_extractor)
-
-        // By using a {@link TimeAnimator}, we can sync our media rendering commands with
-        // the system display frame rendering. The animator ticks as the {@link Choreographer}
-        // receives VSYNC events.
-        mAudioTimeAnimator = new TimeAnimator();
-        mAudioTimeAnimator.setTimeListener(new TimeAnimator.TimeListener() {
-            private static final String TAG = "onTimeUpdate";
 
             @Override
-            public void onTimeUpdate(TimeAnimator animation, long totalTime, long deltaTime) {
-                Log.e(TAG, "onTimeUpdate: " + totalTime + " " + deltaTime);
-
-                int sampleFlags = mAudioMediaExtractor.getSampleFlags();
-                boolean isEos = ((sampleFlags & MediaCodec
-                        .BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-
-                // BEGIN_INCLUDE(write_sample)
-                if (!isEos) {
-                    // Try to submit the sample to the codec and if successful advance the
-                    // extractor to the next available sample to read.
-                    boolean result = mAudioCodecWrapper.writeSample(mAudioMediaExtractor, false,
-                            mAudioMediaExtractor.getSampleTime(), sampleFlags);
-
-                    if (result) {
-                        // Advancing the extractor is a blocking operation and it MUST be
-                        // executed outside the main thread in real applications.
-                        mAudioMediaExtractor.advance();
-                    }
-                }
-                // END_INCLUDE(write_sample)
-
-                // Examine the sample at the head of the queue to see if its ready to be
-                // rendered and is not zero sized End-of-Stream record.
-                MediaCodec.BufferInfo out_bufferInfo = new MediaCodec.BufferInfo();
-                mAudioCodecWrapper.peekSample(out_bufferInfo);
-
-                // BEGIN_INCLUDE(render_sample)
-                if (out_bufferInfo.size <= 0 && isEos) {
-                    mAudioTimeAnimator.end();
-                    mAudioCodecWrapper.stopAndRelease();
-                    mAudioMediaExtractor.release();
-                } else if (out_bufferInfo.presentationTimeUs / 1000 < totalTime) {
-                    // Pop the sample off the queue and send it to {@link Surface}
-                    mAudioCodecWrapper.popSample(false);
-                }
-                // END_INCLUDE(render_sample)
+            public void onPlaylistCompleted(PlaylistEngine sender) {
+                sender.dumpMetrics();
+                mAttribView.setVisibility(View.GONE);
             }
-        });
-        // We're all set. Kick off the animator to process buffers and render video frames as
-        // they become available
-        mAudioTimeAnimator.start();
-    }
-
-
-    public void startPlayback() {
-
-        // Construct a URI that points to the video resource that we want to play
-        Uri videoUri = Uri.parse("android.resource://"
-                + getPackageName() + "/"
-                + R.raw.vid_bigbuckbunny);
+        }, null);
 
         try {
+            mPlaylistEngine.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // BEGIN_INCLUDE(initialize_extractor)
-//            mExtractor.setDataSource(this, videoUri, null);
-            mExtractor.setDataSource(mMp4FilePath);
-            int nTracks = mExtractor.getTrackCount();
-
-            // Begin by unselecting all of the tracks in the extractor, so we won't see
-            // any tracks that we haven't explicitly selected.
-            for (int i = 0; i < nTracks; ++i) {
-                mExtractor.unselectTrack(i);
+    /**
+     * Plays the first file on its own, memory mapped, so it can be seeked and sped up from the
+     * action menu.
+     */
+    private void startFilePlayback() {
+        releasePlayback();
+
+        mPlaybackEngine = new PlaybackEngine(MP4_DIR + MP4_FILE_1[0],
+                new Surface(mPlaybackView.getSurfaceTexture()));
+        mPlaybackEngine.setCodecPool(mCodecPool);
+        mPlaybackEngine.setMappedDataSource(true);
+        mPlaybackEngine.setListener(new PlaybackEngine.Listener() {
+            @Override
+            public void onPlaybackCompleted(PlaybackEngine sender) {
+                sender.dumpMetrics();
+                mAttribView.setVisibility(View.GONE);
             }
 
-
-            // Find the first video track in the stream. In a real-world application
-            // it's possible that the stream would contain multiple tracks, but this
-            // sample assumes that we just want to play the first one.
-            for (int i = 0; i < nTracks; ++i) {
-                // Try to create a video codec for this track. This call will return null if the
-                // track is not a video track, or not a recognized video format. Once it returns
-                // a valid MediaCodecWrapper, we can break out of the loop.
-                mCodecWrapper = MediaCodecWrapper.fromVideoFormat(mExtractor.getTrackFormat(i),
-                        new Surface(mPlaybackView.getSurfaceTexture()));
-                if (mCodecWrapper != null) {
-                    mExtractor.selectTrack(i);
-                    break;
-                }
+            @Override
+            public void onPlaybackError(PlaybackEngine sender, Exception e) {
+                Log.e(TAG, "Playback failed", e);
             }
-            // END_INCLUDE(initialize_extractor)
+        }, null);
 
-
-            // By using a {@link TimeAnimator}, we can sync our media rendering commands with
-            // the system display frame rendering. The animator ticks as the {@link Choreographer}
-            // receives VSYNC events.
-            mTimeAnimator.setTimeListener(new TimeAnimator.TimeListener() {
-                @Override
-                public void onTimeUpdate(final TimeAnimator animation,
-                                         final long totalTime,
-                                         final long deltaTime) {
-
-                    int sampleFlags = mExtractor.getSampleFlags();
-                    boolean isEos = ((sampleFlags & MediaCodec
-                            .BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-
-                    // BEGIN_INCLUDE(write_sample)
-                    if (!isEos) {
-                        // Try to submit the sample to the codec and if successful advance the
-                        // extractor to the next available sample to read.
-                        boolean result = mCodecWrapper.writeSample(mExtractor, false,
-                                mExtractor.getSampleTime(), sampleFlags);
-
-                        if (result) {
-                            // Advancing the extractor is a blocking operation and it MUST be
-                            // executed outside the main thread in real applications.
-                            mExtractor.advance();
-                        }
-                    }
-                    // END_INCLUDE(write_sample)
-
-                    // Examine the sample at the head of the queue to see if its ready to be
-                    // rendered and is not zero sized End-of-Stream record.
-                    MediaCodec.BufferInfo out_bufferInfo = new MediaCodec.BufferInfo();
-                    mCodecWrapper.peekSample(out_bufferInfo);
-
-                    // BEGIN_INCLUDE(render_sample)
-                    if (out_bufferInfo.size <= 0 && isEos) {
-                        mTimeAnimator.end();
-                        mCodecWrapper.stopAndRelease();
-                        mExtractor.release();
-                    } else if (out_bufferInfo.presentationTimeUs / 1000 < totalTime) {
-                        // Pop the sample off the queue and send it to {@link Surface}
-                        mCodecWrapper.popSample(true);
-                    }
-                    // END_INCLUDE(render_sample)
-
-                }
-            });
-
-            // We're all set. Kick off the animator to process buffers and render video frames as
-            // they become available
-            mTimeAnimator.start();
+        try {
+            mPlaybackEngine.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private void releasePlayback() {
+        if (mPlaylistEngine != null) {
+            mPlaylistEngine.dumpMetrics();
+            mPlaylistEngine.release();
+            mPlaylistEngine = null;
+        }
+        if (mPlaybackEngine != null) {
+            mPlaybackEngine.dumpMetrics();
+            mPlaybackEngine.release();
+            mPlaybackEngine = null;
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package com.example.android.common.media;
+
+/**
+ * A {@link MediaClock} that follows the playback position of an {@link AudioTrackSink}, so
+ * other tracks are scheduled against what is actually coming out of the speaker. Until the
+ * sink has started playing, it defers to a fallback clock.
+ */
+public class AudioMasterClock implements MediaClock {
+
+    private final AudioTrackSink mSink;
+    private final MediaClock mFallback;
+
+    /**
+     * @param sink The sink whose playback position drives the clock.
+     * @param fallback Clock to use while the sink has no position yet.
+     */
+    public AudioMasterClock(AudioTrackSink sink, MediaClock fallback) {
+        mSink = sink;
+        mFallback = fallback;
+    }
+
+    @Override
+    public long getTimeUs() {
+        long positionUs = mSink.getPlaybackPositionUs();
+        return positionUs >= 0 ? positionUs : mFallback.getTimeUs();
+    }
+}
@@ -0,0 +1,531 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+/**
+ * {@link OutputSink} that plays decoded PCM through a streaming {@link AudioTrack}. It also keeps
+ * track of which media time is being played right now, see {@link #getPlaybackPositionUs()}.
+ *
+ * The track is created from the decoder's output format, as reported by
+ * {@link #onOutputFormatChanged(MediaFormat)}, and recreated whenever the sample rate, channel
+ * mask or PCM encoding changes. Its buffer holds {@link #getTargetLatencyMs()} worth of audio.
+ *
+ * At a playback speed other than 1, see {@link #setPlaybackSpeed(float)}, 16-bit and float PCM
+ * is time-stretched by a {@link TimeStretcher} on its way to the track, so it plays faster or
+ * slower at the same pitch, and the playback position advances at that speed.
+ */
+public class AudioTrackSink implements OutputSink {
+
+    /**
+     * Default amount of audio buffered in the track.
+     */
+    public static final int DEFAULT_TARGET_LATENCY_MS = 200;
+
+    // Size of the staging buffer for time-stretched PCM, in frames.
+    private static final int STRETCH_BUFFER_FRAMES = 4096;
+
+    /**
+     * A stretch of the written frames played at one speed, for mapping frames to media time.
+     * Replaced, not modified, when the speed changes.
+     */
+    private static class Segment {
+        // First frame of the segment and its media time, relative to the anchor.
+        final long startFrames;
+        final long startUs;
+        final float speed;
+        // The segment before, whose frames may still be playing, or null.
+        final Segment previous;
+
+        Segment(long startFrames, long startUs, float speed, Segment previous) {
+            this.startFrames = startFrames;
+            this.startUs = startUs;
+            this.speed = speed;
+            this.previous = previous;
+        }
+    }
+
+    private volatile AudioTrack mAudioTrack;
+
+    // Format of the current track.
+    private int mSampleRate;
+    private int mChannelMask;
+    private int mEncoding;
+    private int mChannelCount;
+    // Size of one PCM frame, i.e. one sample for every channel.
+    private int mFrameSizeInBytes;
+
+    // Speed requested by setPlaybackSpeed() and the speed the PCM is currently stretched to.
+    // The request is applied on the decode thread with the next buffer.
+    private volatile float mSpeed = 1;
+    private float mAppliedSpeed = 1;
+
+    // Stretches the PCM while the speed isn't 1 and the encoding allows it, otherwise null.
+    private TimeStretcher mStretcher;
+    // Where the stretch buffer comes from and goes back to on release().
+    private final ByteBufferPool mPool = ByteBufferPool.getDefault();
+    // Staging area for the stretched PCM, with views in the sample format, reused across
+    // buffers.
+    private ByteBuffer mStretchBuffer;
+    private ShortBuffer mStretchShorts;
+    private FloatBuffer mStretchFloats;
+
+    // Speed of the frames written from mSegment.startFrames on.
+    private volatile Segment mSegment = new Segment(0, 0, 1, null);
+
+    private volatile int mTargetLatencyMs = DEFAULT_TARGET_LATENCY_MS;
+
+    // Output format reported by the codec and not yet applied to the track. In asynchronous
+    // mode it arrives on the codec callback thread, so it is applied on the decode thread,
+    // ahead of the first buffer in that format.
+    private volatile MediaFormat mPendingFormat;
+
+    // Presentation time of the first buffer written to the track, or -1 before that. Frame 0 of
+    // the playback head corresponds to this time.
+    private volatile long mAnchorPtsUs = -1;
+
+    // Number of PCM frames written to the track so far.
+    private volatile long mFramesWritten;
+
+    // Guards mTimestamp, which is queried from the threads reading the clock.
+    private final Object mTimestampLock = new Object();
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    // Staging array for AudioTrack writes before Lollipop, reused across buffers.
+    private byte[] mPcmScratch;
+
+    /**
+     * Sets how much audio the track buffers, which trades latency for robustness against the
+     * decode thread being descheduled. Takes effect when the track is next created.
+     */
+    public void setTargetLatencyMs(int latencyMs) {
+        if (latencyMs <= 0) {
+            throw new IllegalArgumentException("Latency must be positive: " + latencyMs);
+        }
+        mTargetLatencyMs = latencyMs;
+    }
+
+    public int getTargetLatencyMs() {
+        return mTargetLatencyMs;
+    }
+
+    /**
+     * Sets how fast the audio plays, e.g. 1.5 to play one and a half times as fast, without
+     * changing the pitch. Takes effect with the next buffer. 8-bit PCM always plays at normal
+     * speed.
+     *
+     * @param speed Between {@link TimeStretcher#MIN_SPEED} and {@link TimeStretcher#MAX_SPEED}.
+     */
+    public void setPlaybackSpeed(float speed) {
+        if (speed < TimeStretcher.MIN_SPEED || speed > TimeStretcher.MAX_SPEED) {
+            throw new IllegalArgumentException("Speed out of range: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    public float getPlaybackSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Creates the track right away from {@code mediaFormat}, instead of waiting for the codec
+     * to report its output format. Must be called on the thread that writes the PCM.
+     */
+    public void prepareAudioTrack(MediaFormat mediaFormat) {
+        applyFormat(mediaFormat);
+    }
+
+    /**
+     * @return the track the PCM is played through, or null before it is prepared.
+     */
+    public AudioTrack getAudioTrack() {
+        return mAudioTrack;
+    }
+
+    /**
+     * @return the number of times the track ran out of data since it was created, or -1 if the
+     * platform doesn't report it (before Nougat) or there is no track.
+     */
+    public int getUnderrunCount() {
+        AudioTrack track = mAudioTrack;
+        if (track == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return -1;
+        }
+        return getUnderrunCount(track);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static int getUnderrunCount(AudioTrack track) {
+        return track.getUnderrunCount();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        mPendingFormat = format;
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        MediaFormat pendingFormat = mPendingFormat;
+        if (pendingFormat != null) {
+            mPendingFormat = null;
+            applyFormat(pendingFormat);
+        } else if (mAudioTrack == null) {
+            // No format change was reported before the first buffer.
+            applyFormat(codec.getOutputFormat());
+        }
+        if (mSpeed != mAppliedSpeed) {
+            applySpeed(mSpeed);
+        }
+        if (render && buffer != null && info.size > 0) {
+            if (mAnchorPtsUs < 0) {
+                mAnchorPtsUs = info.presentationTimeUs;
+            }
+            if (mStretcher == null) {
+                writePcm(buffer, info.size);
+                mFramesWritten += info.size / mFrameSizeInBytes;
+            } else {
+                stretchPcm(buffer);
+            }
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && mStretcher != null) {
+            // Play out what the stretcher still holds; the sink may be fed again afterwards.
+            mStretcher.queueEndOfStream();
+            drainStretcher();
+            mStretcher.flush();
+        }
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    /**
+     * Returns the media time of the audio currently being played. Uses the timestamp reported by
+     * the audio HAL when available, extrapolated to now, and the playback head position
+     * otherwise.
+     *
+     * @return the playback position in microseconds, or -1 if nothing has been written yet.
+     */
+    public long getPlaybackPositionUs() {
+        AudioTrack track = mAudioTrack;
+        long anchorPtsUs = mAnchorPtsUs;
+        if (track == null || anchorPtsUs < 0) {
+            return -1;
+        }
+
+        long framesPlayed = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            framesPlayed = getTimestampFramePosition(track);
+        }
+        if (framesPlayed < 0) {
+            // The head position is an unsigned 32-bit frame counter.
+            framesPlayed = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+        // Never report audio that hasn't even been written as played.
+        framesPlayed = Math.min(framesPlayed, mFramesWritten);
+        return anchorPtsUs + getMediaTimeUs(mSegment, framesPlayed);
+    }
+
+    /**
+     * @return the media time at which the audio written so far ends, on the same timeline as
+     * {@link #getPlaybackPositionUs()}, or -1 if nothing has been written yet.
+     */
+    public long getWrittenPositionUs() {
+        long anchorPtsUs = mAnchorPtsUs;
+        if (mAudioTrack == null || anchorPtsUs < 0) {
+            return -1;
+        }
+        return anchorPtsUs + getMediaTimeUs(mSegment, mFramesWritten);
+    }
+
+    /**
+     * @return the media time of frame {@code frames} of the track, relative to the anchor.
+     */
+    private long getMediaTimeUs(Segment segment, long frames) {
+        if (frames < segment.startFrames && segment.previous != null) {
+            segment = segment.previous;
+        }
+        return segment.startUs
+                + (long) ((frames - segment.startFrames) * 1000000.0 * segment.speed / mSampleRate);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private long getTimestampFramePosition(AudioTrack track) {
+        synchronized (mTimestampLock) {
+            if (!track.getTimestamp(mTimestamp)) {
+                return -1;
+            }
+            long elapsedNs = System.nanoTime() - mTimestamp.nanoTime;
+            return mTimestamp.framePosition + elapsedNs * mSampleRate / 1000000000L;
+        }
+    }
+
+    /**
+     * Drops the audio queued in the track and restarts the position at the next buffer written.
+     */
+    @Override
+    public void flush() {
+        AudioTrack track = mAudioTrack;
+        mAnchorPtsUs = -1;
+        mFramesWritten = 0;
+        mSegment = new Segment(0, 0, getEffectiveSpeed(), null);
+        if (mStretcher != null) {
+            mStretcher.flush();
+        }
+        if (track != null) {
+            // flush() only has an effect on a paused or stopped track.
+            track.pause();
+            track.flush();
+            track.play();
+        }
+    }
+
+    /**
+     * Creates a track for {@code format}, replacing the current one unless it already plays
+     * that format.
+     */
+    private void applyFormat(MediaFormat format) {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int channelMask = 0;
+        if (format.containsKey(MediaFormat.KEY_CHANNEL_MASK)) {
+            channelMask = format.getInteger(MediaFormat.KEY_CHANNEL_MASK);
+        }
+        if (channelMask == 0) {
+            channelMask = getChannelMask(channelCount);
+        }
+        int encoding = AudioFormat.ENCODING_PCM_16BIT;
+        if (format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+            encoding = format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+        }
+
+        if (mAudioTrack != null && sampleRate == mSampleRate && channelMask == mChannelMask
+                && encoding == mEncoding) {
+            return;
+        }
+        release();
+
+        int frameSizeInBytes = channelCount * getBytesPerSample(encoding);
+        AudioTrack track = createAudioTrack(sampleRate, channelMask, encoding, frameSizeInBytes);
+        // The new track starts counting frames from zero: the next buffer becomes the anchor.
+        mAnchorPtsUs = -1;
+        mFramesWritten = 0;
+        mSampleRate = sampleRate;
+        mChannelMask = channelMask;
+        mEncoding = encoding;
+        mChannelCount = channelCount;
+        mFrameSizeInBytes = frameSizeInBytes;
+        mSegment = new Segment(0, 0, getEffectiveSpeed(), null);
+        // A stretcher only takes one format.
+        mStretcher = null;
+        updateStretcher();
+        track.play();
+        mAudioTrack = track;
+    }
+
+    /**
+     * Creates a streaming track whose buffer holds {@link #getTargetLatencyMs()} worth of PCM in
+     * the given format. Tests override this, since there is no audio device off the phone.
+     */
+    AudioTrack createAudioTrack(int sampleRate, int channelMask, int encoding,
+            int frameSizeInBytes) {
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, encoding);
+        if (minBufferSize <= 0) {
+            throw new IllegalStateException(String.format(Locale.US,
+                    "Unsupported PCM format: %d Hz, channel mask 0x%x, encoding %d",
+                    sampleRate, channelMask, encoding));
+        }
+        // The minimum buffer is just enough to avoid glitches when the writer keeps up
+        // perfectly; size to the latency target, in whole frames.
+        long targetFrames = (long) sampleRate * mTargetLatencyMs / 1000;
+        int bufferSizeInBytes = (int) Math.max(minBufferSize, targetFrames * frameSizeInBytes);
+        bufferSizeInBytes -= bufferSizeInBytes % frameSizeInBytes;
+
+        return new AudioTrack(
+                AudioManager.STREAM_MUSIC
+                , sampleRate
+                , channelMask
+                , encoding
+                , bufferSizeInBytes
+                , AudioTrack.MODE_STREAM
+        );
+    }
+
+    /**
+     * @return the speed the PCM actually plays at: 8-bit PCM isn't stretched.
+     */
+    private float getEffectiveSpeed() {
+        return mEncoding == AudioFormat.ENCODING_PCM_8BIT ? 1 : mAppliedSpeed;
+    }
+
+    /**
+     * Switches to {@code speed} for the frames written from now on. Runs on the decode thread.
+     */
+    private void applySpeed(float speed) {
+        Segment segment = mSegment;
+        long frames = mFramesWritten;
+        mAppliedSpeed = speed;
+        if (mAudioTrack != null) {
+            updateStretcher();
+        }
+        // Keep one segment back, for the frames written before that are still to be played.
+        Segment previous = new Segment(segment.startFrames, segment.startUs, segment.speed,
+                null);
+        mSegment = new Segment(frames, getMediaTimeUs(segment, frames), getEffectiveSpeed(),
+                previous);
+    }
+
+    /**
+     * Creates, reconfigures or drops the stretcher to match the applied speed and the format of
+     * the track.
+     */
+    private void updateStretcher() {
+        if (getEffectiveSpeed() == 1) {
+            if (mStretcher != null) {
+                // Play out what it holds rather than dropping it.
+                mStretcher.queueEndOfStream();
+                drainStretcher();
+                mStretcher = null;
+            }
+            return;
+        }
+        if (mStretcher == null) {
+            mStretcher = new TimeStretcher(mSampleRate, mChannelCount);
+            if (mStretchBuffer == null
+                    || mStretchBuffer.capacity() < STRETCH_BUFFER_FRAMES * mFrameSizeInBytes) {
+                releaseStretchBuffer();
+                mStretchBuffer = mPool.acquire(STRETCH_BUFFER_FRAMES * mFrameSizeInBytes)
+                        .order(ByteOrder.nativeOrder());
+                mStretchShorts = mStretchBuffer.asShortBuffer();
+                mStretchFloats = mStretchBuffer.asFloatBuffer();
+            }
+        }
+        mStretcher.setSpeed(mAppliedSpeed);
+    }
+
+    /**
+     * Feeds the PCM from the current position of {@code pcm} to the stretcher, writing its
+     * output to the track as it comes.
+     */
+    private void stretchPcm(ByteBuffer pcm) {
+        boolean isFloat = mEncoding == AudioFormat.ENCODING_PCM_FLOAT;
+        while (pcm.remaining() >= mFrameSizeInBytes) {
+            mStretcher.queueInput(pcm, isFloat);
+            drainStretcher();
+        }
+    }
+
+    /**
+     * Writes everything the stretcher has output to the track.
+     */
+    private void drainStretcher() {
+        boolean isFloat = mEncoding == AudioFormat.ENCODING_PCM_FLOAT;
+        int capacityFrames = mStretchBuffer.capacity() / mFrameSizeInBytes;
+        while (true) {
+            int frames;
+            if (isFloat) {
+                mStretchFloats.clear();
+                mStretchFloats.limit(capacityFrames * mChannelCount);
+                frames = mStretcher.getOutput(mStretchFloats);
+            } else {
+                mStretchShorts.clear();
+                mStretchShorts.limit(capacityFrames * mChannelCount);
+                frames = mStretcher.getOutput(mStretchShorts);
+            }
+            if (frames == 0) {
+                return;
+            }
+            int size = frames * mFrameSizeInBytes;
+            mStretchBuffer.clear();
+            mStretchBuffer.limit(size);
+            writePcm(mStretchBuffer, size);
+            mFramesWritten += frames;
+        }
+    }
+
+    private static int getChannelMask(int channelCount) {
+        switch (channelCount) {
+            case 1:
+                return AudioFormat.CHANNEL_OUT_MONO;
+            case 2:
+                return AudioFormat.CHANNEL_OUT_STEREO;
+            case 4:
+                return AudioFormat.CHANNEL_OUT_QUAD;
+            case 6:
+                return AudioFormat.CHANNEL_OUT_5POINT1;
+            case 8:
+                return AudioFormat.CHANNEL_OUT_7POINT1_SURROUND;
+            default:
+                throw new IllegalArgumentException("Unsupported channel count: " + channelCount);
+        }
+    }
+
+    private static int getBytesPerSample(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return 2;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported PCM encoding: " + encoding);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mAudioTrack != null) {
+            mAudioTrack.stop();
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+        mStretcher = null;
+        releaseStretchBuffer();
+    }
+
+    private void releaseStretchBuffer() {
+        if (mStretchBuffer != null) {
+            mPool.release(mStretchBuffer);
+            mStretchBuffer = null;
+            mStretchShorts = null;
+            mStretchFloats = null;
+        }
+    }
+
+    /**
+     * Writes {@code size} bytes of PCM from the current position of {@code pcm} to the
+     * {@link AudioTrack}, without allocating.
+     */
+    private void writePcm(ByteBuffer pcm, int size) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            writePcmDirect(pcm, size);
+            return;
+        }
+
+        // Before Lollipop AudioTrack only takes arrays, so stage through a scratch array that is
+        // grown once to the largest buffer the codec produces and then reused.
+        if (mPcmScratch == null || mPcmScratch.length < size) {
+            mPcmScratch = new byte[size];
+        }
+        pcm.get(mPcmScratch, 0, size);
+        mAudioTrack.write(mPcmScratch, 0, size);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void writePcmDirect(ByteBuffer pcm, int size) {
+        // Blocking mode writes the whole buffer, the same as the array overload does.
+        mAudioTrack.write(pcm, size, AudioTrack.WRITE_BLOCKING);
+    }
+}
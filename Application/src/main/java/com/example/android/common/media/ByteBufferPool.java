@@ -0,0 +1,213 @@
+package com.example.android.common.media;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Pool of direct {@link ByteBuffer}s for staging samples between the extractor, the codec and
+ * the sinks. Buffers come in power-of-two size classes, so a released buffer serves any later
+ * request of up to its size, and allocating a direct buffer (which is slow and only freed by a
+ * GC) becomes rare once the pipeline is running.
+ *
+ * The pool holds on to at most {@code maxPooledBytes} of released buffers. Buffers that stay
+ * unused for a whole {@link #IDLE_EVICTION_INTERVAL_MS} interval are let go. With leak tracking
+ * enabled, the pool remembers where every outstanding buffer was acquired and rejects buffers
+ * released twice; meant for debug builds.
+ *
+ * Thread safe.
+ */
+public class ByteBufferPool {
+
+    private static final String TAG = "ByteBufferPool";
+
+    /**
+     * Default cap for the bytes held in released buffers.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Released buffers that weren't needed during an interval this long are evicted.
+     */
+    public static final long IDLE_EVICTION_INTERVAL_MS = 5000;
+
+    // Size classes go from 1 KiB to 1 GiB.
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int MAX_CLASS_SHIFT = 30;
+
+    private static ByteBufferPool sDefault;
+
+    private final long mMaxPooledBytes;
+    private final long mIdleEvictionIntervalNs;
+
+    // Released buffers, by size class, used last in first out.
+    private final ArrayList<ArrayList<ByteBuffer>> mFree;
+    // Smallest number of released buffers per size class since the last eviction: that many
+    // sat unused for the whole interval.
+    private final int[] mFreeLowWatermark;
+    private long mPooledBytes;
+    private long mLastEvictionNs = System.nanoTime();
+
+    // Outstanding buffers and where they were acquired, or null without leak tracking.
+    private final Map<ByteBuffer, Throwable> mOutstanding;
+
+    /**
+     * @param maxPooledBytes How many bytes of released buffers the pool may keep.
+     * @param trackLeaks True, to record every acquisition so leaks and double releases can be
+     *                   reported. Costs a stack trace per acquisition.
+     */
+    public ByteBufferPool(long maxPooledBytes, boolean trackLeaks) {
+        this(maxPooledBytes, trackLeaks, IDLE_EVICTION_INTERVAL_MS);
+    }
+
+    /**
+     * Like {@link #ByteBufferPool(long, boolean)}, with another eviction interval than
+     * {@link #IDLE_EVICTION_INTERVAL_MS}.
+     */
+    ByteBufferPool(long maxPooledBytes, boolean trackLeaks, long idleEvictionIntervalMs) {
+        mMaxPooledBytes = maxPooledBytes;
+        mIdleEvictionIntervalNs = idleEvictionIntervalMs * 1000000;
+        int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        mFree = new ArrayList<ArrayList<ByteBuffer>>(classes);
+        for (int i = 0; i < classes; i++) {
+            mFree.add(new ArrayList<ByteBuffer>());
+        }
+        mFreeLowWatermark = new int[classes];
+        mOutstanding = trackLeaks ? new IdentityHashMap<ByteBuffer, Throwable>() : null;
+    }
+
+    /**
+     * @return the pool shared by the media pipeline.
+     */
+    public static synchronized ByteBufferPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new ByteBufferPool(DEFAULT_MAX_POOLED_BYTES, false);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the shared pool, e.g. with a leak tracking one in debug builds. Components keep
+     * returning their buffers to the pool they got them from.
+     */
+    public static synchronized void setDefault(ByteBufferPool pool) {
+        sDefault = pool;
+    }
+
+    /**
+     * Hands out a cleared direct buffer with a capacity of at least {@code minCapacity}.
+     */
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        evictIdleLocked();
+        int sizeClass = getSizeClass(minCapacity);
+        ArrayList<ByteBuffer> free = mFree.get(sizeClass);
+        ByteBuffer buffer;
+        if (free.isEmpty()) {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+        } else {
+            buffer = free.remove(free.size() - 1);
+            mPooledBytes -= buffer.capacity();
+            mFreeLowWatermark[sizeClass] = Math.min(mFreeLowWatermark[sizeClass], free.size());
+            buffer.clear();
+        }
+        if (mOutstanding != null) {
+            mOutstanding.put(buffer, new Throwable("Acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)}. The caller must not touch it
+     * afterwards.
+     *
+     * @throws IllegalArgumentException with leak tracking, if the buffer is not outstanding.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (mOutstanding != null && mOutstanding.remove(buffer) == null) {
+            throw new IllegalArgumentException(
+                    "Buffer released twice or not acquired from this pool");
+        }
+        evictIdleLocked();
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_CLASS_SHIFT)
+                || mPooledBytes + capacity > mMaxPooledBytes) {
+            // Not one of ours, or over the cap: leave it to the GC.
+            return;
+        }
+        mFree.get(getSizeClass(capacity)).add(buffer);
+        mPooledBytes += capacity;
+    }
+
+    /**
+     * @return the bytes currently held in released buffers.
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return the number of buffers acquired and not released, or -1 without leak tracking.
+     */
+    public synchronized int getOutstandingCount() {
+        return mOutstanding != null ? mOutstanding.size() : -1;
+    }
+
+    /**
+     * Logs where every outstanding buffer was acquired, if leak tracking is enabled. Call it
+     * when the pipeline has been torn down and every buffer should be back.
+     */
+    public synchronized void logOutstanding() {
+        if (mOutstanding == null || mOutstanding.isEmpty()) {
+            return;
+        }
+        Log.w(TAG, mOutstanding.size() + " buffers not released");
+        for (Map.Entry<ByteBuffer, Throwable> entry : mOutstanding.entrySet()) {
+            Log.w(TAG, "Leaked " + entry.getKey().capacity() + " byte buffer",
+                    entry.getValue());
+        }
+    }
+
+    /**
+     * Drops every released buffer.
+     */
+    public synchronized void trim() {
+        for (int i = 0; i < mFree.size(); i++) {
+            mFree.get(i).clear();
+            mFreeLowWatermark[i] = 0;
+        }
+        mPooledBytes = 0;
+    }
+
+    /**
+     * Once per interval, drops as many buffers of each size class as were never needed during
+     * the interval.
+     */
+    private void evictIdleLocked() {
+        long nowNs = System.nanoTime();
+        if (nowNs - mLastEvictionNs < mIdleEvictionIntervalNs) {
+            return;
+        }
+        mLastEvictionNs = nowNs;
+        for (int i = 0; i < mFree.size(); i++) {
+            ArrayList<ByteBuffer> free = mFree.get(i);
+            // Drop from the bottom of the stack, which holds the least recently used buffers.
+            int idle = mFreeLowWatermark[i];
+            if (idle > 0) {
+                free.subList(0, idle).clear();
+                mPooledBytes -= (long) idle << (i + MIN_CLASS_SHIFT);
+            }
+            mFreeLowWatermark[i] = free.size();
+        }
+    }
+
+    private static int getSizeClass(int capacity) {
+        if (capacity > 1 << MAX_CLASS_SHIFT) {
+            throw new IllegalArgumentException("Buffer too large: " + capacity);
+        }
+        int shift = capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
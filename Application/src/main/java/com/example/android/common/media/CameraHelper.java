@@ -24,9 +24,12 @@ import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Camera related utilities.
@@ -36,6 +39,84 @@ public class CameraHelper {
     public static final int MEDIA_TYPE_IMAGE = 1;
     public static final int MEDIA_TYPE_VIDEO = 2;
 
+    // Results of getOptimalVideoSize(int, ...) by camera id and view size, the least recently
+    // used dropped beyond this many. Only dimensions are kept: a Camera.Size would keep its
+    // Camera alive.
+    private static final int MAX_OPTIMAL_VIDEO_SIZES = 16;
+    private static final Map<Long, OptimalSize> sOptimalVideoSizes =
+            new LinkedHashMap<Long, OptimalSize>(MAX_OPTIMAL_VIDEO_SIZES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, OptimalSize> eldest) {
+                    return size() > MAX_OPTIMAL_VIDEO_SIZES;
+                }
+            };
+
+    /**
+     * A remembered result of {@link #getOptimalVideoSize(int, List, List, int, int)}, with a
+     * hash of the size lists it was picked from.
+     */
+    private static class OptimalSize {
+        final int sizesHash;
+        final int width;
+        final int height;
+
+        OptimalSize(int sizesHash, int width, int height) {
+            this.sizesHash = sizesHash;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Like {@link #getOptimalVideoSize(List, List, int, int)}, but remembers the result per
+     * camera and view size, so a configuration change back to a size seen before costs a hash
+     * of the size lists and a lookup in them instead of a search. A result is only reused for
+     * the same size lists, and there being no fitting size isn't remembered.
+     *
+     * @param cameraId Id of the camera the sizes belong to.
+     */
+    public static Camera.Size getOptimalVideoSize(int cameraId,
+            List<Camera.Size> supportedVideoSizes, List<Camera.Size> previewSizes, int w, int h) {
+        Long key = ((long) cameraId << 48) | ((long) (w & 0xffffff) << 24) | (h & 0xffffff);
+        int sizesHash = hashSizes(supportedVideoSizes, previewSizes);
+        OptimalSize optimal;
+        synchronized (sOptimalVideoSizes) {
+            optimal = sOptimalVideoSizes.get(key);
+        }
+        if (optimal != null && optimal.sizesHash == sizesHash) {
+            // The first of equal sizes, as the search would pick.
+            List<Camera.Size> videoSizes = supportedVideoSizes != null ? supportedVideoSizes
+                    : previewSizes;
+            for (int i = 0, n = videoSizes.size(); i < n; i++) {
+                Camera.Size size = videoSizes.get(i);
+                if (size.width == optimal.width && size.height == optimal.height) {
+                    return size;
+                }
+            }
+        }
+        Camera.Size size = getOptimalVideoSize(supportedVideoSizes, previewSizes, w, h);
+        if (size != null) {
+            synchronized (sOptimalVideoSizes) {
+                sOptimalVideoSizes.put(key, new OptimalSize(sizesHash, size.width, size.height));
+            }
+        }
+        return size;
+    }
+
+    private static int hashSizes(List<Camera.Size> supportedVideoSizes,
+            List<Camera.Size> previewSizes) {
+        int hash = supportedVideoSizes != null ? hashSizes(1, supportedVideoSizes) : 0;
+        return hashSizes(hash, previewSizes);
+    }
+
+    private static int hashSizes(int hash, List<Camera.Size> sizes) {
+        for (int i = 0, n = sizes.size(); i < n; i++) {
+            Camera.Size size = sizes.get(i);
+            hash = (hash * 31 + size.width) * 31 + size.height;
+        }
+        return hash * 31 + sizes.size();
+    }
+
     /**
      * Iterate over supported camera video sizes to see which one best fits the
      * dimensions of the given view while maintaining the aspect ratio. If none can,
@@ -54,46 +135,89 @@ public class CameraHelper {
         double targetRatio = (double) w / h;
 
         // Supported video sizes list might be null, it means that we are allowed to use the preview
-        // sizes
+        // sizes, which then trivially are preview sizes. Otherwise index the preview sizes so the
+        // check for each video size is a hash lookup rather than a search of the list.
         List<Camera.Size> videoSizes;
+        SizeIndex previewIndex = null;
         if (supportedVideoSizes != null) {
             videoSizes = supportedVideoSizes;
+            previewIndex = new SizeIndex(previewSizes);
         } else {
             videoSizes = previewSizes;
         }
-        Camera.Size optimalSize = null;
-
-        // Start with max value and refine as we iterate over available video sizes. This is the
-        // minimum difference between view and camera height.
-        double minDiff = Double.MAX_VALUE;
 
         // Target view height
         int targetHeight = h;
 
-        // Try to find a video size that matches aspect ratio and the target view size.
-        // Iterate over all available sizes and pick the largest size that can fit in the view and
-        // still maintain the aspect ratio.
-        for (Camera.Size size : videoSizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
+        // In a single pass, find both the size closest to the target height among those that
+        // match the aspect ratio, and the closest one regardless of the aspect ratio, which is
+        // the fallback if no size matches. Ties go to the size listed first in both cases.
+        Camera.Size optimalSize = null;
+        long minDiff = Long.MAX_VALUE;
+        Camera.Size fallbackSize = null;
+        long fallbackMinDiff = Long.MAX_VALUE;
+        for (int i = 0, n = videoSizes.size(); i < n; i++) {
+            Camera.Size size = videoSizes.get(i);
+            if (previewIndex != null && !previewIndex.contains(size.width, size.height)) {
                 continue;
-            if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
+            }
+            int diff = Math.abs(size.height - targetHeight);
+            if (diff < fallbackMinDiff) {
+                fallbackSize = size;
+                fallbackMinDiff = diff;
+            }
+            double ratio = (double) size.width / size.height;
+            if (!(Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) && diff < minDiff) {
                 optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
+                minDiff = diff;
             }
         }
 
         // Cannot find video size that matches the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : videoSizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
+        return optimalSize != null ? optimalSize : fallbackSize;
+    }
+
+    /**
+     * Set of sizes, packed into longs in an open addressing hash table.
+     */
+    private static class SizeIndex {
+        private static final long EMPTY = -1;
+        private final long[] mTable;
+
+        SizeIndex(List<Camera.Size> sizes) {
+            // At most half full, so probe sequences stay short.
+            int capacity = Integer.highestOneBit(Math.max(sizes.size(), 1) * 4);
+            mTable = new long[capacity];
+            Arrays.fill(mTable, EMPTY);
+            for (int i = 0, n = sizes.size(); i < n; i++) {
+                Camera.Size size = sizes.get(i);
+                long key = pack(size.width, size.height);
+                int slot = find(key);
+                mTable[slot] = key;
             }
         }
-        return optimalSize;
+
+        boolean contains(int width, int height) {
+            long key = pack(width, height);
+            return mTable[find(key)] == key;
+        }
+
+        /**
+         * @return the slot holding {@code key}, or the empty slot where it would go.
+         */
+        private int find(long key) {
+            int mask = mTable.length - 1;
+            int slot = (int) (key ^ (key >>> 29)) * 0x9e3779b9 & mask;
+            while (mTable[slot] != EMPTY && mTable[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static long pack(int width, int height) {
+            // Dimensions are never negative, so no key collides with EMPTY.
+            return ((long) width << 32) | (height & 0xffffffffL);
+        }
     }
 
     /**
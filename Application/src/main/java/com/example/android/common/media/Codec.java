@@ -0,0 +1,53 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The calls {@link DecoderWrapper} makes on its codec. {@link MediaCodec} is final, so this is
+ * where a fake codec takes its place, e.g. to run the buffer handling on a JVM without a device.
+ * {@link PlatformCodec} forwards to a real one.
+ */
+interface Codec {
+
+    /**
+     * @return the codec handed to {@link OutputSink#onOutputBuffer}, which releases the output
+     * buffers through it, and returned to a {@link CodecPool}.
+     */
+    MediaCodec getMediaCodec();
+
+    void configure(MediaFormat format, Surface surface);
+
+    void setCallback(MediaCodec.Callback callback, Handler handler);
+
+    void start();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    ByteBuffer[] getInputBuffers();
+
+    ByteBuffer[] getOutputBuffers();
+
+    ByteBuffer getInputBuffer(int index);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+            long presentationTimeUs, int flags);
+
+    MediaFormat getOutputFormat();
+}
@@ -0,0 +1,218 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Keeps stopped decoders around for reuse, so starting playback of another file doesn't pay
+ * for instantiating a codec every time. Decoders are pooled by mime type and, for video, by a
+ * coarse resolution class, and are returned to the uninitialized state with
+ * {@link MediaCodec#reset()} so the next user can configure them from scratch.
+ *
+ * At most {@code maxInstances} decoders are kept, and decoders idle for longer than
+ * {@code idleTimeoutMs} are released. Resetting needs Lollipop; before that, returned decoders
+ * are simply released.
+ *
+ * Thread safe.
+ */
+public class CodecPool {
+
+    private static final String TAG = "CodecPool";
+
+    public static final int DEFAULT_MAX_INSTANCES = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10000;
+
+    private static class Entry {
+        final String key;
+        final MediaCodec codec;
+        final long idleSinceMs;
+
+        Entry(String key, MediaCodec codec, long idleSinceMs) {
+            this.key = key;
+            this.codec = codec;
+            this.idleSinceMs = idleSinceMs;
+        }
+    }
+
+    private final int mMaxInstances;
+    private final long mIdleTimeoutMs;
+
+    // Idle decoders, least recently returned first.
+    private final ArrayList<Entry> mIdle = new ArrayList<Entry>();
+
+    private int mHits;
+    private int mMisses;
+    // Decoders handed out from the idle ones and not taken back yet.
+    private final HashSet<MediaCodec> mReused = new HashSet<MediaCodec>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mEvictIdle = new Runnable() {
+        @Override
+        public void run() {
+            evictIdle();
+        }
+    };
+
+    public CodecPool() {
+        this(DEFAULT_MAX_INSTANCES, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxInstances How many idle decoders to keep at most.
+     * @param idleTimeoutMs How long an idle decoder is kept before it is released.
+     */
+    public CodecPool(int maxInstances, long idleTimeoutMs) {
+        mMaxInstances = maxInstances;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Hands out an unconfigured decoder for {@code format}, reusing an idle one if possible.
+     */
+    public MediaCodec acquire(MediaFormat format) throws IOException {
+        String key = getKey(format);
+        synchronized (this) {
+            // Take the most recently returned match, the least likely to be evicted soon.
+            for (int i = mIdle.size() - 1; i >= 0; i--) {
+                if (mIdle.get(i).key.equals(key)) {
+                    mHits++;
+                    MediaCodec codec = mIdle.remove(i).codec;
+                    mReused.add(codec);
+                    return codec;
+                }
+            }
+            mMisses++;
+        }
+        return MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Takes back a stopped decoder that was configured for {@code format}. The caller must not
+     * use it afterwards.
+     */
+    public void release(MediaCodec codec, MediaFormat format) {
+        synchronized (this) {
+            mReused.remove(codec);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !reset(codec)) {
+            codec.release();
+            return;
+        }
+        Entry evicted = null;
+        synchronized (this) {
+            mIdle.add(new Entry(getKey(format), codec, SystemClock.uptimeMillis()));
+            if (mIdle.size() > mMaxInstances) {
+                evicted = mIdle.remove(0);
+            }
+        }
+        if (evicted != null) {
+            evicted.codec.release();
+        }
+        mHandler.removeCallbacks(mEvictIdle);
+        mHandler.postDelayed(mEvictIdle, mIdleTimeoutMs);
+    }
+
+    /**
+     * Releases every idle decoder.
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mEvictIdle);
+        ArrayList<Entry> idle;
+        synchronized (this) {
+            idle = new ArrayList<Entry>(mIdle);
+            mIdle.clear();
+        }
+        for (int i = 0; i < idle.size(); i++) {
+            idle.get(i).codec.release();
+        }
+    }
+
+    /**
+     * @return True, if {@code codec} was handed out by {@link #acquire(MediaFormat)} from the
+     * idle decoders rather than created, and hasn't been taken back since.
+     */
+    public synchronized boolean isReused(MediaCodec codec) {
+        return mReused.contains(codec);
+    }
+
+    /**
+     * @return how many acquisitions were served by an idle decoder.
+     */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return how many acquisitions had to create a decoder.
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private void evictIdle() {
+        long nowMs = SystemClock.uptimeMillis();
+        ArrayList<Entry> evicted = new ArrayList<Entry>();
+        long nextDeadlineMs = -1;
+        synchronized (this) {
+            while (!mIdle.isEmpty()) {
+                Entry oldest = mIdle.get(0);
+                if (nowMs - oldest.idleSinceMs < mIdleTimeoutMs) {
+                    nextDeadlineMs = oldest.idleSinceMs + mIdleTimeoutMs;
+                    break;
+                }
+                evicted.add(mIdle.remove(0));
+            }
+        }
+        for (int i = 0; i < evicted.size(); i++) {
+            evicted.get(i).codec.release();
+        }
+        if (nextDeadlineMs >= 0) {
+            mHandler.postAtTime(mEvictIdle, nextDeadlineMs);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean reset(MediaCodec codec) {
+        try {
+            codec.reset();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to reset decoder, releasing it", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decoders are interchangeable within a mime type and, for video, within a resolution
+     * class: a decoder instance may have sized its resources for the first stream it saw.
+     */
+    private static String getKey(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            return mime;
+        }
+        int lines = Math.min(format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT));
+        String resolutionClass;
+        if (lines <= 480) {
+            resolutionClass = "sd";
+        } else if (lines <= 720) {
+            resolutionClass = "hd";
+        } else if (lines <= 1080) {
+            resolutionClass = "fhd";
+        } else {
+            resolutionClass = "uhd";
+        }
+        return mime + "/" + resolutionClass;
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link OfflineDecoder}s for many files at once. As many files are decoded concurrently as
+ * there are cores, on a work-stealing {@link ForkJoinPool} from Lollipop on and on a fixed thread
+ * pool before. Decoders are picked through shared {@link DecoderSlots}, so concurrent jobs stay
+ * within the instance limits of the hardware decoders and spill over to software decoders.
+ *
+ * Every job reports its progress and can be cancelled, queued or running. The listener is
+ * called on the {@link Handler} given to {@link #setListener(Listener, Handler)}, with progress
+ * updates every {@link #PROGRESS_INTERVAL_MS} while jobs are running.
+ */
+public class DecodeScheduler {
+
+    private static final String TAG = "DecodeScheduler";
+
+    public static final long PROGRESS_INTERVAL_MS = 500;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    /**
+     * Callback for the progress of the jobs.
+     */
+    public interface Listener {
+        /**
+         * Called periodically for every running job.
+         */
+        void onProgress(Job job);
+
+        /**
+         * Called once a job is done, has failed or was cancelled.
+         */
+        void onJobFinished(Job job);
+    }
+
+    /**
+     * Decoding of one file.
+     */
+    public class Job implements Runnable {
+        private final String mInputPath;
+        private final OfflineDecoder mDecoder;
+
+        private volatile int mState = STATE_QUEUED;
+        private volatile OfflineDecoder.Result mResult;
+        private volatile IOException mError;
+        private Future<?> mFuture;
+
+        Job(String inputPath, File outputFile) {
+            mInputPath = inputPath;
+            mDecoder = new OfflineDecoder(inputPath, outputFile, true);
+            mDecoder.setDecoderSlots(mDecoderSlots);
+        }
+
+        public String getInputPath() {
+            return mInputPath;
+        }
+
+        /**
+         * @return one of the {@code STATE_*} constants.
+         */
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * @return the fraction of the file decoded so far, between 0 and 1.
+         */
+        public float getProgress() {
+            int state = mState;
+            if (state == STATE_DONE) {
+                return 1;
+            }
+            return state == STATE_RUNNING ? mDecoder.getProgress() : 0;
+        }
+
+        /**
+         * @return the outcome of a job that is done, or null.
+         */
+        public OfflineDecoder.Result getResult() {
+            return mResult;
+        }
+
+        /**
+         * @return why a job failed, or null.
+         */
+        public IOException getError() {
+            return mError;
+        }
+
+        /**
+         * Stops the job, or keeps it from running if it hasn't started yet.
+         */
+        public void cancel() {
+            Future<?> future;
+            boolean wasQueued;
+            synchronized (this) {
+                wasQueued = mState == STATE_QUEUED;
+                if (wasQueued) {
+                    mState = STATE_CANCELLED;
+                }
+                future = mFuture;
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (wasQueued) {
+                // It won't run, so nobody else reports it.
+                onJobFinished(this);
+            } else {
+                mDecoder.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mState != STATE_QUEUED) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
+            int state;
+            try {
+                mResult = mDecoder.run();
+                state = STATE_DONE;
+            } catch (InterruptedIOException e) {
+                state = STATE_CANCELLED;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to decode " + mInputPath, e);
+                mError = e;
+                state = STATE_FAILED;
+            }
+            mState = state;
+            onJobFinished(this);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final DecoderSlots mDecoderSlots = new DecoderSlots();
+
+    // Jobs that haven't finished yet.
+    private final List<Job> mJobs = new ArrayList<Job>();
+
+    private Listener mListener;
+    private Handler mHandler;
+    private final Runnable mReportProgress = new Runnable() {
+        @Override
+        public void run() {
+            reportProgress();
+        }
+    };
+
+    /**
+     * Decodes as many files at once as there are cores.
+     */
+    public DecodeScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism How many files to decode at once.
+     */
+    public DecodeScheduler(int parallelism) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mExecutor = createWorkStealingPool(parallelism);
+        } else {
+            mExecutor = Executors.newFixedThreadPool(parallelism);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static ExecutorService createWorkStealingPool(int parallelism) {
+        return new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @param listener the listener for callback.
+     * @param handler message handler for posting the callback.
+     */
+    public void setListener(Listener listener, Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+        if (listener != null && mHandler == null) {
+            if (Looper.myLooper() != null) {
+                mHandler = new Handler();
+            } else {
+                throw new IllegalArgumentException(
+                        "Looper doesn't exist in the calling thread");
+            }
+        }
+    }
+
+    /**
+     * Queues the decoding of {@code inputPath} into the WAV file {@code outputFile}.
+     */
+    public Job submit(String inputPath, File outputFile) {
+        Job job = new Job(inputPath, outputFile);
+        synchronized (this) {
+            mJobs.add(job);
+        }
+        synchronized (job) {
+            job.mFuture = mExecutor.submit(job);
+        }
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mReportProgress);
+            mHandler.postDelayed(mReportProgress, PROGRESS_INTERVAL_MS);
+        }
+        return job;
+    }
+
+    /**
+     * Queues every file in {@code inputDir} with a name ending in {@code extension}, decoding
+     * each into a WAV file of the same name in {@code outputDir}. Files are queued by name.
+     */
+    public List<Job> submitDirectory(File inputDir, final String extension, File outputDir) {
+        File[] inputs = inputDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(extension);
+            }
+        });
+        List<Job> jobs = new ArrayList<Job>();
+        if (inputs == null) {
+            return jobs;
+        }
+        Arrays.sort(inputs);
+        for (File input : inputs) {
+            String name = input.getName();
+            File output = new File(outputDir,
+                    name.substring(0, name.length() - extension.length()) + ".wav");
+            jobs.add(submit(input.getPath(), output));
+        }
+        return jobs;
+    }
+
+    /**
+     * Cancels every job and stops the worker threads. Returns without waiting for the running
+     * jobs to wind down.
+     */
+    public void shutdown() {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<Job>(mJobs);
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            jobs.get(i).cancel();
+        }
+        mExecutor.shutdown();
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mReportProgress);
+        }
+        mListener = null;
+    }
+
+    private void onJobFinished(final Job job) {
+        synchronized (this) {
+            mJobs.remove(job);
+        }
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onJobFinished(job);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports the running jobs to the listener, and schedules the next report while there are
+     * jobs left. Runs on the listener's handler.
+     */
+    private void reportProgress() {
+        List<Job> jobs;
+        synchronized (this) {
+            if (mJobs.isEmpty()) {
+                return;
+            }
+            jobs = new ArrayList<Job>(mJobs);
+        }
+        Listener listener = mListener;
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            if (listener != null && job.getState() == STATE_RUNNING) {
+                listener.onProgress(job);
+            }
+        }
+        mHandler.postDelayed(mReportProgress, PROGRESS_INTERVAL_MS);
+    }
+}
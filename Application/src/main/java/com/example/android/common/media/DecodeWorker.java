@@ -0,0 +1,408 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Pumps a single track on its own thread: feeds samples from a {@link SampleSource} into a
+ * {@link SampleDecoder} and releases decoded samples as the {@link MediaClock} reaches their
+ * presentation time, as decided by a {@link SyncPolicy}. A track without a clock, such as the
+ * audio track that drives the master clock, releases every sample as soon as it is decoded and
+ * is paced by its sink instead. Nothing here runs on the UI thread; the UI is only told when the
+ * track has finished or failed.
+ */
+public class DecodeWorker implements Runnable {
+
+    private static final String TAG = "DecodeWorker";
+
+    // Upper bound for a single idle wait, so a stop request or a clock jump is noticed quickly.
+    private static final long MAX_WAIT_MS = 10;
+
+    /**
+     * Callback for the progress of a track. Called on the {@link Handler} given to
+     * {@link #setListener(Listener, Handler)}.
+     */
+    public interface Listener {
+        /**
+         * The first decoded sample was handed over for presentation, see
+         * {@link #getFirstSampleTimeNs()}.
+         */
+        void onFirstSample(DecodeWorker sender);
+
+        void onEndOfStream(DecodeWorker sender);
+
+        /**
+         * Decoding failed with {@code e} and the track has been shut down. There will be no
+         * {@link #onEndOfStream(DecodeWorker)}.
+         */
+        void onError(DecodeWorker sender, Exception e);
+    }
+
+    private final String mName;
+    private final SampleDecoder mDecoder;
+    private final SampleSource mSource;
+    private final MediaClock mClock;
+    private final boolean mRender;
+    private SyncPolicy mSyncPolicy = new SyncPolicy();
+    private PipelineMetrics mMetrics;
+
+    private Listener mListener;
+    private Handler mHandler;
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private volatile boolean mEndOfStream;
+
+    // True, while decoded samples are held back rather than presented, see setHeld().
+    private volatile boolean mHeld;
+
+    // System.nanoTime() when the first sample was presented, or 0.
+    private volatile long mFirstSampleNs;
+
+    // Seek requested by seekTo() and not yet carried out by the decode thread, or -1.
+    private volatile long mPendingSeekUs = -1;
+
+    // Decoded samples before this time are released without being presented, so a seek lands
+    // on the exact target rather than on the sync sample before it. -1 if there is none.
+    private long mDiscardBeforeUs = -1;
+
+    /**
+     * @param name Name of the decode thread, for debugging.
+     * @param decoder Decoder for the track. The worker takes ownership and releases it.
+     * @param source Compressed samples of the track. The worker takes ownership and releases
+     *               it.
+     * @param clock Clock the decoded samples are released against, or null to release them as
+     *              soon as they are decoded.
+     * @param render True, if the decoded samples are to be presented by the decoder's sink, e.g.
+     *               rendered on the configured surface or played.
+     */
+    public DecodeWorker(String name, SampleDecoder decoder, SampleSource source,
+            MediaClock clock, boolean render) {
+        mName = name;
+        mDecoder = decoder;
+        mSource = source;
+        mClock = clock;
+        mRender = render;
+    }
+
+    /**
+     * @param listener the listener for callback.
+     * @param handler message handler for posting the callback.
+     */
+    public void setListener(Listener listener, Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+        if (listener != null && mHandler == null) {
+            if (Looper.myLooper() != null) {
+                mHandler = new Handler();
+            } else {
+                throw new IllegalArgumentException(
+                        "Looper doesn't exist in the calling thread");
+            }
+        }
+    }
+
+    /**
+     * Sets the policy that schedules decoded samples against the clock. Must be called before
+     * {@link #start()}.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        mSyncPolicy = syncPolicy;
+    }
+
+    /**
+     * Marks the first presented sample on {@code metrics}, for the time to first frame. Must be
+     * called before {@link #start()}.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Asks the decode thread to continue from {@code timeUs}: the source is moved to the sync
+     * sample before it, the decoder is flushed, and the samples decoded before the target are
+     * released without being presented. Returns immediately. Has no effect once the track has
+     * reached its end of stream.
+     */
+    public void seekTo(long timeUs) {
+        mPendingSeekUs = Math.max(timeUs, 0);
+        // Cut a pending wait short.
+        mDecoder.wakeUp();
+    }
+
+    /**
+     * Holds decoded samples back instead of presenting them. The worker keeps feeding the
+     * decoder until its output buffers are full, so a track can be pre-rolled and starts
+     * presenting without delay once it is let go. Can be called before {@link #start()}.
+     */
+    public void setHeld(boolean held) {
+        mHeld = held;
+        if (!held) {
+            // Cut a pending wait short.
+            mDecoder.wakeUp();
+        }
+    }
+
+    /**
+     * Starts the decode thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Worker already started");
+        }
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stops the decode thread and waits for it to release the decoder and the sample source.
+     * The thread is woken up rather than interrupted: an interrupt would close a
+     * {@link java.nio.channels.FileChannel} the sink is writing to.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        mStopped = true;
+        if (thread == null) {
+            return;
+        }
+        mDecoder.wakeUp();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the decode thread to finish, either at the end of the stream, after a failure
+     * or after {@link #stop()}.
+     */
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return True, if every sample of the track has been decoded and handed over, as opposed
+     * to the worker having been stopped or having failed.
+     */
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    @Override
+    public void run() {
+        boolean inputDone = false;
+        boolean outputDone = false;
+        RuntimeException error = null;
+        try {
+            while (!mStopped && !outputDone) {
+                try {
+                    long seekUs = mPendingSeekUs;
+                    if (seekUs >= 0) {
+                        mPendingSeekUs = -1;
+                        performSeek(seekUs);
+                        inputDone = false;
+                    }
+
+                    boolean didWork = false;
+                    long waitMs = MAX_WAIT_MS;
+
+                    // BEGIN_INCLUDE(write_sample)
+                    if (!inputDone && mSyncPolicy.shouldSkipToKeyFrame()
+                            && skipToNextSyncSample()) {
+                        // We're too far behind to catch up frame by frame: don't even decode the
+                        // samples that depend on the frames we've been dropping.
+                        mSyncPolicy.onSkippedToKeyFrame();
+                    }
+                    if (!inputDone) {
+                        // Fill every free input buffer, not just one, so the codec never starves
+                        // while we're waiting on the clock.
+                        didWork = mDecoder.fillAvailable(mSource) > 0;
+                        inputDone = mDecoder.isEndOfInputQueued();
+                    }
+                    // END_INCLUDE(write_sample)
+
+                    // BEGIN_INCLUDE(render_sample)
+                    if (!mHeld && mDecoder.hasSample()) {
+                        if ((mDecoder.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            mDecoder.popSample(false);
+                            outputDone = true;
+                        } else if (mDiscardBeforeUs >= 0
+                                && mDecoder.peekPresentationTimeUs() < mDiscardBeforeUs) {
+                            // Decoding forward from the sync sample to the seek target.
+                            mDecoder.popSample(false);
+                            didWork = true;
+                        } else if (mClock == null) {
+                            // Unpaced: hand over everything that is decoded in one batch, the sink
+                            // blocks as needed.
+                            if (mDecoder.drainReady(Long.MAX_VALUE) > 0) {
+                                onSamplePresented();
+                                didWork = true;
+                            }
+                        } else {
+                            long ptsUs = mDecoder.peekPresentationTimeUs();
+                            long nowNs = System.nanoTime();
+                            long clockUs = mClock.getTimeUs();
+                            switch (mSyncPolicy.decide(ptsUs, clockUs)) {
+                                case SyncPolicy.ACTION_RENDER:
+                                    mDecoder.popSample(mRender,
+                                            mSyncPolicy.getRenderTimeNs(ptsUs, clockUs, nowNs));
+                                    onSamplePresented();
+                                    didWork = true;
+                                    break;
+                                case SyncPolicy.ACTION_DROP:
+                                    mDecoder.popSample(false);
+                                    didWork = true;
+                                    break;
+                                default:
+                                    waitMs = Math.min(MAX_WAIT_MS,
+                                            mSyncPolicy.getWaitUs(ptsUs, clockUs) / 1000 + 1);
+                                    break;
+                            }
+                        }
+                    }
+                    // END_INCLUDE(render_sample)
+
+                    if (!didWork && !outputDone) {
+                        mDecoder.awaitBuffers(waitMs);
+                    }
+                } catch (InterruptedException e) {
+                    // Nobody else interrupts the decode thread; treat it like stop().
+                    mStopped = true;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, mName + ": decoding failed", e);
+                    error = e;
+                    break;
+                }
+            }
+        } finally {
+            try {
+                mDecoder.stopAndRelease();
+            } finally {
+                mSource.release();
+            }
+        }
+
+        if (error != null && !mStopped) {
+            notifyError(error);
+        } else if (outputDone && !mStopped) {
+            mEndOfStream = true;
+            notifyEndOfStream();
+        }
+    }
+
+    /**
+     * @return the number of decoded frames dropped for being late.
+     */
+    public long getDroppedFrameCount() {
+        return mSyncPolicy.getDroppedFrameCount();
+    }
+
+    /**
+     * @return the number of decoded frames rendered late, within the drop threshold.
+     */
+    public long getLateFrameCount() {
+        return mSyncPolicy.getLateFrameCount();
+    }
+
+    /**
+     * Moves the source to the sync sample at or before {@code timeUs} and drops everything
+     * the decoder holds. Runs on the decode thread, which owns both.
+     */
+    private void performSeek(long timeUs) {
+        mSource.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mDecoder.flush();
+        mSyncPolicy.reset();
+        mDiscardBeforeUs = timeUs;
+    }
+
+    /**
+     * Advances the source to the next sync sample without decoding the samples in between.
+     * With a read-ahead source this only skips as far as has been read so far.
+     *
+     * @return True, if the source is at a sync sample or at its end, false if it ran out of
+     * samples read ahead before that.
+     */
+    private boolean skipToNextSyncSample() {
+        while (mSource.isReady()) {
+            if (mSource.getSampleTime() < 0
+                    || (mSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                return true;
+            }
+            mSource.advance();
+        }
+        return false;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} at which the first decoded sample was handed over for
+     * presentation, or 0 if none has been yet.
+     */
+    public long getFirstSampleTimeNs() {
+        return mFirstSampleNs;
+    }
+
+    private void onSamplePresented() {
+        if (mFirstSampleNs != 0) {
+            return;
+        }
+        mFirstSampleNs = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.markFirstSample();
+        }
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFirstSample(DecodeWorker.this);
+            }
+        });
+    }
+
+    private void notifyEndOfStream() {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onEndOfStream(DecodeWorker.this);
+            }
+        });
+    }
+
+    private void notifyError(final Exception e) {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(DecodeWorker.this, e);
+            }
+        });
+    }
+}
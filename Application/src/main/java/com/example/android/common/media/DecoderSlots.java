@@ -0,0 +1,135 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands out decoder names so that concurrent decodes never ask a codec for more instances than
+ * it supports. Every decoder gets as many slots as
+ * {@link MediaCodecInfo.CodecCapabilities#getMaxSupportedInstances()} reports. Hardware
+ * decoders are preferred; once their slots are taken, decodes fall back to software decoders,
+ * and only wait when those are exhausted too.
+ *
+ * Thread safe.
+ */
+public class DecoderSlots {
+
+    /**
+     * Instances assumed per decoder before Marshmallow, where the limit can't be queried.
+     */
+    public static final int DEFAULT_MAX_INSTANCES = 2;
+
+    // Decoder names per mime type, hardware decoders first.
+    private final HashMap<String, String[]> mDecoders = new HashMap<String, String[]>();
+    // Free instances per decoder name.
+    private final HashMap<String, Semaphore> mSlots = new HashMap<String, Semaphore>();
+
+    /**
+     * Reserves an instance of a decoder for {@code format}, waiting for one to become free if
+     * all of them are taken. Pass the name to {@link #release(String)} once the decoder has
+     * been released.
+     *
+     * @return the name of the decoder to create.
+     * @throws IOException if the device has no decoder for the format.
+     */
+    public String acquire(MediaFormat format) throws IOException, InterruptedException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        String[] names = getDecoders(mime);
+        if (names.length == 0) {
+            throw new IOException("No decoder for " + mime);
+        }
+        for (String name : names) {
+            if (getSlot(name).tryAcquire()) {
+                return name;
+            }
+        }
+        // Everything is taken: wait for the last resort, the least preferred decoder.
+        String name = names[names.length - 1];
+        getSlot(name).acquire();
+        return name;
+    }
+
+    /**
+     * Frees an instance reserved by {@link #acquire(MediaFormat)}.
+     */
+    public void release(String name) {
+        getSlot(name).release();
+    }
+
+    private synchronized String[] getDecoders(String mime) {
+        String[] names = mDecoders.get(mime);
+        if (names == null) {
+            names = findDecoders(mime);
+            mDecoders.put(mime, names);
+        }
+        return names;
+    }
+
+    private synchronized Semaphore getSlot(String name) {
+        Semaphore slot = mSlots.get(name);
+        if (slot == null) {
+            slot = new Semaphore(DEFAULT_MAX_INSTANCES);
+            mSlots.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Lists the decoders for {@code mime} and sizes their slots. Called with the lock held.
+     */
+    @SuppressWarnings("deprecation")
+    private String[] findDecoders(String mime) {
+        ArrayList<String> hardware = new ArrayList<String>();
+        ArrayList<String> software = new ArrayList<String>();
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            String name = info.getName();
+            if (!mSlots.containsKey(name)) {
+                mSlots.put(name, new Semaphore(getMaxInstances(info, mime)));
+            }
+            (isHardwareAccelerated(info) ? hardware : software).add(name);
+        }
+        hardware.addAll(software);
+        return hardware.toArray(new String[hardware.size()]);
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getMaxInstances(MediaCodecInfo info, String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return DEFAULT_MAX_INSTANCES;
+        }
+        return Math.max(getMaxSupportedInstances(info, mime), 1);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getMaxSupportedInstances(MediaCodecInfo info, String mime) {
+        return info.getCapabilitiesForType(mime).getMaxSupportedInstances();
+    }
+
+    private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+        // The platform's software codecs are only recognizable by name.
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.")
+                && !name.contains(".sw.");
+    }
+}
@@ -0,0 +1,1002 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Owns the buffer state machine of a decoding {@link MediaCodec}: which input buffers are free,
+ * which output buffers hold decoded data, and how both are synchronized with the codec in
+ * polled or callback mode. What happens to a decoded buffer is up to the {@link OutputSink}
+ * the wrapper was created with.
+ *
+ * {@link MediaCodecWrapper} and {@link AudioMediaCodecWrapper} are thin adapters over this class.
+ */
+public class DecoderWrapper implements SampleDecoder {
+
+    // Initial size of the free input slot queue in asynchronous mode, where the number of codec
+    // buffers isn't known up front. The queue grows if the codec hands out more.
+    private static final int DEFAULT_BUFFER_COUNT = 16;
+
+    // Capacity of the output queue, more than any codec holds at once. In asynchronous mode the
+    // callback thread would wait for room if it ever filled up.
+    private static final int OUTPUT_QUEUE_CAPACITY = 64;
+
+    // Size of the table of queued samples whose queueing time is remembered for the decode
+    // latency, a power of two well above what a codec holds at once.
+    private static final int IN_FLIGHT_CAPACITY = 128;
+
+    // Entries of the in-flight table a sample may go to, starting at the one its presentation
+    // time hashes to. If all of them are taken, the oldest is overwritten.
+    private static final int IN_FLIGHT_PROBES = 4;
+
+    // Marks a free entry of the in-flight table.
+    private static final long NO_SAMPLE = Long.MIN_VALUE;
+
+    /**
+     * The {@link MediaCodec} that is managed by this class.
+     */
+    private Codec mDecoder;
+
+    // Receives every decoded buffer.
+    private final OutputSink mSink;
+
+    // True, if the codec was configured with an output surface, in which case the output
+    // buffers carry no data we can read.
+    private boolean mRendersToSurface;
+
+    // Pool the codec goes back to when we're done with it, or null to release it. The format
+    // the codec was configured with picks the pool slot.
+    private CodecPool mCodecPool;
+    private MediaFormat mFormat;
+
+    // References to the internal buffers managed by the codec. The codec
+    // refers to these buffers by index, never by reference so it's up to us
+    // to keep track of which buffer is which.
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    // Indices of the input buffers that are currently available for writing. We'll
+    // consume these in the order they were dequeued from the codec.
+    private IntRingQueue mAvailableInputBuffers;
+
+    // The output buffers that currently hold valid data with their metadata, in the order
+    // they were produced by the codec. Filled by the callback thread in asynchronous mode and
+    // by update() otherwise, and drained by the thread pulling samples, without locking.
+    private SpscRing mOutputQueue;
+
+    // Metadata of the output buffer being handed to the sink, reused across buffers. Only
+    // touched by the thread pulling samples.
+    private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+
+    // Target of dequeueOutputBuffer() in update(), reused across calls.
+    private final MediaCodec.BufferInfo mDequeueInfo = new MediaCodec.BufferInfo();
+
+    // True, if the codec pushes buffer indices to us through a MediaCodec.Callback instead of
+    // being polled in update().
+    private final boolean mAsync;
+
+    // Thread the MediaCodec.Callback methods are called on, in asynchronous mode.
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+
+    // Flushes whose completion hasn't run on the callback thread yet, in asynchronous mode.
+    // Buffers the codec hands over in the meantime predate the flush and are dropped. Written
+    // under mLock.
+    private volatile int mPendingFlushes;
+    // The output queue's produced count when the last pending flush completed. Everything
+    // published before it is stale. Written before mPendingFlushes drops to zero.
+    private volatile long mFlushOutputMark;
+    // True, while the feeding thread hasn't caught up with its latest flush. Only touched by
+    // the feeding thread.
+    private boolean mAwaitingFlush;
+
+    // Guards the input buffer queue, which the callback thread fills in asynchronous mode.
+    private final Object mLock = new Object();
+
+    // Number of input buffers the callback thread has handed to us, and the input and output
+    // counts observed by the last awaitBuffers() call.
+    private volatile long mInputEvents;
+    private long mSeenInputEvents;
+    private long mSeenOutputCount;
+
+    // Set by wakeUp() to end the current or next awaitBuffers(). In synchronous mode the wait
+    // is on mWakeUpLock.
+    private volatile boolean mWakeUpPending;
+    private final Object mWakeUpLock = new Object();
+
+    // True, once a buffer flagged end-of-stream has been queued. Only touched by the feeding
+    // thread.
+    private boolean mEndOfInputQueued;
+
+    // Error reported by the codec in asynchronous mode, rethrown on the next update().
+    private volatile IllegalStateException mError;
+
+    // Target of getSampleCryptoInfo(), reused across samples. Per wrapper, since every track is
+    // fed from a thread of its own.
+    private final MediaCodec.CryptoInfo mCryptoInfo = new MediaCodec.CryptoInfo();
+
+    // Receives the decode and render times, or null.
+    private PipelineMetrics mMetrics;
+
+    // Presentation times of the samples in the codec and when they were queued, in a table
+    // hashed by presentation time, which is what an output buffer is matched by since the codec
+    // may reorder frames. Samples are queued and their output taken off the queue by the same
+    // thread, so the table isn't locked.
+    private final long[] mInFlightPtsUs = new long[IN_FLIGHT_CAPACITY];
+    private final long[] mInFlightQueuedNs = new long[IN_FLIGHT_CAPACITY];
+
+    /**
+     * Wraps a codec that has been created but not configured yet. Call
+     * {@link #configure(MediaFormat, Surface)} and {@link #start()} afterwards.
+     *
+     * @param codec The codec to manage.
+     * @param sink Destination for the decoded buffers.
+     * @param async True, to have the codec push its buffers through a {@link MediaCodec.Callback}
+     *              instead of polling for them. Ignored before Marshmallow.
+     */
+    protected DecoderWrapper(MediaCodec codec, OutputSink sink, boolean async) {
+        // Before Marshmallow the callbacks go to the looper of whichever thread created the
+        // codec, which a flush can't be ordered against, see flush().
+        this(new PlatformCodec(codec), sink,
+                async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+    }
+
+    /**
+     * Like {@link #DecoderWrapper(MediaCodec, OutputSink, boolean)}, but wraps any
+     * {@link Codec}, e.g. a fake one, and takes {@code async} as is.
+     */
+    DecoderWrapper(Codec codec, OutputSink sink, boolean async) {
+        mDecoder = codec;
+        mSink = sink;
+        mAsync = async;
+        mAvailableInputBuffers = new IntRingQueue(DEFAULT_BUFFER_COUNT);
+        mOutputQueue = new SpscRing(OUTPUT_QUEUE_CAPACITY, SpscRing.WAIT_PARK);
+        Arrays.fill(mInFlightPtsUs, NO_SAMPLE);
+        if (mAsync) {
+            setCallback();
+        }
+    }
+
+    /**
+     * Creates, configures and starts a decoder for {@code format} that hands its output to
+     * {@code sink}, without an output surface.
+     *
+     * @param async True, to have the codec push its buffers through a {@link MediaCodec.Callback}
+     *              instead of polling for them. Ignored before Marshmallow.
+     * @param pool Pool to take the codec from and hand it back to on
+     *             {@link #stopAndRelease()}, or null to create one.
+     */
+    public static DecoderWrapper fromFormat(MediaFormat format, OutputSink sink, boolean async,
+            CodecPool pool) throws IOException {
+        MediaCodec codec = pool != null ? pool.acquire(format)
+                : MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        // The wrapper has to install its callback before the codec is configured.
+        DecoderWrapper result = new DecoderWrapper(codec, sink, async);
+        result.setCodecPool(pool);
+        result.configure(format, null);
+        result.start();
+        return result;
+    }
+
+    /**
+     * Like {@link #fromFormat(MediaFormat, OutputSink, boolean, CodecPool)}, but creates the
+     * decoder named {@code codecName} instead of the default one for the format.
+     */
+    public static DecoderWrapper fromCodecName(String codecName, MediaFormat format,
+            OutputSink sink, boolean async) throws IOException {
+        DecoderWrapper result = new DecoderWrapper(MediaCodec.createByCodecName(codecName), sink,
+                async);
+        result.configure(format, null);
+        result.start();
+        return result;
+    }
+
+    /**
+     * Configures the codec for decoding.
+     *
+     * @param format The format of the media object to be decoded.
+     * @param surface Surface to render the decoded frames, or null.
+     */
+    protected void configure(MediaFormat format, Surface surface) {
+        mFormat = format;
+        mRendersToSurface = surface != null;
+        mDecoder.configure(format, surface);
+    }
+
+    /**
+     * Starts the configured codec. In synchronous mode the buffer arrays are fetched here.
+     */
+    protected void start() {
+        mDecoder.start();
+        if (!mAsync) {
+            mInputBuffers = mDecoder.getInputBuffers();
+            mOutputBuffers = mDecoder.getOutputBuffers();
+            mAvailableInputBuffers = new IntRingQueue(mInputBuffers.length);
+            ensureOutputQueueCapacity(mOutputBuffers.length);
+        }
+    }
+
+    /**
+     * Has {@link #stopAndRelease()} hand the codec back to {@code pool} instead of releasing
+     * it.
+     */
+    protected void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * @return True, if the codec was taken from the idle decoders of a {@link CodecPool} rather
+     * than created for this wrapper.
+     */
+    public boolean isCodecReused() {
+        CodecPool pool = mCodecPool;
+        Codec codec = mDecoder;
+        return pool != null && codec != null && pool.isReused(codec.getMediaCodec());
+    }
+
+    /**
+     * Records the decode latency of every sample, from being queued to its output being
+     * dequeued, and the time the sink takes for every output buffer to {@code metrics}. Must be
+     * called before the first sample is written.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Releases resources and ends the encoding/decoding session.
+     */
+    @Override
+    public void stopAndRelease() {
+        Codec codec;
+        synchronized (mLock) {
+            // A flush completing on the callback thread must not resume the codec anymore.
+            codec = mDecoder;
+            mDecoder = null;
+        }
+        codec.stop();
+        if (mCodecPool != null) {
+            mCodecPool.release(codec.getMediaCodec(), mFormat);
+        } else {
+            codec.release();
+        }
+        mSink.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+    }
+
+    /**
+     * Discards all queued input and decoded output and flushes the sink. Every buffer index
+     * we're holding goes back to the codec.
+     *
+     * In asynchronous mode, callbacks the codec posted before the flush may still be waiting on
+     * the callback thread, with indices that are no longer ours. So the flush is completed by a
+     * message posted behind them: until it has run, buffers handed over are dropped, and only
+     * then is the codec resumed.
+     */
+    @Override
+    public void flush() {
+        mDecoder.flush();
+        synchronized (mLock) {
+            mAvailableInputBuffers.clear();
+            mSeenInputEvents = mInputEvents;
+            if (mAsync) {
+                mPendingFlushes++;
+            }
+        }
+        if (mAsync) {
+            mAwaitingFlush = true;
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    completeFlush();
+                }
+            });
+        } else {
+            // Output is queued on this thread, so the queue can be emptied right away.
+            mOutputQueue.clear();
+        }
+        mSeenOutputCount = mOutputQueue.getProducedCount();
+        mEndOfInputQueued = false;
+        Arrays.fill(mInFlightPtsUs, NO_SAMPLE);
+        mSink.flush();
+    }
+
+    /**
+     * Runs on the callback thread once every callback posted before a flush has been handled.
+     * The last of several overlapping flushes resumes the codec, which in callback mode doesn't
+     * hand out input buffers again until then.
+     */
+    private void completeFlush() {
+        synchronized (mLock) {
+            if (mPendingFlushes > 1) {
+                mPendingFlushes--;
+                return;
+            }
+            mAvailableInputBuffers.clear();
+            mFlushOutputMark = mOutputQueue.getProducedCount();
+            mPendingFlushes = 0;
+            if (mDecoder == null) {
+                // Stopped in the meantime.
+                return;
+            }
+            try {
+                mDecoder.start();
+            } catch (IllegalStateException e) {
+                mError = e;
+            }
+        }
+        mOutputQueue.signal();
+    }
+
+    /**
+     * @return True, if the codec runs in asynchronous callback mode.
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * @return the sink the decoded buffers are handed to.
+     */
+    public OutputSink getOutputSink() {
+        return mSink;
+    }
+
+    /**
+     * Called whenever the codec reports a new output format, after the sink has been told.
+     * In asynchronous mode this runs on the codec callback thread.
+     */
+    protected void onOutputFormatChanged(MediaFormat newFormat) {
+    }
+
+    /**
+     * Write a media sample to the decoder.
+     *
+     * A "sample" here refers to a single atomic access unit in the media stream. The definition
+     * of "access unit" is dependent on the type of encoding used, but it typically refers to
+     * a single frame of video or a few seconds of audio. {@link android.media.MediaExtractor}
+     * extracts data from a stream one sample at a time.
+     *
+     * @param input A ByteBuffer containing the input data for one sample. The buffer must be set
+     * up for reading, with its position set to the beginning of the sample data and its limit
+     * set to the end of the sample data.
+     *
+     * @param presentationTimeUs  The time, relative to the beginning of the media stream,
+     * at which this buffer should be rendered.
+     *
+     * @param flags Flags to pass to the decoder. See {@link MediaCodec#queueInputBuffer(int,
+     * int, int, long, int)}
+     *
+     * @throws MediaCodec.CryptoException
+     */
+    public boolean writeSample(final ByteBuffer input,
+            final MediaCodec.CryptoInfo crypto,
+            final long presentationTimeUs,
+            final int flags) throws MediaCodec.CryptoException, WriteException {
+        boolean result = false;
+        int size = input.remaining();
+
+        // check if we have dequed input buffers available from the codec
+        int index;
+        if (size > 0 && (index = nextAvailableInputBuffer()) >= 0) {
+            ByteBuffer buffer = getInputBuffer(index);
+
+            // we can't write our sample to a lesser capacity input buffer.
+            if (size > buffer.capacity()) {
+                throw new WriteException(String.format(Locale.US,
+                        "Insufficient capacity in MediaCodec buffer: "
+                            + "tried to write %d, buffer capacity is %d.",
+                        input.remaining(),
+                        buffer.capacity()));
+            }
+
+            buffer.clear();
+            buffer.put(input);
+
+            // Submit the buffer to the codec for decoding. The presentationTimeUs
+            // indicates the position (play time) for the current sample.
+            if (crypto == null) {
+                mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+            } else {
+                mDecoder.queueSecureInputBuffer(index, 0, crypto, presentationTimeUs, flags);
+            }
+            recordInputQueued(presentationTimeUs, flags);
+            if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEndOfInputQueued = true;
+            }
+            result = true;
+        }
+        return result;
+    }
+
+    /**
+     * Write a media sample to the decoder.
+     *
+     * A "sample" here refers to a single atomic access unit in the media stream. The definition
+     * of "access unit" is dependent on the type of encoding used, but it typically refers to
+     * a single frame of video or a few seconds of audio. {@link android.media.MediaExtractor}
+     * extracts data from a stream one sample at a time.
+     *
+     * @param extractor  Instance of {@link android.media.MediaExtractor} wrapping the media.
+     *
+     * @param presentationTimeUs The time, relative to the beginning of the media stream,
+     * at which this buffer should be rendered.
+     *
+     * @param flags  Flags to pass to the decoder. See {@link MediaCodec#queueInputBuffer(int,
+     * int, int, long, int)}
+     *
+     * @throws MediaCodec.CryptoException
+     */
+    @Override
+    public boolean writeSample(final MediaExtractor extractor,
+            final boolean isSecure,
+            final long presentationTimeUs,
+            int flags) {
+        boolean result = false;
+
+        int index = nextAvailableInputBuffer();
+        if (index >= 0) {
+            ByteBuffer buffer = getInputBuffer(index);
+
+            // reads the sample from the file using extractor into the buffer
+            int size = extractor.readSampleData(buffer, 0);
+            if (size <= 0) {
+                size = 0;
+                flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            }
+
+            // Submit the buffer to the codec for decoding. The presentationTimeUs
+            // indicates the position (play time) for the current sample.
+            if (!isSecure) {
+                mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+            } else {
+                extractor.getSampleCryptoInfo(mCryptoInfo);
+                mDecoder.queueSecureInputBuffer(index, 0, mCryptoInfo, presentationTimeUs, flags);
+            }
+            recordInputQueued(presentationTimeUs, flags);
+            if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEndOfInputQueued = true;
+            }
+
+            result = true;
+        }
+        return result;
+    }
+
+    /**
+     * Queues samples from {@code source} into every free input buffer, advancing the source
+     * past each sample queued. When the source runs out of samples an empty end-of-stream
+     * buffer is queued, after which this does nothing. Stops early if the source has no sample
+     * ready.
+     *
+     * @return the number of input buffers queued.
+     */
+    @Override
+    public int fillAvailable(SampleSource source) {
+        // dequeue available buffers and synchronize our data structures with the codec.
+        update();
+        int count = 0;
+        while (!mEndOfInputQueued && source.isReady()) {
+            long sampleTime = source.getSampleTime();
+            if (sampleTime < 0) {
+                // No samples left: queue an empty end-of-stream buffer so the codec drains
+                // everything it still holds.
+                if (!writeSample(source, false, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)) {
+                    break;
+                }
+            } else {
+                // The extractor's sample flags don't share the values of the codec's buffer
+                // flags (SAMPLE_FLAG_ENCRYPTED is BUFFER_FLAG_CODEC_CONFIG), so translate them.
+                int sampleFlags = source.getSampleFlags();
+                int flags = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                boolean isSecure = (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0;
+                if (!writeSample(source, isSecure, sampleTime, flags)) {
+                    break;
+                }
+                source.advance();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the current sample of {@code source} into a free input buffer and queues it.
+     *
+     * @return True, if an input buffer was available.
+     */
+    private boolean writeSample(SampleSource source, boolean isSecure, long presentationTimeUs,
+            int flags) {
+        int index = nextAvailableInputBuffer();
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer buffer = getInputBuffer(index);
+
+        int size = source.readSampleData(buffer, 0);
+        if (size <= 0) {
+            size = 0;
+            flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        }
+
+        if (!isSecure) {
+            mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        } else {
+            source.getSampleCryptoInfo(mCryptoInfo);
+            mDecoder.queueSecureInputBuffer(index, 0, mCryptoInfo, presentationTimeUs, flags);
+        }
+        recordInputQueued(presentationTimeUs, flags);
+        if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mEndOfInputQueued = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return True, if the end-of-stream input buffer has been queued.
+     */
+    @Override
+    public boolean isEndOfInputQueued() {
+        return mEndOfInputQueued;
+    }
+
+    /**
+     * Performs a peek() operation in the queue to extract media info for the buffer ready to be
+     * released i.e. the head element of the queue.
+     *
+     * @param out_bufferInfo An output var to hold the buffer info.
+     *
+     * @return True, if the peek was successful.
+     */
+    @Override
+    public boolean peekSample(MediaCodec.BufferInfo out_bufferInfo) {
+        // dequeue available buffers and synchronize our data structures with the codec.
+        update();
+        if (mOutputQueue.isEmpty()) {
+            return false;
+        }
+        // metadata of the sample
+        copyHeadInfo(out_bufferInfo);
+        return true;
+    }
+
+    /**
+     * Hands the output buffer available at the head of the queue to the {@link OutputSink},
+     * which processes and releases it.
+     *
+     * @param render True, if the sample is to be presented, e.g. rendered on the configured
+     *               {@link Surface}.
+     */
+    @Override
+    public void popSample(boolean render) {
+        popSample(render, 0);
+    }
+
+    /**
+     * Hands the output buffer available at the head of the queue to the {@link OutputSink},
+     * which processes and releases it.
+     *
+     * @param render True, if the sample is to be presented, e.g. rendered on the configured
+     *               {@link Surface}.
+     * @param renderTimeNs When to present the sample, on the {@link System#nanoTime()} timeline,
+     *                     or 0 to present it as soon as possible.
+     */
+    @Override
+    public void popSample(boolean render, long renderTimeNs) {
+        // dequeue available buffers and synchronize our data structures with the codec.
+        update();
+        if (mOutputQueue.isEmpty()) {
+            return;
+        }
+        int index = removeOutput();
+        releaseOutputBuffer(mSink, index, mOutputInfo, render, renderTimeNs);
+    }
+
+    /**
+     * Hands every output buffer due at {@code clockUs} to the wrapper's own {@link OutputSink}.
+     *
+     * @see #drainReady(long, OutputSink)
+     */
+    @Override
+    public int drainReady(long clockUs) {
+        return drainReady(clockUs, mSink);
+    }
+
+    /**
+     * Hands every output buffer whose presentation time is at or before {@code clockUs} to
+     * {@code sink} in one go, to be presented right away. Stops at the first buffer that is not
+     * due yet and at the end-of-stream buffer, which stays at the head of the queue so the
+     * caller can see it. Pass {@link Long#MAX_VALUE} to release everything that is decoded.
+     *
+     * @return the number of buffers released.
+     */
+    @Override
+    public int drainReady(long clockUs, OutputSink sink) {
+        // dequeue available buffers and synchronize our data structures with the codec.
+        update();
+        int count = 0;
+        while (!mOutputQueue.isEmpty()) {
+            if ((mOutputQueue.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                    || mOutputQueue.peekPresentationTimeUs() > clockUs) {
+                break;
+            }
+            int index = removeOutput();
+            releaseOutputBuffer(sink, index, mOutputInfo, true, 0);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Synchronizes with the codec and checks for a decoded sample at the head of the queue. The
+     * {@code peek*()} getters read that sample's metadata without allocating.
+     *
+     * @return True, if a decoded sample is available.
+     */
+    @Override
+    public boolean hasSample() {
+        update();
+        return !mOutputQueue.isEmpty();
+    }
+
+    /**
+     * @return the presentation time of the sample at the head of the queue.
+     * @throws java.util.NoSuchElementException if no sample is available.
+     */
+    @Override
+    public long peekPresentationTimeUs() {
+        return mOutputQueue.peekPresentationTimeUs();
+    }
+
+    /**
+     * @return the size in bytes of the sample at the head of the queue.
+     * @throws java.util.NoSuchElementException if no sample is available.
+     */
+    @Override
+    public int peekSize() {
+        return mOutputQueue.peekSize();
+    }
+
+    /**
+     * @return the {@link MediaCodec} buffer flags of the sample at the head of the queue.
+     * @throws java.util.NoSuchElementException if no sample is available.
+     */
+    @Override
+    public int peekFlags() {
+        return mOutputQueue.peekFlags();
+    }
+
+    /**
+     * Blocks until the codec hands over a new input or output buffer, {@link #wakeUp()} is
+     * called, or the timeout elapses. In synchronous mode the codec can't wake us up, so this
+     * waits out the timeout unless woken up.
+     *
+     * @param timeoutMs Maximum time to wait, in milliseconds.
+     */
+    @Override
+    public void awaitBuffers(long timeoutMs) throws InterruptedException {
+        if (!mAsync) {
+            synchronized (mWakeUpLock) {
+                if (!mWakeUpPending) {
+                    mWakeUpLock.wait(timeoutMs);
+                }
+                mWakeUpPending = false;
+            }
+            return;
+        }
+        // The callback thread wakes the output queue's consumer for input buffers and errors
+        // too, so a single wait covers every event.
+        long deadlineNs = System.nanoTime() + timeoutMs * 1000000;
+        while (mOutputQueue.getProducedCount() == mSeenOutputCount
+                && mInputEvents == mSeenInputEvents && mError == null && !mWakeUpPending) {
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0 || !mOutputQueue.await(mSeenOutputCount, remainingNs)) {
+                break;
+            }
+        }
+        mWakeUpPending = false;
+        mSeenOutputCount = mOutputQueue.getProducedCount();
+        mSeenInputEvents = mInputEvents;
+    }
+
+    @Override
+    public void wakeUp() {
+        if (mAsync) {
+            mWakeUpPending = true;
+            mOutputQueue.signal();
+            return;
+        }
+        synchronized (mWakeUpLock) {
+            mWakeUpPending = true;
+            mWakeUpLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the head off the output queue, copying its metadata to mOutputInfo.
+     *
+     * @return the index of the output buffer.
+     */
+    private int removeOutput() {
+        int index = mOutputQueue.peekIndex();
+        copyHeadInfo(mOutputInfo);
+        long dequeuedNs = mOutputQueue.peekTimestamp();
+        mOutputQueue.remove();
+        recordOutputDequeued(mOutputInfo, dequeuedNs);
+        return index;
+    }
+
+    /**
+     * Copies the metadata of the head of the output queue to {@code info}. The fields are
+     * written directly since {@link MediaCodec.BufferInfo#set} does nothing in the stub
+     * android.jar the local unit tests run against.
+     */
+    private void copyHeadInfo(MediaCodec.BufferInfo info) {
+        info.offset = mOutputQueue.peekOffset();
+        info.size = mOutputQueue.peekSize();
+        info.presentationTimeUs = mOutputQueue.peekPresentationTimeUs();
+        info.flags = mOutputQueue.peekFlags();
+    }
+
+    /**
+     * Hands a buffer taken off the output queue to {@code sink}, which releases it.
+     */
+    private void releaseOutputBuffer(OutputSink sink, int index, MediaCodec.BufferInfo info,
+            boolean render, long renderTimeNs) {
+        ByteBuffer buffer = null;
+        if (!mRendersToSurface) {
+            buffer = getOutputBuffer(index);
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+        }
+        if (mMetrics == null) {
+            sink.onOutputBuffer(mDecoder.getMediaCodec(), index, buffer, info, render,
+                    renderTimeNs);
+            return;
+        }
+        long startNs = System.nanoTime();
+        sink.onOutputBuffer(mDecoder.getMediaCodec(), index, buffer, info, render, renderTimeNs);
+        mMetrics.record(PipelineMetrics.STAGE_RENDER, System.nanoTime() - startNs);
+    }
+
+    /**
+     * Remembers when the sample with {@code presentationTimeUs} went into the codec.
+     */
+    private void recordInputQueued(long presentationTimeUs, int flags) {
+        if (mMetrics == null || (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            return;
+        }
+        int home = inFlightSlot(presentationTimeUs);
+        int slot = home;
+        for (int i = 0; i < IN_FLIGHT_PROBES; i++) {
+            int probe = (home + i) & (IN_FLIGHT_CAPACITY - 1);
+            long ptsUs = mInFlightPtsUs[probe];
+            if (ptsUs == NO_SAMPLE || ptsUs == presentationTimeUs) {
+                slot = probe;
+                break;
+            }
+            if (mInFlightQueuedNs[probe] < mInFlightQueuedNs[slot]) {
+                slot = probe;
+            }
+        }
+        mInFlightPtsUs[slot] = presentationTimeUs;
+        mInFlightQueuedNs[slot] = System.nanoTime();
+    }
+
+    /**
+     * Records the decode latency of an output buffer the codec handed over at
+     * {@code dequeuedNs}, if its input was seen. Runs on the thread pulling samples, off the
+     * codec's callback thread.
+     */
+    private void recordOutputDequeued(MediaCodec.BufferInfo info, long dequeuedNs) {
+        if (mMetrics == null || dequeuedNs == 0
+                || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            return;
+        }
+        int home = inFlightSlot(info.presentationTimeUs);
+        for (int i = 0; i < IN_FLIGHT_PROBES; i++) {
+            int slot = (home + i) & (IN_FLIGHT_CAPACITY - 1);
+            if (mInFlightPtsUs[slot] == info.presentationTimeUs) {
+                mInFlightPtsUs[slot] = NO_SAMPLE;
+                mMetrics.record(PipelineMetrics.STAGE_DECODE,
+                        dequeuedNs - mInFlightQueuedNs[slot]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the entry of the in-flight table a presentation time hashes to. Presentation
+     * times tend to be multiples of the frame duration, so their bits are mixed first.
+     */
+    private static int inFlightSlot(long presentationTimeUs) {
+        return (int) ((presentationTimeUs * 0x9E3779B97F4A7C15L) >>> 32)
+                & (IN_FLIGHT_CAPACITY - 1);
+    }
+
+    /**
+     * @return the time to stamp an output buffer with for the decode latency, or 0 if it isn't
+     * measured.
+     */
+    private long outputTimestamp() {
+        return mMetrics != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Replaces the output queue with a larger one if the codec has more output buffers than it
+     * holds. Only used in synchronous mode, where the queue is empty at this point and filled
+     * on the same thread that drains it.
+     */
+    private void ensureOutputQueueCapacity(int bufferCount) {
+        if (bufferCount > mOutputQueue.capacity()) {
+            mOutputQueue = new SpscRing(bufferCount, SpscRing.WAIT_PARK);
+            mSeenOutputCount = 0;
+        }
+    }
+
+    private int nextAvailableInputBuffer() {
+        synchronized (mLock) {
+            return mAvailableInputBuffers.isEmpty() ? -1 : mAvailableInputBuffers.remove();
+        }
+    }
+
+    private ByteBuffer getInputBuffer(int index) {
+        return mAsync ? mDecoder.getInputBuffer(index) : mInputBuffers[index];
+    }
+
+    private ByteBuffer getOutputBuffer(int index) {
+        return mAsync ? mDecoder.getOutputBuffer(index) : mOutputBuffers[index];
+    }
+
+    private void handleOutputFormatChanged(MediaFormat newFormat) {
+        mSink.onOutputFormatChanged(newFormat);
+        onOutputFormatChanged(newFormat);
+    }
+
+    /**
+     * Installs a {@link MediaCodec.Callback} that pushes buffer indices into our queues as soon
+     * as the codec releases them. Must be called before the codec is configured.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCallback() {
+        MediaCodec.Callback callback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                synchronized (mLock) {
+                    if (mPendingFlushes > 0) {
+                        // Taken back by the flush.
+                        return;
+                    }
+                    mAvailableInputBuffers.ensureCapacity(index + 1);
+                    mAvailableInputBuffers.add(index);
+                    mInputEvents++;
+                }
+                mOutputQueue.signal();
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                    MediaCodec.BufferInfo info) {
+                if (mPendingFlushes > 0) {
+                    // Taken back by the flush.
+                    return;
+                }
+                // No lock on the way to the decode thread; the queue wakes it if it is
+                // waiting. Should a flush come in between, completeFlush() marks this buffer
+                // as stale.
+                mOutputQueue.put(index, info.offset, info.size, info.presentationTimeUs,
+                        info.flags, outputTimestamp());
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                mError = e;
+                mOutputQueue.signal();
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                handleOutputFormatChanged(format);
+            }
+        };
+
+        // Keep the callbacks off the thread that created the codec, which is usually the UI
+        // thread.
+        mCallbackThread = new HandlerThread("MediaCodecCallback");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mDecoder.setCallback(callback, mCallbackHandler);
+    }
+
+    /**
+     * Synchronize this object's state with the internal state of the wrapped
+     * MediaCodec.
+     */
+    private void update() {
+        if (mAsync) {
+            // The callback has already put everything in place.
+            IllegalStateException error = mError;
+            if (error != null) {
+                throw error;
+            }
+            if (mAwaitingFlush) {
+                // Drop the output that predates the flush. Whatever was published before the
+                // flush is seen pending again is stale too, while the rest may not be.
+                long producedCount = mOutputQueue.getProducedCount();
+                if (mPendingFlushes == 0) {
+                    mOutputQueue.discardTo(mFlushOutputMark);
+                    mAwaitingFlush = false;
+                } else {
+                    mOutputQueue.discardTo(producedCount);
+                }
+            }
+            return;
+        }
+
+        // BEGIN_INCLUDE(update_codec_state)
+        int index;
+
+        // Get valid input buffers from the codec to fill later in the same order they were
+        // made available by the codec.
+        while ((index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            synchronized (mLock) {
+                mAvailableInputBuffers.add(index);
+            }
+        }
+
+
+        // Likewise with output buffers. If the output buffers have changed, start using the
+        // new set of output buffers. If the output format has changed, notify listeners.
+        MediaCodec.BufferInfo info = mDequeueInfo;
+        while ((index = mDecoder.dequeueOutputBuffer(info, 0)) !=  MediaCodec.INFO_TRY_AGAIN_LATER) {
+            switch (index) {
+                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                    mOutputBuffers = mDecoder.getOutputBuffers();
+                    mOutputQueue.clear();
+                    ensureOutputQueueCapacity(mOutputBuffers.length);
+                    break;
+                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                    handleOutputFormatChanged(mDecoder.getOutputFormat());
+                    break;
+                default:
+                    // Making sure the index is valid before adding to output buffers. We've already
+                    // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
+                    // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
+                    // asserting index value anyways for future-proofing the code.
+                    if (index >= 0) {
+                        // Copy into the queue: the dequeue target is reused for every buffer
+                        // drained by this loop.
+                        mOutputQueue.put(index, info.offset, info.size,
+                                info.presentationTimeUs, info.flags, outputTimestamp());
+                    } else {
+                        throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
+                    }
+                    break;
+            }
+
+        }
+        // END_INCLUDE(update_codec_state)
+
+    }
+
+    private static class WriteException extends Throwable {
+        private WriteException(final String detailMessage) {
+            super(detailMessage);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads compressed samples ahead on its own thread, from a {@link MediaExtractor} into one
+ * bounded {@link SampleQueue} per selected track. The decode threads consume the queues, so a
+ * stall in storage is absorbed by whatever has been read ahead instead of stalling the decoder.
+ *
+ * With several tracks, the container is opened and parsed once and read in a single pass, each
+ * sample being routed by {@link MediaExtractor#getSampleTrackIndex()}. The tracks are only as
+ * independent as the file's interleaving allows, so two rules keep them from blocking each
+ * other:
+ * <ul>
+ *     <li>A full queue is filled beyond its limits while another track's queue is empty, since
+ *     that track's next sample can only be reached by reading past this one's.</li>
+ *     <li>A seek is carried out once every track still being consumed has asked for it, so
+ *     all decoders are fed from the same position and the file is only sought once.</li>
+ * </ul>
+ *
+ * Add the tracks with {@link #addTrack(int, int, long)}, then {@link #start()} the thread. The
+ * demuxer shuts down and releases the extractor once every queue has been released.
+ */
+public class Demuxer implements Runnable {
+
+    private static final String TAG = "Demuxer";
+
+    private final MediaExtractor mExtractor;
+    private final ByteBufferPool mPool;
+
+    // Guards the queues' contents and the state below.
+    private final Object mLock = new Object();
+
+    private final List<SampleQueue> mQueues = new ArrayList<SampleQueue>();
+    private int mActiveQueues;
+
+    // Target of the latest seek request from a consumer.
+    private long mRequestedSeekUs;
+    private int mRequestedSeekMode;
+    // Seek agreed on by all consumers and not yet carried out on the extractor, or -1.
+    private long mPendingSeekUs = -1;
+    private int mPendingSeekMode;
+    // Bumped by every seek, so a sample read before the seek isn't queued after it.
+    private int mSeekGeneration;
+
+    private Thread mThread;
+    private boolean mReleased;
+
+    /**
+     * @param extractor Extractor with its data source set. The demuxer takes ownership and
+     *                  releases it.
+     */
+    public Demuxer(MediaExtractor extractor) {
+        this(extractor, ByteBufferPool.getDefault());
+    }
+
+    /**
+     * @param extractor Extractor with its data source set. The demuxer takes ownership and
+     *                  releases it.
+     * @param pool Pool the sample buffers are taken from.
+     */
+    public Demuxer(MediaExtractor extractor, ByteBufferPool pool) {
+        mExtractor = extractor;
+        mPool = pool;
+    }
+
+    /**
+     * Selects {@code trackIndex} on the extractor and creates the queue its samples go to.
+     * Must be called before {@link #start()}.
+     *
+     * @param maxBytes How many bytes of samples the queue may hold.
+     * @param maxDurationUs How far apart the first and the last queued sample may be.
+     */
+    public SampleQueue addTrack(int trackIndex, int maxBytes, long maxDurationUs) {
+        if (mThread != null) {
+            throw new IllegalStateException("Demuxer already started");
+        }
+        mExtractor.selectTrack(trackIndex);
+        SampleQueue queue = new SampleQueue(this, mLock, mPool, trackIndex, maxBytes,
+                maxDurationUs);
+        mQueues.add(queue);
+        mActiveQueues++;
+        return queue;
+    }
+
+    /**
+     * Starts the read-ahead thread.
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Demuxer already started");
+        }
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Discards what is queued for {@code queue} and, once every other active queue has asked
+     * for a seek as well, moves the extractor to the latest target requested.
+     */
+    void seekTo(SampleQueue queue, long timeUs, int mode) {
+        synchronized (mLock) {
+            queue.clearLocked();
+            queue.mSeekPending = true;
+            mRequestedSeekUs = timeUs;
+            mRequestedSeekMode = mode;
+            maybeSeekLocked();
+        }
+    }
+
+    /**
+     * Called by a queue once its consumer is done with it. The last release stops the thread
+     * and releases the extractor.
+     */
+    void release(SampleQueue queue) {
+        Thread thread;
+        synchronized (mLock) {
+            if (queue.mDetached) {
+                return;
+            }
+            queue.mDetached = true;
+            queue.clearLocked();
+            if (--mActiveQueues > 0) {
+                // The other tracks may have been waiting on this one, to seek or for room.
+                maybeSeekLocked();
+                mLock.notifyAll();
+                return;
+            }
+            mReleased = true;
+            mLock.notifyAll();
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mExtractor.release();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                long seekUs;
+                int seekMode;
+                int generation;
+                synchronized (mLock) {
+                    if (mReleased) {
+                        return;
+                    }
+                    seekUs = mPendingSeekUs;
+                    seekMode = mPendingSeekMode;
+                    mPendingSeekUs = -1;
+                    generation = mSeekGeneration;
+                }
+                if (seekUs >= 0) {
+                    mExtractor.seekTo(seekUs, seekMode);
+                }
+
+                int trackIndex = mExtractor.getSampleTrackIndex();
+                SampleQueue queue;
+                synchronized (mLock) {
+                    if (trackIndex < 0) {
+                        // End of the file: let every track drain, then wait for a seek. A
+                        // track waiting for a seek must not see the end of the old position.
+                        for (int i = 0; i < mQueues.size(); i++) {
+                            SampleQueue q = mQueues.get(i);
+                            if (!q.mSeekPending) {
+                                q.setEndOfStreamLocked();
+                            }
+                        }
+                        while (!mReleased && generation == mSeekGeneration) {
+                            mLock.wait();
+                        }
+                        continue;
+                    }
+                    queue = findActiveQueueLocked(trackIndex);
+                    while (!mReleased && generation == mSeekGeneration
+                            && queue != null && !mayAddLocked(queue)) {
+                        mLock.wait();
+                        if (queue.mDetached) {
+                            queue = null;
+                        }
+                    }
+                    if (mReleased || generation != mSeekGeneration) {
+                        continue;
+                    }
+                }
+
+                if (queue == null) {
+                    // Not a track anybody consumes (any more).
+                    mExtractor.advance();
+                    continue;
+                }
+                // The actual storage access, without holding the lock.
+                SampleQueue.Sample sample = queue.read(mExtractor);
+                mExtractor.advance();
+                synchronized (mLock) {
+                    if (generation == mSeekGeneration && !queue.mSeekPending
+                            && !queue.mDetached) {
+                        queue.addLocked(sample);
+                    } else {
+                        queue.recycleLocked(sample);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Released, nothing left to do.
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Reading samples failed", e);
+            synchronized (mLock) {
+                for (int i = 0; i < mQueues.size(); i++) {
+                    mQueues.get(i).setEndOfStreamLocked();
+                }
+            }
+        } finally {
+            for (int i = 0; i < mQueues.size(); i++) {
+                mQueues.get(i).releaseStaging();
+            }
+        }
+    }
+
+    /**
+     * @return True, if a sample may be added to {@code queue}: it has room, or it has no room
+     * but another track is starving behind it.
+     */
+    private boolean mayAddLocked(SampleQueue queue) {
+        if (queue.mSeekPending || queue.hasRoomLocked()) {
+            return true;
+        }
+        for (int i = 0; i < mQueues.size(); i++) {
+            SampleQueue other = mQueues.get(i);
+            if (other != queue && !other.mDetached && !other.mSeekPending
+                    && !other.isEndOfStreamLocked() && other.isEmptyLocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Carries out the requested seek if no active queue is still missing its request.
+     */
+    private void maybeSeekLocked() {
+        for (int i = 0; i < mQueues.size(); i++) {
+            SampleQueue queue = mQueues.get(i);
+            if (!queue.mDetached && !queue.mSeekPending) {
+                return;
+            }
+        }
+        boolean requested = false;
+        for (int i = 0; i < mQueues.size(); i++) {
+            SampleQueue queue = mQueues.get(i);
+            requested |= queue.mSeekPending;
+            queue.mSeekPending = false;
+            queue.clearLocked();
+        }
+        if (!requested) {
+            return;
+        }
+        mPendingSeekUs = mRequestedSeekUs;
+        mPendingSeekMode = mRequestedSeekMode;
+        mSeekGeneration++;
+        mLock.notifyAll();
+    }
+
+    private SampleQueue findActiveQueueLocked(int trackIndex) {
+        for (int i = 0; i < mQueues.size(); i++) {
+            SampleQueue queue = mQueues.get(i);
+            if (queue.getTrackIndex() == trackIndex) {
+                return queue.mDetached ? null : queue;
+            }
+        }
+        return null;
+    }
+}
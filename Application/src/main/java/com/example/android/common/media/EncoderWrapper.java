@@ -0,0 +1,654 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Encoder counterpart to {@link MediaCodecWrapper}: records video frames drawn into an input
+ * {@link Surface} to an MP4 file. Pick the size with {@link CameraHelper#getOptimalVideoSize}
+ * and the file with {@link CameraHelper#getOutputMediaFile(int)}, then have the camera preview
+ * drawn into {@link #getInputSurface()}, calling {@link #beginFrame(long)} before each frame.
+ *
+ * Encoded output is drained on a thread of its own and copied into pooled buffers, so the codec
+ * gets its output buffers back right away, and a separate writer thread hands the samples to a
+ * {@link MediaMuxer}. The frame producer is never blocked: when the encoder or the writer falls
+ * behind, {@link #beginFrame(long)} tells it to drop the frame instead.
+ *
+ * Needs Jelly Bean MR2 for the input surface and the muxer.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class EncoderWrapper {
+
+    private static final String TAG = "EncoderWrapper";
+
+    private static final String MIME_AVC = "video/avc";
+
+    /**
+     * Frames submitted to the encoder and not encoded yet, beyond which new frames are dropped.
+     */
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 4;
+
+    /**
+     * Encoded bytes waiting for the muxer, beyond which new frames are dropped.
+     */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    // Upper bound for a single wait on the encoder output.
+    private static final long DRAIN_TIMEOUT_US = 10000;
+
+    /**
+     * The calls made on the encoder. {@link MediaCodec} is final, so this is where a fake
+     * encoder takes its place in tests, as {@link Codec} does for the decoder.
+     */
+    interface Encoder {
+
+        void start();
+
+        void stop();
+
+        void release();
+
+        void signalEndOfInputStream();
+
+        ByteBuffer[] getOutputBuffers();
+
+        ByteBuffer getOutputBuffer(int index);
+
+        int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+        void releaseOutputBuffer(int index);
+
+        MediaFormat getOutputFormat();
+    }
+
+    /**
+     * The calls made on the muxer, which is final too.
+     */
+    interface Muxer {
+
+        int addTrack(MediaFormat format);
+
+        void start();
+
+        void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info);
+
+        void stop();
+
+        void release();
+    }
+
+    /**
+     * An encoded sample on its way to the muxer, or the output format, or the end of stream.
+     */
+    private static class EncodedSample {
+        ByteBuffer data;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaFormat format;
+        // System.nanoTime() when the frame was submitted, or 0 if unknown, and when its output
+        // was dequeued.
+        long submittedNs;
+        long dequeuedNs;
+    }
+
+    private final Encoder mEncoder;
+    private final Surface mInputSurface;
+    private final Muxer mMuxer;
+    private final ByteBufferPool mPool;
+    private final int mMaxFramesInFlight;
+    private final int mMaxPendingBytes;
+    private final PipelineMetrics mMetrics = new PipelineMetrics("encoder");
+
+    // Guards everything below.
+    private final Object mLock = new Object();
+
+    // Frames submitted and not encoded yet: presentation times and submission times, a slot
+    // being free if its time is NO_FRAME.
+    private static final long NO_FRAME = Long.MIN_VALUE;
+    private final long[] mInFlightPtsUs;
+    private final long[] mInFlightSubmittedNs;
+    private int mFramesInFlight;
+
+    // Samples waiting for the writer thread, and recycled records.
+    private final ArrayDeque<EncodedSample> mPending = new ArrayDeque<EncodedSample>();
+    private final ArrayDeque<EncodedSample> mFreeSamples = new ArrayDeque<EncodedSample>();
+    private int mPendingBytes;
+
+    private long mFirstFrameNs;
+    private long mLastFrameNs;
+    private int mEncodedFrames;
+    private int mDroppedFrames;
+    private boolean mStopping;
+    // The writer thread has finished, normally or not, and takes no more samples.
+    private boolean mWriterDone;
+
+    private Thread mDrainThread;
+    private Thread mWriterThread;
+
+    /**
+     * Wraps an encoder configured to take its input from {@code inputSurface}. Only
+     * {@link #create} and tests call this.
+     */
+    EncoderWrapper(Encoder encoder, Surface inputSurface, Muxer muxer,
+            int maxFramesInFlight, int maxPendingBytes) {
+        mEncoder = encoder;
+        mInputSurface = inputSurface;
+        mMuxer = muxer;
+        mPool = ByteBufferPool.getDefault();
+        mMaxFramesInFlight = maxFramesInFlight;
+        mMaxPendingBytes = maxPendingBytes;
+        mInFlightPtsUs = new long[maxFramesInFlight];
+        mInFlightSubmittedNs = new long[maxFramesInFlight];
+        for (int i = 0; i < maxFramesInFlight; i++) {
+            mInFlightSubmittedNs[i] = NO_FRAME;
+        }
+    }
+
+    /**
+     * Creates an H.264 encoder with the default backpressure limits.
+     *
+     * @see #create(String, int, int, int, int, int, File, int, int)
+     */
+    public static EncoderWrapper create(int width, int height, int bitRate, int frameRate,
+            File output) throws IOException {
+        return create(MIME_AVC, width, height, bitRate, frameRate, 1,
+                output, DEFAULT_MAX_FRAMES_IN_FLIGHT, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * Creates and configures an encoder writing to {@code output}. Call {@link #start()} to
+     * start recording.
+     *
+     * @param mime Mime type of the encoded video.
+     * @param bitRate Target bit rate, in bits per second.
+     * @param frameRate Expected frame rate, in frames per second.
+     * @param iFrameIntervalS Seconds between key frames.
+     * @param output MP4 file to write, replacing any existing one.
+     * @param maxFramesInFlight Frames the encoder may hold before new ones are dropped.
+     * @param maxPendingBytes Encoded bytes that may wait for the muxer before new frames are
+     *                        dropped.
+     */
+    public static EncoderWrapper create(String mime, int width, int height, int bitRate,
+            int frameRate, int iFrameIntervalS, File output, int maxFramesInFlight,
+            int maxPendingBytes) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameIntervalS);
+
+        MediaCodec encoder = MediaCodec.createEncoderByType(mime);
+        MediaMuxer muxer = null;
+        try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            Surface inputSurface = encoder.createInputSurface();
+            muxer = new MediaMuxer(output.getPath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            return new EncoderWrapper(new PlatformEncoder(encoder), inputSurface,
+                    new PlatformMuxer(muxer), maxFramesInFlight, maxPendingBytes);
+        } catch (IOException | RuntimeException e) {
+            encoder.release();
+            if (muxer != null) {
+                muxer.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the surface to draw the frames to be recorded into.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * @return the encode, mux and end to end latencies of the recorded frames.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Starts the encoder and the drain and writer threads.
+     */
+    public void start() {
+        mEncoder.start();
+        mMetrics.markStart();
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "EncoderDrain");
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "EncoderWriter");
+        mDrainThread.start();
+        mWriterThread.start();
+    }
+
+    /**
+     * Asks whether the next frame may be drawn into the input surface. The caller must draw it
+     * with {@code presentationTimeNs} as its timestamp if so, and skip it otherwise. Never
+     * blocks.
+     *
+     * @return True, if the frame is to be submitted, false if it is dropped because the
+     * encoder or the muxer is behind.
+     */
+    public boolean beginFrame(long presentationTimeNs) {
+        synchronized (mLock) {
+            if (mStopping || mFramesInFlight >= mMaxFramesInFlight
+                    || mPendingBytes >= mMaxPendingBytes) {
+                mDroppedFrames++;
+                return false;
+            }
+            for (int i = 0; i < mMaxFramesInFlight; i++) {
+                if (mInFlightSubmittedNs[i] == NO_FRAME) {
+                    mInFlightPtsUs[i] = presentationTimeNs / 1000;
+                    mInFlightSubmittedNs[i] = System.nanoTime();
+                    break;
+                }
+            }
+            mFramesInFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * Ends the stream of a started encoder, waits for the encoder to drain and the muxer to finish the file, and
+     * releases everything. If the encoder was never started, it only releases everything.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mStopping = true;
+        }
+        if (mDrainThread == null) {
+            // Neither the encoder nor the muxer was started; the writer thread would have
+            // released the muxer.
+            mEncoder.release();
+            mInputSurface.release();
+            mMuxer.release();
+            return;
+        }
+        try {
+            mEncoder.signalEndOfInputStream();
+            joinUninterruptibly(mDrainThread);
+            joinUninterruptibly(mWriterThread);
+        } finally {
+            mEncoder.stop();
+            mEncoder.release();
+            mInputSurface.release();
+            synchronized (mLock) {
+                // Whatever the writer didn't get to, if it failed.
+                EncodedSample sample;
+                while ((sample = mPending.pollFirst()) != null) {
+                    recycleLocked(sample);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames encoded so far.
+     */
+    public int getEncodedFrameCount() {
+        synchronized (mLock) {
+            return mEncodedFrames;
+        }
+    }
+
+    /**
+     * @return the number of frames dropped by {@link #beginFrame(long)}.
+     */
+    public int getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrames;
+        }
+    }
+
+    /**
+     * @return the sustained frame rate of the encoder output, over the whole recording.
+     */
+    public float getFramesPerSecond() {
+        synchronized (mLock) {
+            if (mEncodedFrames < 2) {
+                return 0;
+            }
+            return (mEncodedFrames - 1) * 1e9f / (mLastFrameNs - mFirstFrameNs);
+        }
+    }
+
+    /**
+     * Pulls encoded output off the codec and queues it for the writer. Runs on the drain
+     * thread until the end of stream.
+     */
+    @SuppressWarnings("deprecation")
+    private void drain() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] outputBuffers = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                ? mEncoder.getOutputBuffers() : null;
+        try {
+            while (true) {
+                int index = mEncoder.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    continue;
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = mEncoder.getOutputBuffers();
+                    continue;
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    EncodedSample sample = obtain(0);
+                    sample.format = mEncoder.getOutputFormat();
+                    enqueue(sample);
+                    continue;
+                } else if (index < 0) {
+                    throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
+                }
+
+                boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                // Codec config data reaches the muxer through the output format.
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    ByteBuffer buffer = outputBuffers != null ? outputBuffers[index]
+                            : mEncoder.getOutputBuffer(index);
+                    buffer.limit(info.offset + info.size).position(info.offset);
+                    EncodedSample sample = obtain(info.size);
+                    sample.data.put(buffer);
+                    sample.data.flip();
+                    setInfo(sample.info, info.size, info.presentationTimeUs, info.flags);
+                    sample.dequeuedNs = System.nanoTime();
+                    onFrameEncoded(sample);
+                    enqueue(sample);
+                }
+                mEncoder.releaseOutputBuffer(index);
+                if (endOfStream) {
+                    enqueue(obtain(0));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Only stop() waits on us, so nothing interrupts this thread.
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Draining the encoder failed", e);
+        }
+        // Let the writer finish the file with what it got.
+        try {
+            enqueue(obtain(0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the frames with a presentation time up to the encoded one off the in-flight list,
+     * including those the encoder dropped, and records the encode latency.
+     */
+    private void onFrameEncoded(EncodedSample sample) {
+        long ptsUs = sample.info.presentationTimeUs;
+        synchronized (mLock) {
+            for (int i = 0; i < mMaxFramesInFlight; i++) {
+                if (mInFlightSubmittedNs[i] != NO_FRAME && mInFlightPtsUs[i] <= ptsUs) {
+                    if (mInFlightPtsUs[i] == ptsUs) {
+                        sample.submittedNs = mInFlightSubmittedNs[i];
+                    }
+                    mInFlightSubmittedNs[i] = NO_FRAME;
+                    mFramesInFlight--;
+                }
+            }
+            if (mEncodedFrames++ == 0) {
+                mFirstFrameNs = sample.dequeuedNs;
+                mMetrics.markFirstSample();
+            }
+            mLastFrameNs = sample.dequeuedNs;
+        }
+        if (sample.submittedNs != 0) {
+            mMetrics.record(PipelineMetrics.STAGE_ENCODE, sample.dequeuedNs - sample.submittedNs);
+        }
+    }
+
+    /**
+     * Hands the queued samples to the muxer. Runs on the writer thread until the end of stream.
+     */
+    private void write() {
+        boolean started = false;
+        int track = -1;
+        try {
+            while (true) {
+                EncodedSample sample;
+                synchronized (mLock) {
+                    while (mPending.isEmpty()) {
+                        mLock.wait();
+                    }
+                    sample = mPending.peekFirst();
+                }
+                if (sample.format != null) {
+                    if (!started) {
+                        track = mMuxer.addTrack(sample.format);
+                        mMuxer.start();
+                        started = true;
+                    }
+                } else if (sample.data == null) {
+                    // End of stream.
+                    return;
+                } else if (started) {
+                    mMuxer.writeSampleData(track, sample.data, sample.info);
+                    long nowNs = System.nanoTime();
+                    mMetrics.record(PipelineMetrics.STAGE_MUX, nowNs - sample.dequeuedNs);
+                    if (sample.submittedNs != 0) {
+                        mMetrics.record(PipelineMetrics.STAGE_END_TO_END,
+                                nowNs - sample.submittedNs);
+                    }
+                }
+                synchronized (mLock) {
+                    mPending.pollFirst();
+                    mPendingBytes -= sample.info.size;
+                    recycleLocked(sample);
+                    mLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Only stop() waits on us, so nothing interrupts this thread.
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Writing the recording failed", e);
+        } finally {
+            if (started) {
+                try {
+                    mMuxer.stop();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Finishing the recording failed", e);
+                }
+            }
+            mMuxer.release();
+            synchronized (mLock) {
+                // Unblock the drain thread if we're giving up early.
+                mStopping = true;
+                mWriterDone = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues a sample for the writer, waiting while more than the limit is pending. That only
+     * happens if frames were submitted faster than they were dropped, and stalls the encoder
+     * output rather than the frame producer.
+     */
+    private void enqueue(EncodedSample sample) throws InterruptedException {
+        synchronized (mLock) {
+            while (!mWriterDone && mPendingBytes > 0
+                    && mPendingBytes + sample.info.size > mMaxPendingBytes) {
+                mLock.wait();
+            }
+            if (mWriterDone) {
+                recycleLocked(sample);
+                return;
+            }
+            mPending.addLast(sample);
+            mPendingBytes += sample.info.size;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes a sample record off the free list, with a pooled buffer of at least {@code size}
+     * bytes, or no buffer for a size of 0.
+     */
+    private EncodedSample obtain(int size) {
+        EncodedSample sample;
+        synchronized (mLock) {
+            sample = mFreeSamples.pollFirst();
+        }
+        if (sample == null) {
+            sample = new EncodedSample();
+        }
+        sample.data = size > 0 ? mPool.acquire(size) : null;
+        setInfo(sample.info, 0, 0, 0);
+        sample.format = null;
+        sample.submittedNs = 0;
+        sample.dequeuedNs = 0;
+        return sample;
+    }
+
+    private static void setInfo(MediaCodec.BufferInfo info, int size, long presentationTimeUs,
+            int flags) {
+        // Field by field rather than BufferInfo.set(), which is a stub off the device.
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = flags;
+    }
+
+    private void recycleLocked(EncodedSample sample) {
+        if (sample.data != null) {
+            mPool.release(sample.data);
+            sample.data = null;
+        }
+        sample.format = null;
+        mFreeSamples.addLast(sample);
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@link Encoder} that forwards every call to a {@link MediaCodec}.
+     */
+    private static final class PlatformEncoder implements Encoder {
+
+        private final MediaCodec mCodec;
+
+        PlatformEncoder(MediaCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        public void start() {
+            mCodec.start();
+        }
+
+        @Override
+        public void stop() {
+            mCodec.stop();
+        }
+
+        @Override
+        public void release() {
+            mCodec.release();
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+
+        @Override
+        public ByteBuffer[] getOutputBuffers() {
+            return mCodec.getOutputBuffers();
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            return mCodec.dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mCodec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+    }
+
+    /**
+     * {@link Muxer} that forwards every call to a {@link MediaMuxer}.
+     */
+    private static final class PlatformMuxer implements Muxer {
+
+        private final MediaMuxer mMuxer;
+
+        PlatformMuxer(MediaMuxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+            mMuxer.writeSampleData(track, data, info);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
+}
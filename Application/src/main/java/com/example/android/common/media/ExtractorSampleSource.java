@@ -0,0 +1,80 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSource} that reads straight from a {@link MediaExtractor} with a single track
+ * selected, on the calling thread.
+ */
+public class ExtractorSampleSource implements SampleSource {
+
+    private final MediaExtractor mExtractor;
+
+    // Receives the read times, or null.
+    private PipelineMetrics mMetrics;
+
+    /**
+     * @param extractor Extractor with only the track to read selected. The source takes
+     *                  ownership and releases it.
+     */
+    public ExtractorSampleSource(MediaExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    /**
+     * Records how long samples take to read to {@code metrics}.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public boolean isReady() {
+        // Every read may block on storage, there's no way to tell in advance.
+        return true;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mMetrics == null) {
+            return mExtractor.readSampleData(buffer, offset);
+        }
+        long startNs = System.nanoTime();
+        int size = mExtractor.readSampleData(buffer, offset);
+        mMetrics.record(PipelineMetrics.STAGE_EXTRACTOR_READ, System.nanoTime() - startNs);
+        return size;
+    }
+
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        return mExtractor.getSampleCryptoInfo(info);
+    }
+
+    @Override
+    public void advance() {
+        mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.common.media;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of primitive ints backed by a fixed-capacity ring buffer, used to track codec
+ * buffer indices without boxing. The capacity only changes through
+ * {@link #ensureCapacity(int)}, e.g. when the codec reports
+ * {@link android.media.MediaCodec#INFO_OUTPUT_BUFFERS_CHANGED}.
+ *
+ * Not thread safe.
+ */
+public class IntRingQueue {
+
+    private int[] mElements;
+    // mElements.length is a power of two, so wrapping around is a mask instead of a modulo.
+    private int mMask;
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param capacity Minimum number of elements the queue can hold.
+     */
+    public IntRingQueue(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        mElements = new int[roundUpToPowerOfTwo(capacity)];
+        mMask = mElements.length - 1;
+    }
+
+    /**
+     * Appends {@code value} to the tail of the queue.
+     *
+     * @throws IllegalStateException if the queue is full.
+     */
+    public void add(int value) {
+        if (mSize == mElements.length) {
+            throw new IllegalStateException("Queue full, capacity " + mElements.length);
+        }
+        mElements[(mHead + mSize) & mMask] = value;
+        mSize++;
+    }
+
+    /**
+     * Removes and returns the head of the queue.
+     *
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public int remove() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        int value = mElements[mHead];
+        mHead = (mHead + 1) & mMask;
+        mSize--;
+        return value;
+    }
+
+    /**
+     * Returns the head of the queue without removing it.
+     *
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public int peek() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mElements[mHead];
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mElements.length;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Grows the queue so it can hold at least {@code capacity} elements, keeping the queued
+     * elements in order. Does nothing if the queue is already large enough.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mElements.length) {
+            return;
+        }
+        int[] elements = new int[roundUpToPowerOfTwo(capacity)];
+        for (int i = 0; i < mSize; i++) {
+            elements[i] = mElements[(mHead + i) & mMask];
+        }
+        mElements = elements;
+        mMask = elements.length - 1;
+        mHead = 0;
+    }
+
+    private static int roundUpToPowerOfTwo(int capacity) {
+        return capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * {@link MediaDataSource} that reads a local file through memory mapped windows instead of
+ * leaving the I/O to the framework. A read copies straight from the mapping into the caller's
+ * array, with no intermediate buffer and no system call once the pages are resident.
+ *
+ * <ul>
+ *     <li>The file is mapped in windows of {@code windowBytes}, of which at most
+ *     {@code maxWindows} stay mapped; the least recently used one is dropped first.</li>
+ *     <li>After each read, the windows covering the next {@code readaheadBytes} are mapped and
+ *     paged in on a background thread, so sequential reads rarely fault.</li>
+ *     <li>Optionally, hot byte ranges are copied to the heap: the {@code moov} box, which the
+ *     extractor consults on every seek, and the region around every seek target, so scrubbing
+ *     back and forth over the same spots is served from memory. The cache holds at most
+ *     {@code cacheBytes}.</li>
+ * </ul>
+ *
+ * Needs Marshmallow. Thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedFileDataSource extends MediaDataSource {
+
+    public static final int DEFAULT_WINDOW_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_WINDOWS = 8;
+    public static final int DEFAULT_READAHEAD_BYTES = 2 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_BYTES = 4 * 1024 * 1024;
+
+    // Bytes cached from a seek target on. A read this far from where the previous one ended
+    // counts as a seek; shorter jumps are the extractor hopping between interleaved tracks.
+    private static final int SEEK_RANGE_BYTES = 256 * 1024;
+
+    /**
+     * A byte range copied to the heap.
+     */
+    private static class CachedRange {
+        final long start;
+        final byte[] data;
+        // The moov box is never evicted.
+        final boolean pinned;
+        long lastUse;
+
+        CachedRange(long start, byte[] data, boolean pinned) {
+            this.start = start;
+            this.data = data;
+            this.pinned = pinned;
+        }
+
+        boolean contains(long position, int size) {
+            return position >= start && position + size <= start + data.length;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final int mWindowBytes;
+    private final int mMaxWindows;
+    private final int mReadaheadBytes;
+    private final int mCacheBytes;
+
+    // Mapped windows by index, null if not mapped, and when each was last used.
+    private final MappedByteBuffer[] mWindows;
+    private final long[] mWindowLastUse;
+    private int mMappedWindows;
+    // Increases with every access, to find the least recently used window or range.
+    private long mUseCounter;
+
+    private final ArrayList<CachedRange> mCache = new ArrayList<CachedRange>();
+    private int mCachedBytes;
+
+    // Where the next read starts if the extractor reads sequentially.
+    private long mNextPosition = -1;
+
+    // End of the range read ahead so far, and the position to read ahead from.
+    private long mReadaheadEnd;
+    private volatile long mReadaheadPosition;
+    private final HandlerThread mReadaheadThread;
+    private final Handler mReadaheadHandler;
+    private final Runnable mReadahead = new Runnable() {
+        @Override
+        public void run() {
+            readAhead(mReadaheadPosition);
+        }
+    };
+
+    private long mHits;
+    private long mMisses;
+    private boolean mClosed;
+
+    public MappedFileDataSource(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_BYTES, DEFAULT_MAX_WINDOWS, DEFAULT_READAHEAD_BYTES,
+                DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param windowBytes Size of the mapped windows.
+     * @param maxWindows How many windows stay mapped at most.
+     * @param readaheadBytes How far ahead of each read to page in, or 0 for no readahead.
+     * @param cacheBytes Heap cache for hot byte ranges, or 0 for no cache.
+     */
+    public MappedFileDataSource(File file, int windowBytes, int maxWindows, int readaheadBytes,
+            int cacheBytes) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mSize = mChannel.size();
+        mWindowBytes = windowBytes;
+        mMaxWindows = Math.max(maxWindows, 1);
+        mReadaheadBytes = readaheadBytes;
+        mCacheBytes = cacheBytes;
+        int windowCount = (int) ((mSize + windowBytes - 1) / windowBytes);
+        mWindows = new MappedByteBuffer[windowCount];
+        mWindowLastUse = new long[windowCount];
+
+        if (readaheadBytes > 0) {
+            mReadaheadThread = new HandlerThread("MappedFileReadahead");
+            mReadaheadThread.start();
+            mReadaheadHandler = new Handler(mReadaheadThread.getLooper());
+        } else {
+            mReadaheadThread = null;
+            mReadaheadHandler = null;
+        }
+        if (cacheBytes > 0) {
+            try {
+                cacheMovieBox();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Data source closed");
+            }
+            if (position >= mSize) {
+                return -1;
+            }
+            size = (int) Math.min(size, mSize - position);
+            boolean seek = mNextPosition < 0
+                    || Math.abs(position - mNextPosition) > SEEK_RANGE_BYTES;
+            mNextPosition = position + size;
+
+            CachedRange range = findCachedRange(position, size);
+            if (range != null) {
+                mHits++;
+                range.lastUse = ++mUseCounter;
+                System.arraycopy(range.data, (int) (position - range.start), buffer, offset,
+                        size);
+                return size;
+            }
+            mMisses++;
+            copyFromWindows(position, buffer, offset, size);
+            if (seek && mCacheBytes > 0) {
+                cacheRange(position, (int) Math.min(SEEK_RANGE_BYTES, mSize - position), false);
+            }
+            if (seek) {
+                mReadaheadEnd = 0;
+            }
+            if (mReadaheadHandler != null
+                    && position + size + mReadaheadBytes / 2 > mReadaheadEnd) {
+                // Read ahead from where this read ended once half of the previous readahead
+                // has been consumed, rather than after every read.
+                mReadaheadEnd = position + size + mReadaheadBytes;
+                mReadaheadPosition = position + size;
+                mReadaheadHandler.removeCallbacks(mReadahead);
+                mReadaheadHandler.post(mReadahead);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // Unreferenced mappings are unmapped once collected.
+            for (int i = 0; i < mWindows.length; i++) {
+                mWindows[i] = null;
+            }
+            mCache.clear();
+        }
+        if (mReadaheadThread != null) {
+            mReadaheadThread.quit();
+        }
+        mFile.close();
+    }
+
+    /**
+     * @return how many reads were served from the heap cache.
+     */
+    public synchronized long getCacheHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return how many reads went to the mapped file.
+     */
+    public synchronized long getCacheMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return True, if the window with {@code index} is currently mapped.
+     */
+    synchronized boolean isWindowMapped(int index) {
+        return mWindows[index] != null;
+    }
+
+    synchronized int getMappedWindowCount() {
+        return mMappedWindows;
+    }
+
+    /**
+     * @return the bytes held in the heap cache, including the pinned moov box.
+     */
+    synchronized int getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    private void copyFromWindows(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        while (size > 0) {
+            int index = (int) (position / mWindowBytes);
+            MappedByteBuffer window = getWindowLocked(index);
+            int windowOffset = (int) (position - (long) index * mWindowBytes);
+            int count = Math.min(size, window.capacity() - windowOffset);
+            // Only touched under the lock; the readahead thread doesn't move the position.
+            window.position(windowOffset);
+            window.get(buffer, offset, count);
+            position += count;
+            offset += count;
+            size -= count;
+        }
+    }
+
+    /**
+     * Returns the window with {@code index}, mapping it if needed and unmapping the least
+     * recently used window if too many are mapped.
+     */
+    private MappedByteBuffer getWindowLocked(int index) throws IOException {
+        mWindowLastUse[index] = ++mUseCounter;
+        MappedByteBuffer window = mWindows[index];
+        if (window != null) {
+            return window;
+        }
+        long start = (long) index * mWindowBytes;
+        window = mChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(mWindowBytes, mSize - start));
+        mWindows[index] = window;
+        if (++mMappedWindows > mMaxWindows) {
+            int oldest = -1;
+            for (int i = 0; i < mWindows.length; i++) {
+                if (mWindows[i] != null && i != index
+                        && (oldest < 0 || mWindowLastUse[i] < mWindowLastUse[oldest])) {
+                    oldest = i;
+                }
+            }
+            mWindows[oldest] = null;
+            mMappedWindows--;
+        }
+        return window;
+    }
+
+    /**
+     * Maps the windows from {@code position} to the readahead limit and pages them in. Runs on
+     * the readahead thread; the page faults happen here instead of in readAt().
+     */
+    private void readAhead(long position) {
+        long end = Math.min(position + mReadaheadBytes, mSize);
+        while (position < end) {
+            int index = (int) (position / mWindowBytes);
+            MappedByteBuffer window;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                try {
+                    window = getWindowLocked(index);
+                } catch (IOException e) {
+                    // The read itself will report it.
+                    return;
+                }
+            }
+            if (!window.isLoaded()) {
+                window.load();
+            }
+            position = (long) (index + 1) * mWindowBytes;
+        }
+    }
+
+    private CachedRange findCachedRange(long position, int size) {
+        for (int i = 0; i < mCache.size(); i++) {
+            CachedRange range = mCache.get(i);
+            if (range.contains(position, size)) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies {@code size} bytes from {@code position} to the heap cache, evicting the least
+     * recently used unpinned ranges to make room. Skipped if it doesn't fit.
+     */
+    private void cacheRange(long position, int size, boolean pinned) throws IOException {
+        while (mCachedBytes + size > mCacheBytes) {
+            int oldest = -1;
+            for (int i = 0; i < mCache.size(); i++) {
+                CachedRange range = mCache.get(i);
+                if (!range.pinned
+                        && (oldest < 0 || range.lastUse < mCache.get(oldest).lastUse)) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                return;
+            }
+            mCachedBytes -= mCache.remove(oldest).data.length;
+        }
+        byte[] data = new byte[size];
+        copyFromWindows(position, data, 0, size);
+        CachedRange range = new CachedRange(position, data, pinned);
+        range.lastUse = ++mUseCounter;
+        mCache.add(range);
+        mCachedBytes += size;
+    }
+
+    /**
+     * Walks the top level boxes of an ISO base media file and pins the {@code moov} box in the
+     * cache if it fits. Files of other formats simply don't have one.
+     */
+    private synchronized void cacheMovieBox() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= mSize) {
+            header.clear();
+            mChannel.read(header, position);
+            header.flip();
+            if (header.remaining() < 8) {
+                return;
+            }
+            long boxSize = header.getInt() & 0xffffffffL;
+            int type = header.getInt();
+            if (boxSize == 1) {
+                if (header.remaining() < 8) {
+                    return;
+                }
+                boxSize = header.getLong();
+            } else if (boxSize == 0) {
+                boxSize = mSize - position;
+            }
+            if (boxSize < 8) {
+                // Not a box structure we understand.
+                return;
+            }
+            if (type == ('m' << 24 | 'o' << 16 | 'o' << 8 | 'v')) {
+                if (boxSize <= mCacheBytes && position + boxSize <= mSize) {
+                    cacheRange(position, (int) boxSize, true);
+                }
+                return;
+            }
+            position += boxSize;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.android.common.media;
+
+/**
+ * Source of the playback position that decoded samples are scheduled against.
+ */
+public interface MediaClock {
+
+    /**
+     * @return the current playback position in microseconds, relative to the beginning of the
+     * media stream.
+     */
+    long getTimeUs();
+}
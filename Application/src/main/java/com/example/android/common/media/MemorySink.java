@@ -0,0 +1,77 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputSink} that collects the decoded data in memory. Meant for tests and tools that
+ * want to inspect the decoder output rather than play it.
+ */
+public class MemorySink implements OutputSink {
+
+    private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+    private byte[] mScratch = new byte[0];
+
+    private MediaFormat mFormat;
+    private int mSampleCount;
+    private long mLastPresentationTimeUs = -1;
+
+    @Override
+    public synchronized void onOutputFormatChanged(MediaFormat format) {
+        mFormat = format;
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        synchronized (this) {
+            if (buffer != null && info.size > 0) {
+                if (mScratch.length < info.size) {
+                    mScratch = new byte[info.size];
+                }
+                buffer.get(mScratch, 0, info.size);
+                mData.write(mScratch, 0, info.size);
+            }
+            mSampleCount++;
+            mLastPresentationTimeUs = info.presentationTimeUs;
+        }
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void flush() {
+        // Keep what was collected; the caller decides what a seek means for it.
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * @return a copy of all the data received so far.
+     */
+    public synchronized byte[] toByteArray() {
+        return mData.toByteArray();
+    }
+
+    /**
+     * @return the last output format reported by the decoder, or null.
+     */
+    public synchronized MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return the presentation time of the last buffer received, or -1.
+     */
+    public synchronized long getLastPresentationTimeUs() {
+        return mLastPresentationTimeUs;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputSink} that discards every decoded buffer, for tracks that have to be decoded but
+ * whose output nobody needs, e.g. when measuring decoder throughput.
+ */
+public class NullSink implements OutputSink {
+
+    private volatile int mSampleCount;
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        codec.releaseOutputBuffer(index, false);
+        mSampleCount++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * @return the number of buffers discarded so far.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+}
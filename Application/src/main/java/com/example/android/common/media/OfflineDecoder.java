@@ -0,0 +1,340 @@
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+
+/**
+ * Decodes a media file as fast as the codecs allow, for batch processing rather than playback.
+ * The first audio track is written to a WAV or raw PCM file through a {@link PcmFileSink}. The
+ * first video track is decoded too, into a {@link NullSink}, unless disabled. Nothing is paced
+ * against a clock: both tracks are read through a shared {@link Demuxer} and each
+ * {@link DecodeWorker} hands its output over as soon as it is decoded.
+ *
+ * {@link #run()} blocks until the file has been decoded. It may be cancelled from another thread.
+ */
+public class OfflineDecoder {
+
+    private static final String TAG = "OfflineDecoder";
+
+    /**
+     * Outcome of a successful {@link #run()}.
+     */
+    public static class Result {
+        private final long mMediaDurationUs;
+        private final long mElapsedNs;
+
+        Result(long mediaDurationUs, long elapsedNs) {
+            mMediaDurationUs = mediaDurationUs;
+            mElapsedNs = elapsedNs;
+        }
+
+        /**
+         * @return the media time of the PCM written.
+         */
+        public long getMediaDurationUs() {
+            return mMediaDurationUs;
+        }
+
+        /**
+         * @return the wall clock time decoding took.
+         */
+        public long getElapsedNs() {
+            return mElapsedNs;
+        }
+
+        /**
+         * @return how many times faster than real time the file was decoded.
+         */
+        public double getRealTimeFactor() {
+            return mElapsedNs <= 0 ? 0 : mMediaDurationUs * 1000.0 / mElapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f s of audio in %.1f s (%.1fx real time)",
+                    mMediaDurationUs / 1e6, mElapsedNs / 1e9, getRealTimeFactor());
+        }
+    }
+
+    private final String mInputPath;
+    private final File mOutputFile;
+    private final boolean mWav;
+
+    private boolean mVideoEnabled = true;
+    private CodecPool mCodecPool;
+    private DecoderSlots mDecoderSlots;
+    private int mPrefetchBytes = PlaybackEngine.DEFAULT_PREFETCH_BYTES;
+    private long mPrefetchDurationUs = PlaybackEngine.DEFAULT_PREFETCH_DURATION_US;
+
+    // Workers of the running decode, or null.
+    private volatile DecodeWorker mAudioWorker;
+    private volatile DecodeWorker mVideoWorker;
+    private volatile boolean mCancelled;
+
+    // For the progress: where the PCM goes, and the duration of the audio track or 0.
+    private volatile PcmFileSink mPcmSink;
+    private volatile long mDurationUs;
+
+    /**
+     * @param inputPath Path of the media file to decode.
+     * @param outputFile File the PCM of the first audio track is written to, replacing any
+     *                   existing one.
+     * @param wav True, to write a WAV file, false to write raw PCM.
+     */
+    public OfflineDecoder(String inputPath, File outputFile, boolean wav) {
+        mInputPath = inputPath;
+        mOutputFile = outputFile;
+        mWav = wav;
+    }
+
+    /**
+     * Sets whether the video track is decoded as well. Its frames are discarded either way.
+     * Defaults to true. Must be called before {@link #run()}.
+     */
+    public void setVideoEnabled(boolean enabled) {
+        mVideoEnabled = enabled;
+    }
+
+    /**
+     * Sets a pool to take the decoders from and return them to, which pays off when many files
+     * are decoded one after the other. Must be called before {@link #run()}.
+     */
+    public void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Has the decoders picked through {@code slots} instead of taking the default decoder for
+     * each format, which keeps concurrent decodes within the instance limits of the codecs.
+     * Takes precedence over a codec pool. Must be called before {@link #run()}.
+     */
+    public void setDecoderSlots(DecoderSlots slots) {
+        mDecoderSlots = slots;
+    }
+
+    /**
+     * Sets how far each track is read ahead of its decoder. Must be called before
+     * {@link #run()}.
+     */
+    public void setPrefetchLimits(int maxBytes, long maxDurationUs) {
+        mPrefetchBytes = maxBytes;
+        mPrefetchDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Decodes the file.
+     *
+     * @throws InterruptedIOException if the decode was cancelled or the calling thread was
+     * interrupted.
+     * @throws IOException if the file can't be read or written, has no audio track, or
+     * decoding failed.
+     */
+    public Result run() throws IOException {
+        long startNs = System.nanoTime();
+        MediaExtractor extractor = new MediaExtractor();
+        PcmFileSink pcmSink = null;
+        DecoderWrapper audioCodec = null;
+        DecoderWrapper videoCodec = null;
+        String audioDecoderName = null;
+        String videoDecoderName = null;
+        try {
+            int audioTrack = -1;
+            int videoTrack = -1;
+            try {
+                extractor.setDataSource(mInputPath);
+                int nTracks = extractor.getTrackCount();
+                for (int i = 0; i < nTracks; ++i) {
+                    extractor.unselectTrack(i);
+                    String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                    if (audioTrack < 0 && mime.startsWith("audio/")) {
+                        audioTrack = i;
+                    } else if (videoTrack < 0 && mVideoEnabled && mime.startsWith("video/")) {
+                        videoTrack = i;
+                    }
+                }
+                if (audioTrack < 0) {
+                    throw new IOException("No audio track in " + mInputPath);
+                }
+                MediaFormat audioFormat = extractor.getTrackFormat(audioTrack);
+                if (audioFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                    mDurationUs = audioFormat.getLong(MediaFormat.KEY_DURATION);
+                }
+                pcmSink = new PcmFileSink(mOutputFile, mWav);
+                mPcmSink = pcmSink;
+                if (mDecoderSlots != null) {
+                    audioDecoderName = acquireDecoder(audioFormat);
+                    audioCodec = DecoderWrapper.fromCodecName(audioDecoderName, audioFormat,
+                            pcmSink, true);
+                } else {
+                    audioCodec = DecoderWrapper.fromFormat(audioFormat, pcmSink, true,
+                            mCodecPool);
+                }
+                if (videoTrack >= 0) {
+                    MediaFormat videoFormat = extractor.getTrackFormat(videoTrack);
+                    if (mDecoderSlots != null) {
+                        videoDecoderName = acquireDecoder(videoFormat);
+                        videoCodec = DecoderWrapper.fromCodecName(videoDecoderName, videoFormat,
+                                new NullSink(), true);
+                    } else {
+                        videoCodec = DecoderWrapper.fromFormat(videoFormat, new NullSink(), true,
+                                mCodecPool);
+                    }
+                }
+            } catch (IOException e) {
+                // Releasing the decoder releases its sink as well.
+                if (audioCodec != null) {
+                    audioCodec.stopAndRelease();
+                } else if (pcmSink != null) {
+                    pcmSink.release();
+                }
+                extractor.release();
+                throw e;
+            }
+            return decode(extractor, audioTrack, audioCodec, videoTrack, videoCodec, startNs);
+        } finally {
+            if (audioDecoderName != null) {
+                mDecoderSlots.release(audioDecoderName);
+            }
+            if (videoDecoderName != null) {
+                mDecoderSlots.release(videoDecoderName);
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of the audio track decoded so far, between 0 and 1, or 0 if the
+     * duration of the track is unknown.
+     */
+    public float getProgress() {
+        PcmFileSink sink = mPcmSink;
+        long durationUs = mDurationUs;
+        if (sink == null || durationUs <= 0) {
+            return 0;
+        }
+        return Math.min((float) sink.getDurationUs() / durationUs, 1);
+    }
+
+    /**
+     * Runs the decoders until both tracks have been decoded. The workers take ownership of the
+     * decoders and the demuxer of the extractor.
+     */
+    private Result decode(MediaExtractor extractor, int audioTrack, DecoderWrapper audioCodec,
+            int videoTrack, DecoderWrapper videoCodec, long startNs) throws IOException {
+        Demuxer demuxer = new Demuxer(extractor);
+        DecodeWorker audioWorker = new DecodeWorker("OfflineAudio", audioCodec,
+                demuxer.addTrack(audioTrack, mPrefetchBytes, mPrefetchDurationUs), null, true);
+        DecodeWorker videoWorker = null;
+        if (videoCodec != null) {
+            videoWorker = new DecodeWorker("OfflineVideo", videoCodec,
+                    demuxer.addTrack(videoTrack, mPrefetchBytes, mPrefetchDurationUs), null,
+                    false);
+        }
+        mAudioWorker = audioWorker;
+        mVideoWorker = videoWorker;
+        demuxer.start();
+        audioWorker.start();
+        if (videoWorker != null) {
+            videoWorker.start();
+        }
+        if (mCancelled) {
+            // Cancelled while the workers were being set up.
+            cancel();
+        }
+
+        try {
+            audioWorker.join();
+            if (videoWorker != null) {
+                videoWorker.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException("Interrupted while decoding " + mInputPath);
+        } finally {
+            mAudioWorker = null;
+            mVideoWorker = null;
+        }
+        if (mCancelled) {
+            throw new InterruptedIOException("Decoding of " + mInputPath + " cancelled");
+        }
+        if (!audioWorker.isEndOfStream()
+                || (videoWorker != null && !videoWorker.isEndOfStream())) {
+            throw new IOException("Failed to decode " + mInputPath);
+        }
+        Result result = new Result(mPcmSink.getDurationUs(), System.nanoTime() - startNs);
+        Log.i(TAG, mInputPath + ": " + result);
+        return result;
+    }
+
+    private String acquireDecoder(MediaFormat format) throws IOException {
+        try {
+            return mDecoderSlots.acquire(format);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a decoder");
+        }
+    }
+
+    /**
+     * Stops a running decode. {@link #run()} then throws an {@link InterruptedIOException}.
+     * May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        DecodeWorker worker = mAudioWorker;
+        if (worker != null) {
+            worker.stop();
+        }
+        worker = mVideoWorker;
+        if (worker != null) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Decodes every file in {@code inputDir} with a name ending in {@code extension}, one after
+     * the other, into a WAV file of the same name in {@code outputDir}. Files that fail are
+     * logged and skipped.
+     *
+     * @return the number of files decoded.
+     */
+    public static int decodeDirectory(File inputDir, final String extension, File outputDir)
+            throws InterruptedIOException {
+        File[] inputs = inputDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(extension);
+            }
+        });
+        if (inputs == null) {
+            return 0;
+        }
+        CodecPool pool = new CodecPool();
+        int decoded = 0;
+        try {
+            for (File input : inputs) {
+                String name = input.getName();
+                File output = new File(outputDir,
+                        name.substring(0, name.length() - extension.length()) + ".wav");
+                OfflineDecoder decoder = new OfflineDecoder(input.getPath(), output, true);
+                decoder.setCodecPool(pool);
+                try {
+                    decoder.run();
+                    decoded++;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    Log.w(TAG, "Skipping " + input, e);
+                }
+            }
+        } finally {
+            pool.clear();
+        }
+        return decoded;
+    }
+}
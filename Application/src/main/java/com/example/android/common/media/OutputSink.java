@@ -0,0 +1,47 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the decoded output of a {@link DecoderWrapper}. The wrapper owns the codec
+ * buffer state machine and hands each decoded buffer to its sink, which consumes it and returns
+ * it to the codec.
+ */
+public interface OutputSink {
+
+    /**
+     * Called when the decoder reports a new output format, before any buffer in that format is
+     * handed over.
+     */
+    void onOutputFormatChanged(MediaFormat format);
+
+    /**
+     * Consumes one decoded buffer. The sink must return the buffer to the codec exactly once,
+     * through {@link MediaCodec#releaseOutputBuffer(int, boolean)} or one of its overloads.
+     *
+     * @param codec The codec that produced the buffer.
+     * @param index Index of the output buffer.
+     * @param buffer Contents of the buffer, positioned and limited to the sample data, or null if
+     *               the codec renders to a {@link android.view.Surface}.
+     * @param info Metadata of the buffer. Only valid until the buffer is released.
+     * @param render True, if the caller wants the sample presented.
+     * @param renderTimeNs When to present the sample, on the {@link System#nanoTime()} timeline,
+     *                     or 0 to present it as soon as possible.
+     */
+    void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs);
+
+    /**
+     * Discards anything the sink still holds from before a seek. Called on the decoding thread
+     * after the codec has been flushed.
+     */
+    void flush();
+
+    /**
+     * Releases any resources held by the sink.
+     */
+    void release();
+}
@@ -0,0 +1,184 @@
+package com.example.android.common.media;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link OutputSink} that writes decoded PCM to a file through a {@link FileChannel}, either raw
+ * or as a WAV file. The codec's direct output buffers are written as they are, without copying
+ * them to the Java heap. The WAV header is written up front with empty sizes and completed on
+ * {@link #release()}, once the size of the data is known.
+ *
+ * Only one decode thread writes to the sink. Write errors surface as
+ * {@link IllegalStateException}s on that thread, which end the decoding of the track. That
+ * thread must not be interrupted while it writes, since an interrupt closes the channel; a
+ * {@link DecodeWorker} is stopped without one.
+ */
+public class PcmFileSink implements OutputSink {
+
+    private static final String TAG = "PcmFileSink";
+
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final boolean mWav;
+
+    // Latest output format, set by the codec's callback thread in asynchronous mode.
+    private volatile int mSampleRate;
+    private volatile int mChannelCount;
+    private volatile int mEncoding = AudioFormat.ENCODING_PCM_16BIT;
+
+    // Written by the decode thread, read by anyone following the progress.
+    private volatile long mDataBytes;
+    private boolean mReleased;
+
+    /**
+     * Creates {@code file}, replacing any existing one.
+     *
+     * @param wav True, to write a WAV file, false to write raw PCM in the codec's output format.
+     */
+    public PcmFileSink(File file, boolean wav) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mWav = wav;
+        try {
+            mChannel.truncate(0);
+            if (wav) {
+                // Room for the header, which is filled in once the data size is known.
+                mChannel.write(ByteBuffer.allocate(WAV_HEADER_SIZE));
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+            mEncoding = format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+        }
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        try {
+            if (render && buffer != null) {
+                write(buffer);
+            }
+        } finally {
+            codec.releaseOutputBuffer(index, false);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of {@code buffer} to the PCM data.
+     */
+    void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mDataBytes += mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write PCM", e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // A file has no notion of a seek; whatever was decoded has been written.
+    }
+
+    /**
+     * Completes the WAV header and closes the file. Failures are only logged, since this runs
+     * while the decoder is being torn down.
+     */
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        try {
+            if (mWav) {
+                mChannel.write(createWavHeader(), 0);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write WAV header", e);
+        } finally {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing left to do about it.
+            }
+        }
+    }
+
+    /**
+     * @return the number of PCM bytes written so far.
+     */
+    public long getDataBytes() {
+        return mDataBytes;
+    }
+
+    /**
+     * @return the media time covered by the PCM written so far, or 0 before the output format
+     * is known.
+     */
+    public long getDurationUs() {
+        int frameSize = getBytesPerSample(mEncoding) * mChannelCount;
+        if (frameSize == 0 || mSampleRate == 0) {
+            return 0;
+        }
+        return mDataBytes / frameSize * 1000000 / mSampleRate;
+    }
+
+    private ByteBuffer createWavHeader() {
+        int bytesPerSample = getBytesPerSample(mEncoding);
+        int blockAlign = bytesPerSample * mChannelCount;
+        // The sizes are 32 bits wide; a longer file gets a truncated but still playable header.
+        int dataSize = (int) Math.min(mDataBytes, 0xffffffffL - WAV_HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'});
+        header.putInt(dataSize + WAV_HEADER_SIZE - 8);
+        header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        header.putInt(16);
+        header.putShort((short) (mEncoding == AudioFormat.ENCODING_PCM_FLOAT
+                ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM));
+        header.putShort((short) mChannelCount);
+        header.putInt(mSampleRate);
+        header.putInt(mSampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) (bytesPerSample * 8));
+        header.put(new byte[] {'d', 'a', 't', 'a'});
+        header.putInt(dataSize);
+        header.flip();
+        return header;
+    }
+
+    private static int getBytesPerSample(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.android.common.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency statistics of one track of the decode or encode pipeline, recorded from the threads
+ * that do the work. Every stage has a histogram with fixed power-of-two buckets of
+ * microseconds, built on atomic counters, so recording a sample neither locks nor allocates.
+ * Read the numbers through a {@link Snapshot}.
+ */
+public class PipelineMetrics {
+
+    private static final String TAG = "PipelineMetrics";
+
+    /**
+     * Reading a compressed sample from the extractor.
+     */
+    public static final int STAGE_EXTRACTOR_READ = 0;
+
+    /**
+     * Time a compressed sample waited between being read and being queued to the codec.
+     */
+    public static final int STAGE_INPUT_WAIT = 1;
+
+    /**
+     * Time from queueing a sample to the codec to its decoded output being dequeued.
+     */
+    public static final int STAGE_DECODE = 2;
+
+    /**
+     * Handing a decoded buffer to its sink: rendering a frame or writing PCM.
+     */
+    public static final int STAGE_RENDER = 3;
+
+    /**
+     * Time from a frame being submitted to an encoder to its encoded output being dequeued.
+     */
+    public static final int STAGE_ENCODE = 4;
+
+    /**
+     * Time from encoded output being dequeued to being written by the muxer.
+     */
+    public static final int STAGE_MUX = 5;
+
+    /**
+     * Time from a frame being submitted to an encoder to being written by the muxer.
+     */
+    public static final int STAGE_END_TO_END = 6;
+
+    /**
+     * Time between the last buffer of one playlist item and the first buffer of the next being
+     * handed to the sink.
+     */
+    public static final int STAGE_ITEM_GAP = 7;
+
+    /**
+     * Time to first frame of a playback whose video decoder was created for it.
+     */
+    public static final int STAGE_FIRST_FRAME_NEW_CODEC = 8;
+
+    /**
+     * Time to first frame of a playback whose video decoder was reused from a
+     * {@link CodecPool}.
+     */
+    public static final int STAGE_FIRST_FRAME_POOLED_CODEC = 9;
+
+    private static final int STAGE_COUNT = 10;
+    private static final String[] STAGE_NAMES = {"read", "input wait", "decode", "render",
+            "encode", "mux", "end to end", "item gap", "first frame, new codec",
+            "first frame, pooled codec"};
+
+    // Bucket 0 holds durations below 1 us, bucket i those in [2^(i-1), 2^i) us.
+    private static final int BUCKET_COUNT = 40;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(STAGE_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mCounts = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mSumsUs = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mMaxUs = new AtomicLongArray(STAGE_COUNT);
+
+    // System.nanoTime() when playback was started and when the first sample was presented.
+    private final AtomicLong mStartNs = new AtomicLong();
+    private final AtomicLong mFirstSampleNs = new AtomicLong();
+
+    /**
+     * @param name Name of the track, for the dumps.
+     */
+    public PipelineMetrics(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records that {@code stage} took {@code durationNs} for one sample.
+     */
+    public void record(int stage, long durationNs) {
+        long durationUs = Math.max(durationNs / 1000, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(durationUs), BUCKET_COUNT - 1);
+        mBuckets.incrementAndGet(stage * BUCKET_COUNT + bucket);
+        mCounts.incrementAndGet(stage);
+        mSumsUs.addAndGet(stage, durationUs);
+        long max;
+        while ((max = mMaxUs.get(stage)) < durationUs) {
+            if (mMaxUs.compareAndSet(stage, max, durationUs)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Marks the start of playback, the reference for the time to first frame.
+     */
+    public void markStart() {
+        mStartNs.set(System.nanoTime());
+        mFirstSampleNs.set(0);
+    }
+
+    /**
+     * Marks the first sample being presented. Later calls are ignored.
+     */
+    public void markFirstSample() {
+        mFirstSampleNs.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * @return the current state of the counters.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[STAGE_COUNT * BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        long[] counts = new long[STAGE_COUNT];
+        long[] sumsUs = new long[STAGE_COUNT];
+        long[] maxUs = new long[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            sumsUs[i] = mSumsUs.get(i);
+            maxUs[i] = mMaxUs.get(i);
+        }
+        long startNs = mStartNs.get();
+        long firstSampleNs = mFirstSampleNs.get();
+        long timeToFirstSampleUs = startNs != 0 && firstSampleNs != 0
+                ? (firstSampleNs - startNs) / 1000 : -1;
+        return new Snapshot(mName, buckets, counts, sumsUs, maxUs, timeToFirstSampleUs);
+    }
+
+    /**
+     * Logs a snapshot to logcat.
+     */
+    public void dump() {
+        Log.i(TAG, snapshot().toString());
+    }
+
+    /**
+     * Appends a snapshot to {@code file}.
+     */
+    public void dump(File file) throws IOException {
+        Writer writer = new FileWriter(file, true);
+        try {
+            writer.write(snapshot().toString());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Immutable copy of the counters of a {@link PipelineMetrics}.
+     */
+    public static class Snapshot {
+        private final String mName;
+        private final long[] mBuckets;
+        private final long[] mCounts;
+        private final long[] mSumsUs;
+        private final long[] mMaxUs;
+        private final long mTimeToFirstSampleUs;
+
+        private Snapshot(String name, long[] buckets, long[] counts, long[] sumsUs, long[] maxUs,
+                long timeToFirstSampleUs) {
+            mName = name;
+            mBuckets = buckets;
+            mCounts = counts;
+            mSumsUs = sumsUs;
+            mMaxUs = maxUs;
+            mTimeToFirstSampleUs = timeToFirstSampleUs;
+        }
+
+        public long getCount(int stage) {
+            return mCounts[stage];
+        }
+
+        public long getMeanUs(int stage) {
+            return mCounts[stage] == 0 ? 0 : mSumsUs[stage] / mCounts[stage];
+        }
+
+        public long getMaxUs(int stage) {
+            return mMaxUs[stage];
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return an upper bound for the given percentile of the stage's durations, at the
+         * resolution of the histogram buckets.
+         */
+        public long getPercentileUs(int stage, double percentile) {
+            long count = mCounts[stage];
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[stage * BUCKET_COUNT + i];
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 1 : 1L << i, mMaxUs[stage]);
+                }
+            }
+            return mMaxUs[stage];
+        }
+
+        /**
+         * @return the time from the start of playback to the first presented sample, or -1.
+         */
+        public long getTimeToFirstSampleUs() {
+            return mTimeToFirstSampleUs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mName);
+            sb.append(": first sample ").append(mTimeToFirstSampleUs / 1000).append(" ms");
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (mCounts[stage] == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.US,
+                        "; %s n=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus",
+                        STAGE_NAMES[stage], mCounts[stage], getMeanUs(stage),
+                        getPercentileUs(stage, 50), getPercentileUs(stage, 90),
+                        getPercentileUs(stage, 99), mMaxUs[stage]));
+            }
+            return sb.toString();
+        }
+    }
+}
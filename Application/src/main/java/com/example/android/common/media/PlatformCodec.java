@@ -0,0 +1,107 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Codec} that forwards every call to a {@link MediaCodec}.
+ */
+final class PlatformCodec implements Codec {
+
+    private final MediaCodec mCodec;
+
+    PlatformCodec(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public MediaCodec getMediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface) {
+        mCodec.configure(format, surface, null, 0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public void setCallback(MediaCodec.Callback callback, Handler handler) {
+        mCodec.setCallback(callback, handler);
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mCodec.getInputBuffers();
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mCodec.getOutputBuffers();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+            long presentationTimeUs, int flags) {
+        mCodec.queueSecureInputBuffer(index, offset, info, presentationTimeUs, flags);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+}
@@ -0,0 +1,517 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaExtractor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays the first video and the first audio track of a media file. Each track is pumped by its
+ * own {@link DecodeWorker}. Audio is the master: it plays as fast as the {@link AudioTrackSink}
+ * consumes it, and video frames are scheduled against an {@link AudioMasterClock} that follows
+ * the audio playback position. Files without audio fall back to the system clock.
+ *
+ * The playback speed can be changed at any time, see {@link #setPlaybackSpeed(float)}: the audio
+ * is time-stretched, both clocks advance at that speed, and video frames that can't keep up are
+ * dropped.
+ */
+public class PlaybackEngine {
+
+    private static final String TAG = "PlaybackEngine";
+
+    /**
+     * Seek to the sync sample at or before the target, which is as fast as a seek gets.
+     */
+    public static final int SEEK_MODE_FAST = 0;
+
+    /**
+     * Seek to the exact target by decoding forward from the sync sample before it without
+     * presenting anything.
+     */
+    public static final int SEEK_MODE_ACCURATE = 1;
+
+    /**
+     * Default limit for the compressed data read ahead per track.
+     */
+    public static final int DEFAULT_PREFETCH_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Default limit for the media time read ahead per track.
+     */
+    public static final long DEFAULT_PREFETCH_DURATION_US = 2000000;
+
+    /**
+     * Callback for the end of playback.
+     */
+    public interface Listener {
+        /**
+         * Every track has reached its end of stream or failed.
+         */
+        void onPlaybackCompleted(PlaybackEngine sender);
+
+        /**
+         * A track failed to decode. The other track, if any, plays on, and
+         * {@link #onPlaybackCompleted(PlaybackEngine)} follows once it has ended.
+         */
+        void onPlaybackError(PlaybackEngine sender, Exception e);
+    }
+
+    // Time to first frame of every playback in the process, by whether the video decoder was
+    // created or taken from a pool, so the two can be compared over repeated starts.
+    private static final PipelineMetrics sStartupMetrics = new PipelineMetrics("startup");
+
+    private final String mPath;
+    private final Surface mSurface;
+    private final SystemMediaClock mClock = new SystemMediaClock();
+
+    private DecodeWorker mVideoWorker;
+    private DecodeWorker mAudioWorker;
+    private int mActiveTracks;
+
+    private int mPrefetchBytes = DEFAULT_PREFETCH_BYTES;
+    private long mPrefetchDurationUs = DEFAULT_PREFETCH_DURATION_US;
+    private boolean mSharedDemuxing = true;
+    private CodecPool mCodecPool;
+    private boolean mMappedDataSource;
+
+    private float mSpeed = 1;
+    // The audio sink and the video sync policy of the current playback, to pass speed changes
+    // on to. Null while there is no such track.
+    private AudioTrackSink mAudioSink;
+    private SyncPolicy mVideoSyncPolicy;
+
+    // Stage latencies and time to first frame per track, recreated by every start().
+    private PipelineMetrics mVideoMetrics;
+    private PipelineMetrics mAudioMetrics;
+
+    // Sync samples of the video track, built in the background once playback starts and used
+    // to resolve fast seeks. Null until the scan has finished.
+    private volatile SyncSampleIndex mSyncSampleIndex;
+    private Thread mIndexThread;
+
+    private Listener mListener;
+    private Handler mHandler;
+
+    /**
+     * @param path Path of the media file to play.
+     * @param surface Surface to render the decoded video frames.
+     */
+    public PlaybackEngine(String path, Surface surface) {
+        mPath = path;
+        mSurface = surface;
+    }
+
+    /**
+     * @param listener the listener for callback.
+     * @param handler message handler for posting the callback. The decode workers report to
+     *                the engine on the same handler.
+     */
+    public void setListener(Listener listener, Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+        if (mHandler == null) {
+            if (Looper.myLooper() != null) {
+                mHandler = new Handler();
+            } else {
+                throw new IllegalArgumentException(
+                        "Looper doesn't exist in the calling thread");
+            }
+        }
+    }
+
+    /**
+     * Sets how far each track is read ahead of its decoder on a separate thread, which absorbs
+     * slow reads from storage. A track is read ahead until either limit is reached. Must be
+     * called before {@link #start()}.
+     *
+     * @param maxBytes Compressed bytes to read ahead per track, or 0 to read the samples on
+     *                 the decode threads directly.
+     * @param maxDurationUs Media time to read ahead per track.
+     */
+    public void setPrefetchLimits(int maxBytes, long maxDurationUs) {
+        mPrefetchBytes = maxBytes;
+        mPrefetchDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Sets whether both tracks are read through a single extractor, which opens and parses the
+     * file once and reads it in one pass, or through an extractor per track. Only applies while
+     * prefetching is enabled, see {@link #setPrefetchLimits(int, long)}. Defaults to true. Must
+     * be called before {@link #start()}.
+     */
+    public void setSharedDemuxing(boolean shared) {
+        mSharedDemuxing = shared;
+    }
+
+    /**
+     * Sets a pool to take the decoders from and return them to on {@link #release()}, which
+     * saves creating them again when another file is played. Must be called before
+     * {@link #start()}.
+     *
+     * @param pool The pool, or null to create and release the decoders every time.
+     */
+    public void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Sets whether the file is read through a {@link MappedFileDataSource}, which pages in
+     * ahead of the extractor and keeps the regions around seek targets in memory, instead of
+     * leaving the I/O to the framework. Takes effect from Marshmallow on. Defaults to false.
+     * Must be called before {@link #start()}.
+     */
+    public void setMappedDataSource(boolean mapped) {
+        mMappedDataSource = mapped;
+    }
+
+    /**
+     * Sets how fast playback runs, e.g. 1.5 to play one and a half times as fast. The audio
+     * keeps its pitch. May be called before or during playback.
+     *
+     * @param speed Between {@link TimeStretcher#MIN_SPEED} and {@link TimeStretcher#MAX_SPEED}.
+     */
+    public void setPlaybackSpeed(float speed) {
+        if (speed < TimeStretcher.MIN_SPEED || speed > TimeStretcher.MAX_SPEED) {
+            throw new IllegalArgumentException("Speed out of range: " + speed);
+        }
+        mSpeed = speed;
+        mClock.setSpeed(speed);
+        if (mAudioSink != null) {
+            mAudioSink.setPlaybackSpeed(speed);
+        }
+        if (mVideoSyncPolicy != null) {
+            mVideoSyncPolicy.setSpeed(speed);
+        }
+    }
+
+    public float getPlaybackSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Opens the tracks, creates their decoders and starts the decode threads.
+     */
+    public void start() throws IOException {
+        if (mHandler == null) {
+            setListener(null, null);
+        }
+        mVideoMetrics = new PipelineMetrics("video");
+        mAudioMetrics = new PipelineMetrics("audio");
+        mVideoMetrics.markStart();
+        mAudioMetrics.markStart();
+        boolean shared = mSharedDemuxing && mPrefetchBytes > 0;
+
+        MediaExtractor videoExtractor = openExtractor();
+        MediaCodecWrapper videoCodec = null;
+        int nTracks = videoExtractor.getTrackCount();
+        int videoTrack = -1;
+        for (int i = 0; i < nTracks; ++i) {
+            videoCodec = MediaCodecWrapper.fromVideoFormat(videoExtractor.getTrackFormat(i),
+                    mSurface, true, mCodecPool);
+            if (videoCodec != null) {
+                videoTrack = i;
+                break;
+            }
+        }
+
+        MediaExtractor audioExtractor = shared ? videoExtractor : openExtractor();
+        AudioMediaCodecWrapper audioCodec = null;
+        int audioTrack = -1;
+        for (int i = 0; i < nTracks; ++i) {
+            audioCodec = AudioMediaCodecWrapper.fromAudioFormat(audioExtractor.getTrackFormat(i),
+                    true, mCodecPool);
+            if (audioCodec != null) {
+                audioTrack = i;
+                break;
+            }
+        }
+
+        SampleSource videoSource = null;
+        SampleSource audioSource = null;
+        if (shared) {
+            Demuxer demuxer = new Demuxer(videoExtractor);
+            if (videoCodec != null) {
+                SampleQueue queue = demuxer.addTrack(videoTrack, mPrefetchBytes,
+                        mPrefetchDurationUs);
+                queue.setMetrics(mVideoMetrics);
+                videoSource = queue;
+            }
+            if (audioCodec != null) {
+                SampleQueue queue = demuxer.addTrack(audioTrack, mPrefetchBytes,
+                        mPrefetchDurationUs);
+                queue.setMetrics(mAudioMetrics);
+                audioSource = queue;
+            }
+            if (videoSource != null || audioSource != null) {
+                demuxer.start();
+            } else {
+                videoExtractor.release();
+            }
+        } else {
+            if (videoCodec != null) {
+                videoSource = openSampleSource(videoExtractor, videoTrack, mVideoMetrics);
+            } else {
+                videoExtractor.release();
+            }
+            if (audioCodec != null) {
+                audioSource = openSampleSource(audioExtractor, audioTrack, mAudioMetrics);
+            } else {
+                audioExtractor.release();
+            }
+        }
+
+        final boolean videoCodecReused = videoCodec != null && videoCodec.isCodecReused();
+        DecodeWorker.Listener trackListener = new DecodeWorker.Listener() {
+            @Override
+            public void onFirstSample(DecodeWorker sender) {
+                if (sender == mVideoWorker) {
+                    long timeToFirstFrameUs =
+                            mVideoMetrics.snapshot().getTimeToFirstSampleUs();
+                    sStartupMetrics.record(videoCodecReused
+                            ? PipelineMetrics.STAGE_FIRST_FRAME_POOLED_CODEC
+                            : PipelineMetrics.STAGE_FIRST_FRAME_NEW_CODEC,
+                            timeToFirstFrameUs * 1000);
+                }
+            }
+
+            @Override
+            public void onEndOfStream(DecodeWorker sender) {
+                onTrackEnded();
+            }
+
+            @Override
+            public void onError(DecodeWorker sender, Exception e) {
+                if (mListener != null) {
+                    mListener.onPlaybackError(PlaybackEngine.this, e);
+                }
+                onTrackEnded();
+            }
+        };
+
+        if (videoCodec != null) {
+            MediaClock videoClock = mClock;
+            if (audioCodec != null) {
+                videoClock = new AudioMasterClock(audioCodec.getAudioTrackSink(), mClock);
+            }
+            mVideoWorker = new DecodeWorker("VideoDecode", videoCodec, videoSource, videoClock,
+                    true);
+            mVideoSyncPolicy = new SyncPolicy();
+            mVideoSyncPolicy.setSpeed(mSpeed);
+            mVideoWorker.setSyncPolicy(mVideoSyncPolicy);
+            mVideoWorker.setListener(trackListener, mHandler);
+            mVideoWorker.setMetrics(mVideoMetrics);
+            videoCodec.setMetrics(mVideoMetrics);
+            mActiveTracks++;
+        }
+        if (audioCodec != null) {
+            mAudioSink = audioCodec.getAudioTrackSink();
+            mAudioSink.setPlaybackSpeed(mSpeed);
+            mAudioWorker = new DecodeWorker("AudioDecode", audioCodec, audioSource, null, true);
+            mAudioWorker.setListener(trackListener, mHandler);
+            mAudioWorker.setMetrics(mAudioMetrics);
+            audioCodec.setMetrics(mAudioMetrics);
+            mActiveTracks++;
+        }
+
+        mClock.setSpeed(mSpeed);
+        mClock.start();
+        if (mVideoWorker != null) {
+            mVideoWorker.start();
+        }
+        if (mAudioWorker != null) {
+            mAudioWorker.start();
+        }
+        if (videoTrack >= 0) {
+            startIndexing(videoTrack);
+        }
+    }
+
+    /**
+     * Continues playback from {@code timeUs}. Returns immediately; the decode threads carry out
+     * the seek. Has no effect on tracks that have already reached their end of stream.
+     *
+     * @param timeUs Target position, in microseconds.
+     * @param mode {@link #SEEK_MODE_FAST} or {@link #SEEK_MODE_ACCURATE}. A fast seek before
+     *             the sync sample index is ready is carried out as an accurate one.
+     */
+    public void seekTo(long timeUs, int mode) {
+        long positionUs = getSeekPositionUs(mSyncSampleIndex, timeUs, mode);
+        // Both tracks decode forward to the same position, so audio and video agree on where
+        // playback resumes. A fast seek simply picks a position that needs no decoding forward.
+        mClock.start(positionUs);
+        if (mVideoWorker != null) {
+            mVideoWorker.seekTo(positionUs);
+        }
+        if (mAudioWorker != null) {
+            mAudioWorker.seekTo(positionUs);
+        }
+    }
+
+    /**
+     * @return the current playback position, in microseconds.
+     */
+    public long getPositionUs() {
+        return mClock.getTimeUs();
+    }
+
+    /**
+     * @param index Sync samples of the video track, or null if they aren't known yet.
+     * @return the position a seek to {@code timeUs} in {@code mode} resumes playback from.
+     */
+    static long getSeekPositionUs(SyncSampleIndex index, long timeUs, int mode) {
+        if (mode == SEEK_MODE_FAST && index != null) {
+            return index.getSyncTimeAtOrBefore(timeUs);
+        }
+        return timeUs;
+    }
+
+    /**
+     * @return the stage latencies of the video track of the current playback, or null before
+     * {@link #start()}.
+     */
+    public PipelineMetrics getVideoMetrics() {
+        return mVideoMetrics;
+    }
+
+    /**
+     * @return the stage latencies of the audio track of the current playback, or null before
+     * {@link #start()}.
+     */
+    public PipelineMetrics getAudioMetrics() {
+        return mAudioMetrics;
+    }
+
+    /**
+     * @return the time to first frame of every playback so far, split into
+     * {@link PipelineMetrics#STAGE_FIRST_FRAME_NEW_CODEC} and
+     * {@link PipelineMetrics#STAGE_FIRST_FRAME_POOLED_CODEC}.
+     */
+    public static PipelineMetrics getStartupMetrics() {
+        return sStartupMetrics;
+    }
+
+    /**
+     * Logs the stage latencies of both tracks, and the time to first frame of every playback so
+     * far with a new and with a pooled video decoder.
+     */
+    public void dumpMetrics() {
+        if (mVideoMetrics != null) {
+            mVideoMetrics.dump();
+        }
+        if (mAudioMetrics != null) {
+            mAudioMetrics.dump();
+        }
+        sStartupMetrics.dump();
+    }
+
+    /**
+     * Opens the file with no track selected.
+     */
+    private MediaExtractor openExtractor() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        setDataSource(extractor);
+        int nTracks = extractor.getTrackCount();
+        for (int i = 0; i < nTracks; ++i) {
+            extractor.unselectTrack(i);
+        }
+        return extractor;
+    }
+
+    /**
+     * Counts a track as done, whether it reached its end or failed, and reports the end of
+     * playback once no track is left.
+     */
+    private void onTrackEnded() {
+        if (--mActiveTracks == 0 && mListener != null) {
+            mListener.onPlaybackCompleted(this);
+        }
+    }
+
+    /**
+     * Points {@code extractor} at the file, through a data source of its own if the file is to
+     * be memory mapped. The extractor closes the data source when it is released.
+     */
+    private void setDataSource(MediaExtractor extractor) throws IOException {
+        if (mMappedDataSource && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setMappedDataSource(extractor, new File(mPath));
+        } else {
+            extractor.setDataSource(mPath);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setMappedDataSource(MediaExtractor extractor, File file)
+            throws IOException {
+        extractor.setDataSource(new MappedFileDataSource(file));
+    }
+
+    /**
+     * Wraps an extractor for a single track, reading ahead on a {@link Demuxer} thread unless
+     * prefetching is disabled.
+     */
+    private SampleSource openSampleSource(MediaExtractor extractor, int track,
+            PipelineMetrics metrics) {
+        if (mPrefetchBytes <= 0) {
+            extractor.selectTrack(track);
+            ExtractorSampleSource source = new ExtractorSampleSource(extractor);
+            source.setMetrics(metrics);
+            return source;
+        }
+        Demuxer demuxer = new Demuxer(extractor);
+        SampleQueue queue = demuxer.addTrack(track, mPrefetchBytes, mPrefetchDurationUs);
+        queue.setMetrics(metrics);
+        demuxer.start();
+        return queue;
+    }
+
+    /**
+     * Scans the sync samples of the video track on a background thread, with an extractor of
+     * its own so the decode thread isn't disturbed.
+     */
+    private void startIndexing(final int track) {
+        mIndexThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    setDataSource(extractor);
+                    extractor.selectTrack(track);
+                    mSyncSampleIndex = SyncSampleIndex.scan(extractor);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to index sync samples of " + mPath, e);
+                } finally {
+                    extractor.release();
+                }
+            }
+        }, "SyncSampleIndex");
+        mIndexThread.setPriority(Thread.MIN_PRIORITY);
+        mIndexThread.start();
+    }
+
+    /**
+     * Stops the decode threads and releases all codecs and extractors.
+     */
+    public void release() {
+        if (mIndexThread != null) {
+            mIndexThread.interrupt();
+            mIndexThread = null;
+        }
+        if (mVideoWorker != null) {
+            mVideoWorker.stop();
+            mVideoWorker = null;
+        }
+        if (mAudioWorker != null) {
+            mAudioWorker.stop();
+            mAudioWorker = null;
+        }
+        mAudioSink = null;
+        mVideoSyncPolicy = null;
+        mActiveTracks = 0;
+    }
+}
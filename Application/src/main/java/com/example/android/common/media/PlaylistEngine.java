@@ -0,0 +1,955 @@
+package com.example.android.common.media;
+
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plays a list of media files back to back without gaps. While an item is playing, the next one
+ * is opened ahead of time: its extractor starts reading and its audio decoder is pre-rolled, i.e.
+ * fed until its output buffers are full, with the decoded audio held back. When the audio of the
+ * current item ends, the next item's audio continues right away on the same
+ * {@link AudioTrack}, which only has to be recreated if the PCM format differs.
+ *
+ * Every item keeps its own media timeline. The audio track plays one continuous timeline, and
+ * each item is placed on it at the point where its audio starts; its video frames are scheduled
+ * against the audio position shifted by that offset. A {@link Surface} only takes one producer
+ * at a time, so the next item's video decoder is created once the current one has rendered its
+ * last frame; its samples have been read ahead by then.
+ *
+ * The time between the last audio buffer of one item and the first of the next is recorded as
+ * {@link PipelineMetrics#STAGE_ITEM_GAP} in {@link #getAudioMetrics()}. The playback speed
+ * carries over from item to item, see {@link #setPlaybackSpeed(float)}.
+ */
+public class PlaylistEngine {
+
+    private static final String TAG = "PlaylistEngine";
+
+    /**
+     * Default for how long before the end of the current item the next one is opened.
+     */
+    public static final long DEFAULT_PREROLL_US = 5000000;
+
+    // How often the position of the current item is checked against the pre-roll point.
+    private static final long PREROLL_CHECK_INTERVAL_MS = 250;
+
+    /**
+     * Callback for the progress through the playlist.
+     */
+    public interface Listener {
+        /**
+         * The item at {@code index} started playing.
+         */
+        void onItemStarted(PlaylistEngine sender, int index);
+
+        /**
+         * The last item has finished playing.
+         */
+        void onPlaylistCompleted(PlaylistEngine sender);
+    }
+
+    /**
+     * One opened entry of the playlist.
+     */
+    private class Item {
+        final int index;
+        final String path;
+        // Media time covered by the item, or -1 if the container doesn't say.
+        long durationUs = -1;
+
+        SampleSource audioSource;
+        ItemAudioSink audioSink;
+        DecodeWorker audioWorker;
+        boolean audioDone;
+
+        MediaFormat videoFormat;
+        SampleSource videoSource;
+        SyncPolicy videoSyncPolicy;
+        DecodeWorker videoWorker;
+        boolean videoDone;
+
+        ItemClock clock;
+
+        Item(int index, String path) {
+            this.index = index;
+            this.path = path;
+        }
+
+        boolean isEnded() {
+            return (audioWorker == null || audioDone) && (videoFormat == null || videoDone);
+        }
+    }
+
+    /**
+     * The tracks of an opened file that are played, either of which may be missing.
+     */
+    static class Tracks {
+        // Media time covered by the tracks, or -1 if the container doesn't say.
+        long durationUs = -1;
+        MediaFormat audioFormat;
+        SampleSource audioSource;
+        MediaFormat videoFormat;
+        SampleSource videoSource;
+    }
+
+    /**
+     * What is left to do once the items have moved on under the lock: release the items that
+     * are done, then start the video of the item that has the surface now. Both wait for
+     * decode threads or codecs, so the control thread does them without the lock held.
+     */
+    private static class Transition {
+        final List<Item> released = new ArrayList<Item>(2);
+        Item videoItem;
+    }
+
+    /**
+     * {@link OutputSink} of one item's audio decoder, which forwards to the shared
+     * {@link AudioTrackSink}. The format the decoder reports is only passed on with the item's
+     * first buffer, so a pre-rolled item doesn't disturb the one still playing. The first buffer
+     * also places the item on the timeline of the track, right after the audio written before.
+     */
+    private static class ItemAudioSink implements OutputSink {
+        private final AudioTrackSink mShared;
+        private final PipelineMetrics mMetrics;
+
+        // Latest format reported by the decoder, passed on with the first buffer.
+        private volatile MediaFormat mFormat;
+        // True, once a buffer has been written since the start or the last flush.
+        private volatile boolean mStarted;
+
+        // Track the item's audio went to, or null before the first buffer.
+        private volatile AudioTrack mTrack;
+        // Item time zero on the timeline of the track.
+        private volatile long mOffsetUs;
+
+        // The item played before this one, for the gap between the two. Cleared once measured.
+        private volatile ItemAudioSink mPrevious;
+        // System.nanoTime() after the latest buffer was written, or 0.
+        private volatile long mLastWriteNs;
+
+        ItemAudioSink(AudioTrackSink shared, PipelineMetrics metrics) {
+            mShared = shared;
+            mMetrics = metrics;
+        }
+
+        void setPrevious(ItemAudioSink previous) {
+            mPrevious = previous;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (mStarted) {
+                mShared.onOutputFormatChanged(format);
+            } else {
+                mFormat = format;
+            }
+        }
+
+        @Override
+        public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+                MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+            if (mStarted || !render || info.size <= 0) {
+                mShared.onOutputBuffer(codec, index, buffer, info, render, renderTimeNs);
+                mLastWriteNs = System.nanoTime();
+                return;
+            }
+
+            mStarted = true;
+            MediaFormat format = mFormat;
+            if (format != null) {
+                mShared.onOutputFormatChanged(format);
+            }
+            long ptsUs = info.presentationTimeUs;
+            long writtenUs = mShared.getWrittenPositionUs();
+            AudioTrack track = mShared.getAudioTrack();
+            mShared.onOutputBuffer(codec, index, buffer, info, render, renderTimeNs);
+            long nowNs = System.nanoTime();
+
+            AudioTrack newTrack = mShared.getAudioTrack();
+            // Continue the timeline of the track if it was kept; a new track is anchored at
+            // this buffer, which puts item time zero at zero.
+            mOffsetUs = newTrack == track && writtenUs >= 0 ? writtenUs - ptsUs : 0;
+            mTrack = newTrack;
+            mLastWriteNs = nowNs;
+
+            ItemAudioSink previous = mPrevious;
+            mPrevious = null;
+            if (previous != null && previous.mLastWriteNs != 0) {
+                long gapNs = nowNs - previous.mLastWriteNs;
+                mMetrics.record(PipelineMetrics.STAGE_ITEM_GAP, gapNs);
+                Log.i(TAG, String.format(Locale.US,
+                        "Item gap: %d us (%s audio track, %d underruns)", gapNs / 1000,
+                        newTrack == track ? "same" : "new", mShared.getUnderrunCount()));
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Only the playing item is ever sought.
+            mStarted = false;
+            mShared.flush();
+        }
+
+        @Override
+        public void release() {
+            // The shared sink outlives the item.
+        }
+    }
+
+    /**
+     * The clock an item's video is scheduled against: the position of the shared audio track,
+     * moved to the item's timeline. Once the track has been replaced by one in another format,
+     * the clock carries on from the last position the item had on it, at the playback speed.
+     * Items without audio, and items whose audio hasn't started yet, run on the fallback clock.
+     */
+    private class ItemClock implements MediaClock {
+        private final ItemAudioSink mItemSink;
+
+        // Takes over from the audio track once it has been replaced.
+        private final SystemMediaClock mDetachedClock = new SystemMediaClock();
+        private boolean mDetached;
+        // The latest position read from the audio track, or -1. Guarded by this, like
+        // mDetached.
+        private long mLastPositionUs = -1;
+
+        ItemClock(ItemAudioSink itemSink, float speed) {
+            mItemSink = itemSink;
+            mDetachedClock.setSpeed(speed);
+        }
+
+        void setSpeed(float speed) {
+            mDetachedClock.setSpeed(speed);
+        }
+
+        @Override
+        public synchronized long getTimeUs() {
+            if (mDetached) {
+                return mDetachedClock.getTimeUs();
+            }
+            if (mItemSink != null) {
+                AudioTrack track = mItemSink.mTrack;
+                if (track != null && track != mAudioSink.getAudioTrack()) {
+                    if (mLastPositionUs < 0) {
+                        return mClock.getTimeUs();
+                    }
+                    mDetached = true;
+                    mDetachedClock.start(mLastPositionUs);
+                    return mLastPositionUs;
+                }
+                long positionUs = mAudioSink.getPlaybackPositionUs();
+                if (track != null && positionUs >= 0) {
+                    mLastPositionUs = positionUs - mItemSink.mOffsetUs;
+                    return mLastPositionUs;
+                }
+            }
+            return mClock.getTimeUs();
+        }
+    }
+
+    private final List<String> mPaths;
+    private final Surface mSurface;
+    // Plays the audio of every item, so the track survives the transitions.
+    private final AudioTrackSink mAudioSink;
+    private final SystemMediaClock mClock = new SystemMediaClock();
+
+    private int mPrefetchBytes = PlaybackEngine.DEFAULT_PREFETCH_BYTES;
+    private long mPrefetchDurationUs = PlaybackEngine.DEFAULT_PREFETCH_DURATION_US;
+    private long mPrerollUs = DEFAULT_PREROLL_US;
+    private CodecPool mCodecPool;
+    private float mSpeed = 1;
+
+    private PipelineMetrics mVideoMetrics;
+    private PipelineMetrics mAudioMetrics;
+
+    // The decode workers report here, so transitions don't wait on a busy UI thread. Seeks
+    // run here too. The thread is only created if no handler was passed in.
+    private HandlerThread mControlThread;
+    private Handler mControlHandler;
+
+    private Listener mListener;
+    private Handler mHandler;
+
+    // The item being played, the item whose video is still finishing after its audio has
+    // ended, and the item opened ahead. Guarded by this, and only changed on the control
+    // thread after start(), apart from release().
+    private Item mCurrent;
+    private Item mFinishing;
+    private Item mNext;
+    // Index of the next item to open. Only touched on the control thread after start().
+    private int mNextIndex;
+    private boolean mReleased;
+
+    private final DecodeWorker.Listener mTrackListener = new DecodeWorker.Listener() {
+        @Override
+        public void onFirstSample(DecodeWorker sender) {
+        }
+
+        @Override
+        public void onEndOfStream(DecodeWorker sender) {
+            onTrackEnded(sender);
+        }
+
+        @Override
+        public void onError(DecodeWorker sender, Exception e) {
+            // Play on without the track, as if it had ended.
+            Log.w(TAG, "Track failed, skipping the rest of it", e);
+            onTrackEnded(sender);
+        }
+    };
+
+    private final Runnable mPrerollCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkPreroll();
+        }
+    };
+
+    /**
+     * @param paths Paths of the media files to play, in order.
+     * @param surface Surface to render the decoded video frames.
+     */
+    public PlaylistEngine(List<String> paths, Surface surface) {
+        this(paths, surface, new AudioTrackSink(), null);
+    }
+
+    /**
+     * Plays into {@code audioSink}, and runs the transitions on {@code controlHandler} instead
+     * of a thread of its own if not null. Tests pass fakes.
+     */
+    PlaylistEngine(List<String> paths, Surface surface, AudioTrackSink audioSink,
+            Handler controlHandler) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Empty playlist");
+        }
+        mPaths = new ArrayList<String>(paths);
+        mSurface = surface;
+        mAudioSink = audioSink;
+        mControlHandler = controlHandler;
+    }
+
+    /**
+     * @param listener the listener for callback.
+     * @param handler message handler for posting the callback.
+     */
+    public void setListener(Listener listener, Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+        if (listener != null && mHandler == null) {
+            if (Looper.myLooper() != null) {
+                mHandler = new Handler();
+            } else {
+                throw new IllegalArgumentException(
+                        "Looper doesn't exist in the calling thread");
+            }
+        }
+    }
+
+    /**
+     * Sets how far each track is read ahead of its decoder, see
+     * {@link PlaybackEngine#setPrefetchLimits(int, long)}. Items are always read ahead, so the
+     * next one has samples ready when it starts. Must be called before {@link #start()}.
+     */
+    public void setPrefetchLimits(int maxBytes, long maxDurationUs) {
+        if (maxBytes <= 0 || maxDurationUs <= 0) {
+            throw new IllegalArgumentException("Prefetch limits must be positive");
+        }
+        mPrefetchBytes = maxBytes;
+        mPrefetchDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Sets how long before the end of the current item the next one is opened and pre-rolled.
+     * Items that don't declare their duration have the next one opened right away. Must be
+     * called before {@link #start()}.
+     */
+    public void setPrerollUs(long prerollUs) {
+        mPrerollUs = prerollUs;
+    }
+
+    /**
+     * Sets a pool to take the decoders from and return them to, see
+     * {@link PlaybackEngine#setCodecPool(CodecPool)}. Must be called before {@link #start()}.
+     */
+    public void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Sets how fast playback runs, see {@link PlaybackEngine#setPlaybackSpeed(float)}. May be
+     * called before or during playback.
+     */
+    public synchronized void setPlaybackSpeed(float speed) {
+        mAudioSink.setPlaybackSpeed(speed);
+        mSpeed = speed;
+        mClock.setSpeed(speed);
+        Item[] items = {mFinishing, mCurrent, mNext};
+        for (Item item : items) {
+            if (item == null) {
+                continue;
+            }
+            item.clock.setSpeed(speed);
+            if (item.videoSyncPolicy != null) {
+                item.videoSyncPolicy.setSpeed(speed);
+            }
+        }
+    }
+
+    /**
+     * Opens the first item that can be played and starts it.
+     *
+     * @throws IOException if none of the items can be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (mVideoMetrics != null) {
+            throw new IllegalStateException("Playlist already started");
+        }
+        mVideoMetrics = new PipelineMetrics("video");
+        mAudioMetrics = new PipelineMetrics("audio");
+        mVideoMetrics.markStart();
+        mAudioMetrics.markStart();
+        if (mControlHandler == null) {
+            mControlThread = new HandlerThread(TAG);
+            mControlThread.start();
+            mControlHandler = new Handler(mControlThread.getLooper());
+        }
+
+        Item first = openNext();
+        if (first == null) {
+            release();
+            throw new IOException("No playable item in the playlist");
+        }
+        mCurrent = first;
+        final Transition transition = new Transition();
+        activate(first, null, transition);
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                completeTransition(transition);
+            }
+        });
+    }
+
+    /**
+     * Continues the current item from {@code timeUs}, on the item's own timeline. Returns
+     * immediately; the control thread and the decode threads carry out the seek.
+     */
+    public synchronized void seekTo(final long timeUs) {
+        if (mReleased || mControlHandler == null) {
+            return;
+        }
+        mControlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                performSeek(timeUs);
+            }
+        });
+    }
+
+    /**
+     * @return the index of the item being played, or -1 if there is none.
+     */
+    public synchronized int getCurrentIndex() {
+        return mCurrent != null ? mCurrent.index : -1;
+    }
+
+    /**
+     * @return the stage latencies of the video of all items, or null before {@link #start()}.
+     */
+    public PipelineMetrics getVideoMetrics() {
+        return mVideoMetrics;
+    }
+
+    /**
+     * @return the stage latencies of the audio of all items and the gaps between them, or null
+     * before {@link #start()}.
+     */
+    public PipelineMetrics getAudioMetrics() {
+        return mAudioMetrics;
+    }
+
+    /**
+     * Logs the stage latencies of both tracks.
+     */
+    public void dumpMetrics() {
+        if (mVideoMetrics != null) {
+            mVideoMetrics.dump();
+        }
+        if (mAudioMetrics != null) {
+            mAudioMetrics.dump();
+        }
+    }
+
+    /**
+     * Stops playback and releases all codecs, extractors and the audio track.
+     */
+    public void release() {
+        Item[] items;
+        HandlerThread controlThread;
+        synchronized (this) {
+            mReleased = true;
+            if (mControlHandler != null) {
+                mControlHandler.removeCallbacksAndMessages(null);
+            }
+            items = new Item[] {mFinishing, mCurrent, mNext};
+            mFinishing = null;
+            mCurrent = null;
+            mNext = null;
+            controlThread = mControlThread;
+            mControlThread = null;
+        }
+        // Stopping the decode threads takes a while; the control thread may be waiting for
+        // the lock meanwhile. It won't start anything once released.
+        for (Item item : items) {
+            releaseItem(item);
+        }
+        mAudioSink.release();
+        if (controlThread != null) {
+            controlThread.quit();
+        }
+    }
+
+    /**
+     * Lets {@code item} play: releases its pre-rolled audio and, unless the previous item's
+     * video is still finishing, has {@code transition} start its video. Called with the lock
+     * held.
+     *
+     * @param previous The item played before, for measuring the gap, or null.
+     */
+    private void activate(Item item, Item previous, Transition transition) {
+        mClock.start();
+        if (item.audioWorker != null) {
+            if (previous != null) {
+                item.audioSink.setPrevious(previous.audioSink);
+            }
+            item.audioWorker.setHeld(false);
+        }
+        if (mFinishing == null) {
+            transition.videoItem = item;
+        }
+        Log.i(TAG, "Playing item " + item.index + ": " + item.path);
+        notifyItemStarted(item.index);
+        mControlHandler.removeCallbacks(mPrerollCheck);
+        mControlHandler.post(mPrerollCheck);
+    }
+
+    /**
+     * Continues the current item from {@code timeUs}. Runs on the control thread.
+     */
+    private void performSeek(long timeUs) {
+        Item item;
+        Transition transition = new Transition();
+        synchronized (this) {
+            if (mReleased || mCurrent == null) {
+                return;
+            }
+            item = mCurrent;
+            if (mFinishing != null) {
+                // Both tracks of the demuxer have to take part in the seek, so the current
+                // video can't wait for the previous item any longer.
+                transition.released.add(mFinishing);
+                transition.videoItem = item;
+                mFinishing = null;
+            }
+        }
+        completeTransition(transition);
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mClock.start(Math.max(timeUs, 0));
+            if (item.audioWorker != null) {
+                item.audioWorker.seekTo(timeUs);
+            }
+            if (item.videoWorker != null) {
+                item.videoWorker.seekTo(timeUs);
+            }
+        }
+    }
+
+    /**
+     * Called on the control thread when a track of any item has played its last sample.
+     */
+    private void onTrackEnded(DecodeWorker worker) {
+        Item item;
+        boolean audio;
+        boolean missedPreroll = false;
+        Transition transition = new Transition();
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            item = mCurrent != null && (worker == mCurrent.audioWorker
+                    || worker == mCurrent.videoWorker) ? mCurrent : mFinishing;
+            if (item == null) {
+                return;
+            }
+            audio = worker == item.audioWorker;
+            if (audio) {
+                item.audioDone = true;
+            } else {
+                item.videoDone = true;
+            }
+
+            if (item == mFinishing) {
+                if (item.isEnded()) {
+                    transition.released.add(item);
+                    transition.videoItem = mCurrent;
+                    mFinishing = null;
+                    if (mCurrent == null) {
+                        // The last item ended while this video was still playing.
+                        notifyPlaylistCompleted();
+                    }
+                }
+            } else if (mNext != null || (!audio && !item.isEnded())
+                    || mNextIndex >= mPaths.size()) {
+                advance(item, audio, transition);
+            } else {
+                missedPreroll = true;
+            }
+        }
+
+        if (missedPreroll) {
+            // The pre-roll point was missed, e.g. the item was shorter than the pre-roll time
+            // or was sought close to its end. There will be a gap. Open the next item without
+            // holding the lock, like checkPreroll() does.
+            Item next = openNext();
+            synchronized (this) {
+                if (mReleased) {
+                    transition.released.add(next);
+                } else {
+                    mNext = next;
+                    advance(item, audio, transition);
+                }
+            }
+        }
+        completeTransition(transition);
+    }
+
+    /**
+     * Moves on from the current item {@code item}, one of whose tracks has just ended, to the
+     * item opened ahead, if it's time to. Called with the lock held; what is left to do goes
+     * to {@code transition}.
+     */
+    private void advance(Item item, boolean audio, Transition transition) {
+        if (audio && mNext != null && mNext.audioWorker != null) {
+            // Hand the audio over right away; the video follows once this item's video
+            // has finished.
+            if (mFinishing != null) {
+                transition.released.add(mFinishing);
+            }
+            mFinishing = item.isEnded() ? null : item;
+            if (mFinishing == null) {
+                transition.released.add(item);
+            }
+            mCurrent = mNext;
+            mNext = null;
+            activate(mCurrent, item, transition);
+            return;
+        }
+
+        if (!item.isEnded()) {
+            return;
+        }
+        transition.released.add(item);
+        mCurrent = null;
+        // Without an item opened ahead, there is none left to play.
+        Item next = mNext;
+        mNext = null;
+        if (next == null) {
+            // Completed once the video still finishing, if any, has ended too.
+            if (mFinishing == null) {
+                notifyPlaylistCompleted();
+            }
+            return;
+        }
+        mCurrent = next;
+        activate(next, item, transition);
+    }
+
+    /**
+     * Releases the items {@code transition} holds, then starts the video of its item, which
+     * only takes the surface once the previous video decoder has let go of it. Runs on the
+     * control thread without the lock held.
+     */
+    private void completeTransition(Transition transition) {
+        for (int i = 0; i < transition.released.size(); i++) {
+            releaseItem(transition.released.get(i));
+        }
+        if (transition.videoItem != null) {
+            startVideo(transition.videoItem);
+        }
+    }
+
+    /**
+     * Opens the next item once the current one is within the pre-roll time of its end, and
+     * checks again later otherwise. Runs on the control thread.
+     */
+    private void checkPreroll() {
+        synchronized (this) {
+            if (mReleased || mNext != null || mCurrent == null
+                    || mNextIndex >= mPaths.size()) {
+                return;
+            }
+            Item item = mCurrent;
+            if (item.durationUs >= 0
+                    && item.durationUs - item.clock.getTimeUs() > mPrerollUs) {
+                mControlHandler.postDelayed(mPrerollCheck, PREROLL_CHECK_INTERVAL_MS);
+                return;
+            }
+        }
+
+        // Opening the file and creating the decoder takes a while; don't block seekTo() and
+        // release() meanwhile. Only the control thread opens items.
+        Item next = openNext();
+        synchronized (this) {
+            if (mReleased) {
+                releaseItem(next);
+            } else {
+                mNext = next;
+            }
+        }
+    }
+
+    /**
+     * Opens the item at {@link #mNextIndex}, skipping items that fail to open.
+     *
+     * @return the item, or null if there are no more playable items.
+     */
+    private Item openNext() {
+        while (mNextIndex < mPaths.size()) {
+            int index = mNextIndex++;
+            try {
+                return openItem(index);
+            } catch (IOException e) {
+                Log.w(TAG, "Skipping item " + index + ": " + mPaths.get(index), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens an item, starts reading ahead and pre-rolls its audio decoder.
+     */
+    private Item openItem(int index) throws IOException {
+        Item item = new Item(index, mPaths.get(index));
+        Tracks tracks = openTracks(item.path);
+        item.durationUs = tracks.durationUs;
+        item.audioSource = tracks.audioSource;
+        item.videoFormat = tracks.videoFormat;
+        item.videoSource = tracks.videoSource;
+
+        if (item.audioSource != null) {
+            item.audioSink = new ItemAudioSink(mAudioSink, mAudioMetrics);
+            SampleDecoder decoder;
+            try {
+                decoder = createAudioDecoder(tracks.audioFormat, item.audioSink);
+            } catch (IOException e) {
+                releaseItem(item);
+                throw e;
+            }
+            item.audioWorker = new DecodeWorker("AudioDecode" + index, decoder,
+                    item.audioSource, null, true);
+            item.audioSource = null;
+            item.audioWorker.setListener(mTrackListener, mControlHandler);
+            item.audioWorker.setMetrics(mAudioMetrics);
+            item.audioWorker.setHeld(true);
+            item.audioWorker.start();
+        }
+        synchronized (this) {
+            item.clock = new ItemClock(item.audioSink, mSpeed);
+        }
+        return item;
+    }
+
+    /**
+     * Opens the file at {@code path} with a {@link MediaExtractor} and starts reading its first
+     * audio and first video track ahead. Tests override this.
+     *
+     * @throws IOException if the file can't be opened or has neither track.
+     */
+    Tracks openTracks(String path) throws IOException {
+        Tracks tracks = new Tracks();
+        MediaExtractor extractor = new MediaExtractor();
+        int audioTrack = -1;
+        int videoTrack = -1;
+        try {
+            extractor.setDataSource(path);
+            int nTracks = extractor.getTrackCount();
+            for (int i = 0; i < nTracks; ++i) {
+                extractor.unselectTrack(i);
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (audioTrack < 0 && mime.startsWith("audio/")) {
+                    audioTrack = i;
+                    tracks.audioFormat = format;
+                } else if (videoTrack < 0 && mime.startsWith("video/")) {
+                    videoTrack = i;
+                    tracks.videoFormat = format;
+                } else {
+                    continue;
+                }
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    tracks.durationUs = Math.max(tracks.durationUs,
+                            format.getLong(MediaFormat.KEY_DURATION));
+                }
+            }
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+        if (audioTrack < 0 && videoTrack < 0) {
+            extractor.release();
+            throw new IOException("No audio or video track");
+        }
+
+        Demuxer demuxer = new Demuxer(extractor);
+        if (audioTrack >= 0) {
+            SampleQueue source = demuxer.addTrack(audioTrack, mPrefetchBytes,
+                    mPrefetchDurationUs);
+            source.setMetrics(mAudioMetrics);
+            tracks.audioSource = source;
+        }
+        if (videoTrack >= 0) {
+            SampleQueue source = demuxer.addTrack(videoTrack, mPrefetchBytes,
+                    mPrefetchDurationUs);
+            source.setMetrics(mVideoMetrics);
+            tracks.videoSource = source;
+        }
+        demuxer.start();
+        return tracks;
+    }
+
+    /**
+     * Creates and starts the audio decoder of an item. Tests override this.
+     */
+    SampleDecoder createAudioDecoder(MediaFormat format, OutputSink sink) throws IOException {
+        DecoderWrapper decoder = DecoderWrapper.fromFormat(format, sink, true, mCodecPool);
+        decoder.setMetrics(mAudioMetrics);
+        return decoder;
+    }
+
+    /**
+     * Creates and starts the video decoder of an item, rendering to the surface. Tests
+     * override this.
+     *
+     * @return the decoder, or null if there is none for the format.
+     */
+    SampleDecoder createVideoDecoder(MediaFormat format) throws IOException {
+        MediaCodecWrapper decoder = MediaCodecWrapper.fromVideoFormat(format, mSurface, true,
+                mCodecPool);
+        if (decoder != null) {
+            decoder.setMetrics(mVideoMetrics);
+        }
+        return decoder;
+    }
+
+    /**
+     * Creates the video decoder of {@code item} and starts rendering, unless the item has no
+     * video, it has been started already or the item has been released. The item may have
+     * become the finishing one meanwhile, if its audio was short. Runs on the control thread
+     * without the lock held, since creating the decoder takes a while.
+     */
+    private void startVideo(Item item) {
+        MediaFormat format;
+        synchronized (this) {
+            if (mReleased || (item != mCurrent && item != mFinishing) || item.videoFormat == null
+                    || item.videoWorker != null || item.videoDone) {
+                return;
+            }
+            format = item.videoFormat;
+        }
+        SampleDecoder decoder = null;
+        try {
+            decoder = createVideoDecoder(format);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create the video decoder of item " + item.index, e);
+        }
+        SampleSource unplayed = null;
+        synchronized (this) {
+            if (!mReleased && decoder != null) {
+                item.videoWorker = new DecodeWorker("VideoDecode" + item.index, decoder,
+                        item.videoSource, item.clock, true);
+                item.videoSource = null;
+                item.videoSyncPolicy = new SyncPolicy();
+                item.videoSyncPolicy.setSpeed(mSpeed);
+                item.videoWorker.setSyncPolicy(item.videoSyncPolicy);
+                item.videoWorker.setListener(mTrackListener, mControlHandler);
+                item.videoWorker.setMetrics(mVideoMetrics);
+                item.videoWorker.start();
+                return;
+            }
+            if (!mReleased) {
+                // Play the audio alone.
+                unplayed = item.videoSource;
+                item.videoSource = null;
+                item.videoFormat = null;
+            }
+        }
+        // Once released, release() takes care of the item's samples.
+        if (decoder != null) {
+            decoder.stopAndRelease();
+        }
+        if (unplayed != null) {
+            unplayed.release();
+        }
+    }
+
+    /**
+     * Stops the decode threads of {@code item} and releases its codecs and extractor.
+     */
+    private void releaseItem(Item item) {
+        if (item == null) {
+            return;
+        }
+        if (item.audioWorker != null) {
+            item.audioWorker.stop();
+        } else if (item.audioSource != null) {
+            item.audioSource.release();
+        }
+        item.audioSource = null;
+        if (item.videoWorker != null) {
+            item.videoWorker.stop();
+        } else if (item.videoSource != null) {
+            item.videoSource.release();
+        }
+        item.videoSource = null;
+    }
+
+    private void notifyItemStarted(final int index) {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onItemStarted(PlaylistEngine.this, index);
+            }
+        });
+    }
+
+    private void notifyPlaylistCompleted() {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPlaylistCompleted(PlaylistEngine.this);
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+/**
+ * The subset of the codec wrapper API that a {@link DecodeWorker} needs to pump one track.
+ * Both {@link MediaCodecWrapper} and {@link AudioMediaCodecWrapper} implement it, which also lets
+ * the feed loop run against a fake decoder.
+ */
+public interface SampleDecoder {
+
+    /**
+     * Reads the current sample of {@code extractor} into a free input buffer and queues it.
+     *
+     * @return True, if an input buffer was available and the sample was queued.
+     */
+    boolean writeSample(MediaExtractor extractor, boolean isSecure, long presentationTimeUs,
+            int flags);
+
+    /**
+     * Queues samples from {@code source} into as many free input buffers as there are,
+     * advancing the source past every sample queued. Once the source runs out of samples an
+     * end-of-stream buffer is queued and further calls do nothing.
+     *
+     * @return the number of input buffers queued.
+     */
+    int fillAvailable(SampleSource source);
+
+    /**
+     * @return True, if the end-of-stream input buffer has been queued.
+     */
+    boolean isEndOfInputQueued();
+
+    /**
+     * Copies the metadata of the output buffer at the head of the queue into
+     * {@code out_bufferInfo}.
+     *
+     * @return True, if an output buffer was available.
+     */
+    boolean peekSample(MediaCodec.BufferInfo out_bufferInfo);
+
+    /**
+     * @return True, if a decoded sample is available at the head of the queue.
+     */
+    boolean hasSample();
+
+    /**
+     * @return the presentation time of the sample at the head of the queue.
+     */
+    long peekPresentationTimeUs();
+
+    /**
+     * @return the size in bytes of the sample at the head of the queue.
+     */
+    int peekSize();
+
+    /**
+     * @return the {@link MediaCodec} buffer flags of the sample at the head of the queue.
+     */
+    int peekFlags();
+
+    /**
+     * Releases the output buffer at the head of the queue, optionally rendering it.
+     */
+    void popSample(boolean render);
+
+    /**
+     * Releases the output buffer at the head of the queue, to be presented at
+     * {@code renderTimeNs} on the {@link System#nanoTime()} timeline.
+     */
+    void popSample(boolean render, long renderTimeNs);
+
+    /**
+     * Hands every output buffer due at {@code clockUs} to the decoder's own sink, to be
+     * presented right away. Stops at the first buffer that is not due yet and at the
+     * end-of-stream buffer, which stays at the head of the queue.
+     *
+     * @return the number of buffers released.
+     */
+    int drainReady(long clockUs);
+
+    /**
+     * Like {@link #drainReady(long)}, but hands the buffers to {@code sink}.
+     */
+    int drainReady(long clockUs, OutputSink sink);
+
+    /**
+     * Discards every queued input and decoded output, e.g. after the extractor was seeked, and
+     * flushes the sink. The decoder is ready for new input afterwards.
+     */
+    void flush();
+
+    /**
+     * Blocks until the codec hands over a new input or output buffer, or the timeout elapses.
+     *
+     * @param timeoutMs Maximum time to wait, in milliseconds.
+     */
+    void awaitBuffers(long timeoutMs) throws InterruptedException;
+
+    /**
+     * Ends a pending {@link #awaitBuffers(long)} early, or the next one if none is pending.
+     * May be called from any thread.
+     */
+    void wakeUp();
+
+    /**
+     * Releases resources and ends the decoding session.
+     */
+    void stopAndRelease();
+}
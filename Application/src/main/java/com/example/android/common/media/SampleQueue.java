@@ -0,0 +1,319 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of compressed samples of one track, read ahead by a {@link Demuxer} thread and
+ * consumed as a {@link SampleSource} by the thread that feeds the decoder. A slow read from
+ * storage then only stalls the decoder once the queue has run dry.
+ *
+ * The queue is bounded both by the bytes it holds and by the time span between its first and
+ * last sample, whichever is reached first. Sample data lives in direct buffers from a
+ * {@link ByteBufferPool} and the sample records are recycled, so a steady stream of samples
+ * doesn't allocate.
+ */
+public class SampleQueue implements SampleSource {
+
+    /**
+     * One compressed sample and its metadata. {@code data} is null while the record is on the
+     * free list.
+     */
+    static class Sample {
+        ByteBuffer data;
+        int size;
+        long timeUs;
+        int flags;
+        // System.nanoTime() when the sample was read, for the input wait.
+        long readNs;
+        final MediaCodec.CryptoInfo cryptoInfo = new MediaCodec.CryptoInfo();
+    }
+
+    // Initial size of the staging buffer.
+    private static final int STAGING_CAPACITY = 64 * 1024;
+
+    private final Demuxer mDemuxer;
+    private final ByteBufferPool mPool;
+    // The demuxer's lock, guarding the queue state below.
+    private final Object mLock;
+    private final int mTrackIndex;
+    private final int mMaxBytes;
+    private final long mMaxDurationUs;
+
+    private final ArrayDeque<Sample> mSamples = new ArrayDeque<Sample>();
+    private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<Sample>();
+    private int mQueuedBytes;
+    private boolean mEndOfStream;
+
+    // The consumer asked for a seek that the demuxer hasn't carried out yet, because it waits
+    // for the other tracks to ask as well. Samples read in the meantime are stale.
+    boolean mSeekPending;
+    // The consumer released the queue; its samples are skipped from now on.
+    boolean mDetached;
+
+    // Read target before Pie, where the size of a sample isn't known before reading it. Only
+    // touched by the demuxer thread.
+    private ByteBuffer mStaging;
+
+    // Receives the read and input wait times, or null.
+    private PipelineMetrics mMetrics;
+
+    SampleQueue(Demuxer demuxer, Object lock, ByteBufferPool pool, int trackIndex, int maxBytes,
+            long maxDurationUs) {
+        mDemuxer = demuxer;
+        mPool = pool;
+        mLock = lock;
+        mTrackIndex = trackIndex;
+        mMaxBytes = maxBytes;
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    /**
+     * @return the index of the extractor track this queue holds.
+     */
+    public int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    /**
+     * Records how long samples take to read and how long they wait in the queue to
+     * {@code metrics}. Must be called before the demuxer is started.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public boolean isReady() {
+        synchronized (mLock) {
+            return !mSamples.isEmpty() || mEndOfStream;
+        }
+    }
+
+    @Override
+    public long getSampleTime() {
+        synchronized (mLock) {
+            return mSamples.isEmpty() ? -1 : mSamples.peekFirst().timeUs;
+        }
+    }
+
+    @Override
+    public int getSampleFlags() {
+        synchronized (mLock) {
+            return mSamples.isEmpty() ? 0 : mSamples.peekFirst().flags;
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        Sample sample;
+        synchronized (mLock) {
+            sample = mSamples.peekFirst();
+        }
+        if (sample == null) {
+            return -1;
+        }
+        // Only this thread removes the head, so the sample stays valid after unlocking.
+        ByteBuffer data = sample.data;
+        data.limit(sample.size).position(0);
+        buffer.clear();
+        buffer.position(offset);
+        if (buffer.remaining() < sample.size) {
+            throw new IllegalArgumentException("Buffer too small for a sample of "
+                    + sample.size + " bytes");
+        }
+        buffer.put(data);
+        if (mMetrics != null) {
+            mMetrics.record(PipelineMetrics.STAGE_INPUT_WAIT, System.nanoTime() - sample.readNs);
+        }
+        return sample.size;
+    }
+
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        synchronized (mLock) {
+            Sample sample = mSamples.peekFirst();
+            if (sample == null
+                    || (sample.flags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) == 0) {
+                return false;
+            }
+            MediaCodec.CryptoInfo crypto = sample.cryptoInfo;
+            info.set(crypto.numSubSamples, crypto.numBytesOfClearData,
+                    crypto.numBytesOfEncryptedData, crypto.key, crypto.iv, crypto.mode);
+            return true;
+        }
+    }
+
+    @Override
+    public void advance() {
+        synchronized (mLock) {
+            Sample sample = mSamples.pollFirst();
+            if (sample != null) {
+                mQueuedBytes -= sample.size;
+                recycleLocked(sample);
+                // There may be room for the demuxer again.
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Discards the queued samples and moves the demuxer to {@code timeUs}. If the demuxer
+     * feeds several tracks, it only seeks once all of them have asked to, see
+     * {@link Demuxer}.
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mDemuxer.seekTo(this, timeUs, mode);
+    }
+
+    /**
+     * Detaches the queue from the demuxer, which shuts down once all its queues are released.
+     */
+    @Override
+    public void release() {
+        mDemuxer.release(this);
+    }
+
+    /**
+     * @return True, if the queue takes another sample. An empty queue always does, so a single
+     * sample larger than the limits can't block the track.
+     */
+    boolean hasRoomLocked() {
+        if (mSamples.isEmpty()) {
+            return true;
+        }
+        long durationUs = mSamples.peekLast().timeUs - mSamples.peekFirst().timeUs;
+        return mQueuedBytes < mMaxBytes && durationUs < mMaxDurationUs;
+    }
+
+    boolean isEmptyLocked() {
+        return mSamples.isEmpty();
+    }
+
+    boolean isEndOfStreamLocked() {
+        return mEndOfStream;
+    }
+
+    /**
+     * Reads the current sample of {@code extractor} into a sample buffer from the free list.
+     * Called by the demuxer thread without holding the lock, so the storage access doesn't block
+     * the consumer.
+     */
+    Sample read(MediaExtractor extractor) {
+        long startNs = System.nanoTime();
+        int size;
+        ByteBuffer source = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            size = getSampleSize(extractor);
+        } else {
+            // Read into the staging buffer first, growing it until the sample fits.
+            if (mStaging == null) {
+                mStaging = mPool.acquire(STAGING_CAPACITY);
+            }
+            while (true) {
+                try {
+                    size = extractor.readSampleData(mStaging, 0);
+                    break;
+                } catch (IllegalArgumentException e) {
+                    int capacity = mStaging.capacity() * 2;
+                    mPool.release(mStaging);
+                    mStaging = mPool.acquire(capacity);
+                }
+            }
+            source = mStaging;
+        }
+
+        Sample sample = obtain(Math.max(size, 0));
+        if (size > 0) {
+            sample.data.clear();
+            if (source != null) {
+                source.limit(size).position(0);
+                sample.data.put(source);
+            } else {
+                size = extractor.readSampleData(sample.data, 0);
+            }
+        }
+        sample.size = Math.max(size, 0);
+        sample.timeUs = extractor.getSampleTime();
+        sample.flags = extractor.getSampleFlags();
+        if ((sample.flags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0) {
+            extractor.getSampleCryptoInfo(sample.cryptoInfo);
+        }
+        sample.readNs = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.record(PipelineMetrics.STAGE_EXTRACTOR_READ, sample.readNs - startNs);
+        }
+        return sample;
+    }
+
+    @TargetApi(Build.VERSION_CODES.P)
+    private static int getSampleSize(MediaExtractor extractor) {
+        return (int) extractor.getSampleSize();
+    }
+
+    /**
+     * Appends a sample returned by {@link #read(MediaExtractor)}.
+     */
+    void addLocked(Sample sample) {
+        mSamples.addLast(sample);
+        mQueuedBytes += sample.size;
+    }
+
+    /**
+     * Returns a sample returned by {@link #read(MediaExtractor)} that has been consumed or
+     * turned out to be stale, and its buffer to the pool.
+     */
+    void recycleLocked(Sample sample) {
+        mPool.release(sample.data);
+        sample.data = null;
+        mFreeSamples.addLast(sample);
+    }
+
+    /**
+     * Drops all queued samples, e.g. for a seek.
+     */
+    void clearLocked() {
+        Sample sample;
+        while ((sample = mSamples.pollFirst()) != null) {
+            recycleLocked(sample);
+        }
+        mQueuedBytes = 0;
+        mEndOfStream = false;
+    }
+
+    /**
+     * Returns the staging buffer to the pool. Called by the demuxer thread once it's done.
+     */
+    void releaseStaging() {
+        if (mStaging != null) {
+            mPool.release(mStaging);
+            mStaging = null;
+        }
+    }
+
+    void setEndOfStreamLocked() {
+        mEndOfStream = true;
+    }
+
+    /**
+     * Takes a sample record off the free list, or allocates one, with a buffer of at least
+     * {@code size} bytes from the pool.
+     */
+    private Sample obtain(int size) {
+        Sample sample;
+        synchronized (mLock) {
+            sample = mFreeSamples.pollFirst();
+        }
+        if (sample == null) {
+            sample = new Sample();
+        }
+        sample.data = mPool.acquire(size);
+        return sample;
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a {@link DecodeWorker} gets the compressed samples of its track from. Mirrors the
+ * reading half of {@link android.media.MediaExtractor}, so a track can be read straight from an
+ * extractor through {@link ExtractorSampleSource}, or through a read-ahead {@link SampleQueue}
+ * filled by a {@link Demuxer} thread.
+ *
+ * Only the thread that pumps the track calls these methods.
+ */
+public interface SampleSource {
+
+    /**
+     * @return True, if the current sample can be read without waiting on storage, or the end of
+     * the track has been reached. The other getters are only meaningful if this is true.
+     */
+    boolean isReady();
+
+    /**
+     * @return the presentation time of the current sample, or -1 at the end of the track.
+     */
+    long getSampleTime();
+
+    /**
+     * @return the {@link android.media.MediaExtractor} {@code SAMPLE_FLAG_*} flags of the
+     * current sample.
+     */
+    int getSampleFlags();
+
+    /**
+     * Copies the current sample into {@code buffer}, starting at {@code offset}.
+     *
+     * @return the size of the sample in bytes, or -1 at the end of the track.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * Fills {@code info} with the encryption metadata of the current sample.
+     *
+     * @return True, if the sample is encrypted.
+     */
+    boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info);
+
+    /**
+     * Moves on to the next sample.
+     */
+    void advance();
+
+    /**
+     * Moves the track to {@code timeUs}, as {@link android.media.MediaExtractor#seekTo(long, int)}
+     * does. Samples read ahead before the seek are discarded.
+     */
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Releases the source and whatever it reads from.
+     */
+    void release();
+}
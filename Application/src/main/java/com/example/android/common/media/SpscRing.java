@@ -0,0 +1,308 @@
+package com.example.android.common.media;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free FIFO of codec output buffer descriptors between exactly one producer thread and
+ * exactly one consumer thread, e.g. the codec callback thread and the decode thread. Every slot
+ * holds the buffer index, offset, size, presentation time and flags, plus a timestamp of the
+ * producer's choosing, in primitive arrays, so nothing is allocated or boxed per buffer.
+ *
+ * The producer and the consumer each own one position counter and only read the other's, and
+ * both counters sit on cache lines of their own so the two threads don't invalidate each other's
+ * line with every write. A consumer waiting for a buffer, and a producer waiting for room,
+ * spins, yields or parks, depending on the wait strategy.
+ *
+ * The producer methods may only be called from one thread at a time and the consumer methods
+ * from another; a single thread may be both.
+ */
+public class SpscRing {
+
+    /**
+     * Busy-wait. Lowest latency, but burns a core while waiting.
+     */
+    public static final int WAIT_SPIN = 0;
+
+    /**
+     * Yield the processor between checks. Low latency while there are idle cores.
+     */
+    public static final int WAIT_YIELD = 1;
+
+    /**
+     * Park the waiting thread until the other side wakes it up. Costs a context switch, but
+     * no CPU while waiting.
+     */
+    public static final int WAIT_PARK = 2;
+
+    // How long a producer waiting for room parks at a time; the consumer doesn't wake it up.
+    private static final long PRODUCER_PARK_NS = 50000;
+
+    /**
+     * A position counter, with the owner's cached copy of the other side's counter, padded on
+     * both sides so that it has a cache line of its own. ART lays out fields of the same size
+     * by name and HotSpot by declaration, and both orders agree here.
+     */
+    private static final class Sequence {
+        long a1, a2, a3, a4, a5, a6, a7;
+        // The other side's counter as last read by the owner.
+        long cache;
+        volatile long value;
+        long z1, z2, z3, z4, z5, z6, z7;
+    }
+
+    private static final AtomicLongFieldUpdater<Sequence> VALUE =
+            AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+    private final int mMask;
+    private final int mWaitStrategy;
+
+    // Slot contents, by position & mMask.
+    private final int[] mIndices;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private final long[] mTimestamps;
+
+    // Number of elements ever added, written by the producer. Its cache is the head.
+    private final Sequence mTail = new Sequence();
+    // Number of elements ever removed, written by the consumer. Its cache is the tail.
+    private final Sequence mHead = new Sequence();
+
+    // The consumer thread while it is parked in await(), or null.
+    private volatile Thread mParkedConsumer;
+    // Set by signal() to end the consumer's current wait.
+    private volatile boolean mSignalled;
+
+    /**
+     * @param capacity Minimum number of elements the ring can hold.
+     * @param waitStrategy {@link #WAIT_SPIN}, {@link #WAIT_YIELD} or {@link #WAIT_PARK}.
+     */
+    public SpscRing(int capacity, int waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (waitStrategy < WAIT_SPIN || waitStrategy > WAIT_PARK) {
+            throw new IllegalArgumentException("Unknown wait strategy: " + waitStrategy);
+        }
+        int length = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = length - 1;
+        mWaitStrategy = waitStrategy;
+        mIndices = new int[length];
+        mOffsets = new int[length];
+        mSizes = new int[length];
+        mPresentationTimesUs = new long[length];
+        mFlags = new int[length];
+        mTimestamps = new long[length];
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Appends an element unless the ring is full. Producer only.
+     *
+     * @return True, if the element was added.
+     */
+    public boolean offer(int index, int offset, int size, long presentationTimeUs, int flags,
+            long timestamp) {
+        long tail = mTail.value;
+        if (tail - mTail.cache > mMask) {
+            // Looks full; see how far the consumer has got in the meantime.
+            mTail.cache = mHead.value;
+            if (tail - mTail.cache > mMask) {
+                return false;
+            }
+        }
+        int slot = (int) tail & mMask;
+        mIndices[slot] = index;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        mTimestamps[slot] = timestamp;
+        if (mWaitStrategy == WAIT_PARK) {
+            // A full barrier, so the consumer either sees the element before it parks or is
+            // seen as parked here.
+            mTail.value = tail + 1;
+            Thread consumer = mParkedConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        } else {
+            // Publish the slot contents before the position, without a full barrier.
+            VALUE.lazySet(mTail, tail + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Appends an element, waiting for room if the ring is full. Producer only.
+     */
+    public void put(int index, int offset, int size, long presentationTimeUs, int flags,
+            long timestamp) {
+        while (!offer(index, offset, size, presentationTimeUs, flags, timestamp)) {
+            switch (mWaitStrategy) {
+                case WAIT_SPIN:
+                    break;
+                case WAIT_YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    LockSupport.parkNanos(this, PRODUCER_PARK_NS);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements ever added, which grows by one with every element the
+     * producer publishes. Can be read from either side.
+     */
+    public long getProducedCount() {
+        return mTail.value;
+    }
+
+    /**
+     * Consumer only.
+     */
+    public boolean isEmpty() {
+        long head = mHead.value;
+        if (head < mHead.cache) {
+            return false;
+        }
+        mHead.cache = mTail.value;
+        return head >= mHead.cache;
+    }
+
+    /**
+     * Consumer only.
+     */
+    public int size() {
+        mHead.cache = mTail.value;
+        return (int) (mHead.cache - mHead.value);
+    }
+
+    /**
+     * @return the buffer index of the head element. Consumer only.
+     * @throws NoSuchElementException if the ring is empty.
+     */
+    public int peekIndex() {
+        return mIndices[headSlot()];
+    }
+
+    public int peekOffset() {
+        return mOffsets[headSlot()];
+    }
+
+    public int peekSize() {
+        return mSizes[headSlot()];
+    }
+
+    public long peekPresentationTimeUs() {
+        return mPresentationTimesUs[headSlot()];
+    }
+
+    public int peekFlags() {
+        return mFlags[headSlot()];
+    }
+
+    public long peekTimestamp() {
+        return mTimestamps[headSlot()];
+    }
+
+    /**
+     * Removes the head element, freeing its slot for the producer. Consumer only.
+     *
+     * @throws NoSuchElementException if the ring is empty.
+     */
+    public void remove() {
+        headSlot();
+        VALUE.lazySet(mHead, mHead.value + 1);
+    }
+
+    /**
+     * Removes every element published so far. Consumer only.
+     */
+    public void clear() {
+        mHead.cache = mTail.value;
+        VALUE.lazySet(mHead, mHead.cache);
+    }
+
+    /**
+     * Removes the elements published before the producer had added {@code producedCount} of
+     * them, see {@link #getProducedCount()}, and leaves the ones after. Consumer only.
+     */
+    public void discardTo(long producedCount) {
+        if (producedCount > mTail.value) {
+            throw new IllegalArgumentException("Not published yet: " + producedCount);
+        }
+        if (producedCount > mHead.value) {
+            VALUE.lazySet(mHead, producedCount);
+        }
+    }
+
+    /**
+     * Waits until the producer publishes an element beyond {@code producedCount}, see
+     * {@link #getProducedCount()}, {@link #signal()} is called, or the timeout elapses.
+     * Consumer only.
+     *
+     * @return True, if an element was published or the ring was signalled.
+     */
+    public boolean await(long producedCount, long timeoutNs) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + timeoutNs;
+        try {
+            while (true) {
+                if (mTail.value != producedCount || mSignalled) {
+                    return true;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remainingNs = deadlineNs - System.nanoTime();
+                if (remainingNs <= 0) {
+                    return false;
+                }
+                switch (mWaitStrategy) {
+                    case WAIT_SPIN:
+                        break;
+                    case WAIT_YIELD:
+                        Thread.yield();
+                        break;
+                    default:
+                        mParkedConsumer = Thread.currentThread();
+                        // Check again now that the producer can see us parked.
+                        if (mTail.value == producedCount && !mSignalled) {
+                            LockSupport.parkNanos(this, remainingNs);
+                        }
+                        mParkedConsumer = null;
+                        break;
+                }
+            }
+        } finally {
+            mSignalled = false;
+        }
+    }
+
+    /**
+     * Ends the consumer's current or next {@link #await(long, long)}, for events other than
+     * new elements. May be called from any thread.
+     */
+    public void signal() {
+        mSignalled = true;
+        Thread consumer = mParkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private int headSlot() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return (int) mHead.value & mMask;
+    }
+}
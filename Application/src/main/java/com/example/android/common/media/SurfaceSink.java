@@ -0,0 +1,47 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputSink} for a decoder configured with an output {@link android.view.Surface}:
+ * presenting a frame is simply releasing its buffer with {@code render} set. From Lollipop on,
+ * frames with a render time are released with that timestamp so the compositor presents them
+ * on the matching vsync.
+ */
+public class SurfaceSink implements OutputSink {
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        if (render && renderTimeNs > 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            releaseAt(codec, index, renderTimeNs);
+        } else {
+            codec.releaseOutputBuffer(index, render);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void releaseAt(MediaCodec codec, int index, long renderTimeNs) {
+        codec.releaseOutputBuffer(index, renderTimeNs);
+    }
+
+    @Override
+    public void flush() {
+        // Frames that were released are already on their way to the surface.
+    }
+
+    @Override
+    public void release() {
+        // The surface belongs to the caller.
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.common.media;
+
+/**
+ * Decides when a decoded video frame is handed to the codec for rendering, given its
+ * presentation time and the master clock. Frames are released slightly ahead of their due time
+ * together with a render timestamp, so the compositor can present them on the right vsync
+ * instead of whenever the decode thread happens to wake up.
+ *
+ * When decoding falls behind, frames that are late by more than a threshold are dropped instead
+ * of rendered, and after a run of drops the policy asks the feeder to skip ahead to the next
+ * sync sample. That trades smoothness for staying real-time.
+ *
+ * Presentation times, the clock and the thresholds are media time. At a playback speed other
+ * than 1, see {@link #setSpeed(float)}, media time passes faster or slower than wall time, which
+ * the waits and render timestamps account for; frames that fall behind the faster clock are
+ * dropped like any other late frame.
+ *
+ * Pure arithmetic on microsecond values, so it can be exercised with a simulated clock. The
+ * counters are written by the decode thread only and may be read from any thread.
+ */
+public class SyncPolicy {
+
+    /**
+     * The frame is not due yet; check again after {@link #getWaitUs(long, long)}.
+     */
+    public static final int ACTION_WAIT = 0;
+
+    /**
+     * Release the frame now, to be presented at {@link #getRenderTimeNs(long, long, long)}.
+     */
+    public static final int ACTION_RENDER = 1;
+
+    /**
+     * The frame is too late to be worth showing; release it without rendering.
+     */
+    public static final int ACTION_DROP = 2;
+
+    /**
+     * Default for how far ahead of its due time a frame is released, about two vsyncs at 60Hz.
+     */
+    public static final long DEFAULT_RENDER_AHEAD_US = 30000;
+
+    /**
+     * Default for how late a frame may be and still be rendered.
+     */
+    public static final long DEFAULT_DROP_THRESHOLD_US = 40000;
+
+    /**
+     * Default number of consecutive drops after which decoding skips to the next sync sample.
+     */
+    public static final int DEFAULT_SKIP_AFTER_DROPS = 10;
+
+    private final long mRenderAheadUs;
+    private final long mDropThresholdUs;
+    private final int mSkipAfterDrops;
+
+    private int mConsecutiveDrops;
+    private volatile long mDroppedFrames;
+    private volatile long mLateFrames;
+    private volatile long mKeyFrameSkips;
+
+    // Media time per wall time.
+    private volatile float mSpeed = 1;
+
+    public SyncPolicy() {
+        this(DEFAULT_RENDER_AHEAD_US, DEFAULT_DROP_THRESHOLD_US, DEFAULT_SKIP_AFTER_DROPS);
+    }
+
+    /**
+     * @param renderAheadUs How far ahead of its due time a frame may be released.
+     * @param dropThresholdUs How late a frame may be and still be rendered.
+     * @param skipAfterDrops Number of consecutive drops after which
+     *                       {@link #shouldSkipToKeyFrame()} returns true.
+     */
+    public SyncPolicy(long renderAheadUs, long dropThresholdUs, int skipAfterDrops) {
+        mRenderAheadUs = renderAheadUs;
+        mDropThresholdUs = dropThresholdUs;
+        mSkipAfterDrops = skipAfterDrops;
+    }
+
+    /**
+     * Sets the playback speed the clock runs at, e.g. 2 when the media clock advances twice as
+     * fast as wall time. May be called from any thread.
+     */
+    public void setSpeed(float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Decides what to do with the frame at the head of the output queue and updates the
+     * counters accordingly. Call once per release decision.
+     *
+     * @param ptsUs Presentation time of the frame.
+     * @param clockUs Current position of the master clock.
+     * @return one of the {@code ACTION_*} constants.
+     */
+    public int decide(long ptsUs, long clockUs) {
+        long earlyUs = ptsUs - clockUs;
+        if (earlyUs > mRenderAheadUs) {
+            return ACTION_WAIT;
+        }
+        if (-earlyUs > mDropThresholdUs) {
+            mConsecutiveDrops++;
+            mDroppedFrames++;
+            return ACTION_DROP;
+        }
+        mConsecutiveDrops = 0;
+        if (earlyUs < 0) {
+            mLateFrames++;
+        }
+        return ACTION_RENDER;
+    }
+
+    /**
+     * @return True, if so many frames in a row were dropped that the decoder should stop
+     * decoding the frames in between and skip to the next sync sample.
+     */
+    public boolean shouldSkipToKeyFrame() {
+        return mConsecutiveDrops >= mSkipAfterDrops;
+    }
+
+    /**
+     * Tells the policy that the feeder skipped ahead to a sync sample.
+     */
+    public void onSkippedToKeyFrame() {
+        mConsecutiveDrops = 0;
+        mKeyFrameSkips++;
+    }
+
+    /**
+     * Forgets the current run of drops, e.g. after a seek. The counters are kept.
+     */
+    public void reset() {
+        mConsecutiveDrops = 0;
+    }
+
+    /**
+     * @return the number of frames released without rendering because they were too late.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the number of frames rendered after their due time, within the drop threshold.
+     */
+    public long getLateFrameCount() {
+        return mLateFrames;
+    }
+
+    /**
+     * @return how many times decoding skipped ahead to the next sync sample.
+     */
+    public long getKeyFrameSkipCount() {
+        return mKeyFrameSkips;
+    }
+
+    /**
+     * @return how long to wait, in wall time, before the frame enters the render-ahead window.
+     */
+    public long getWaitUs(long ptsUs, long clockUs) {
+        return (long) (Math.max(0, ptsUs - clockUs - mRenderAheadUs) / mSpeed);
+    }
+
+    /**
+     * Maps the presentation time of a frame onto the {@link System#nanoTime()} timeline, which
+     * is what {@link android.media.MediaCodec#releaseOutputBuffer(int, long)} expects. Late
+     * frames are presented as soon as possible.
+     *
+     * @param nowNs The current {@link System#nanoTime()}, sampled together with {@code clockUs}.
+     */
+    public long getRenderTimeNs(long ptsUs, long clockUs, long nowNs) {
+        return nowNs + (long) (Math.max(0, ptsUs - clockUs) * 1000 / mSpeed);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+
+import java.util.Arrays;
+
+/**
+ * Sorted presentation times of the sync samples of one track. Scanning a track once and
+ * keeping the result lets repeated seeks find the sync sample before a target time without
+ * walking the file again.
+ */
+public class SyncSampleIndex {
+
+    private final long[] mTimesUs;
+
+    private SyncSampleIndex(long[] timesUs) {
+        mTimesUs = timesUs;
+    }
+
+    /**
+     * Walks every sample of the selected track of {@code extractor} and records the sync
+     * samples. Leaves the extractor at the end of the track.
+     *
+     * @return the index, or null if the calling thread was interrupted during the scan.
+     */
+    public static SyncSampleIndex scan(MediaExtractor extractor) {
+        long[] timesUs = new long[64];
+        int count = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long sampleTime;
+        while ((sampleTime = extractor.getSampleTime()) >= 0) {
+            if (Thread.interrupted()) {
+                return null;
+            }
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (count == timesUs.length) {
+                    timesUs = Arrays.copyOf(timesUs, count * 2);
+                }
+                timesUs[count++] = sampleTime;
+            }
+            extractor.advance();
+        }
+        timesUs = Arrays.copyOf(timesUs, count);
+        // Sync samples come in decode order, which isn't necessarily presentation order.
+        Arrays.sort(timesUs);
+        return new SyncSampleIndex(timesUs);
+    }
+
+    /**
+     * @return the time of the last sync sample at or before {@code timeUs}, or of the first
+     * sync sample if there is none before it, or {@code timeUs} if the track has no sync
+     * samples at all.
+     */
+    public long getSyncTimeAtOrBefore(long timeUs) {
+        if (mTimesUs.length == 0) {
+            return timeUs;
+        }
+        int i = Arrays.binarySearch(mTimesUs, timeUs);
+        if (i < 0) {
+            // -(insertion point) - 1: the entry before the insertion point is the floor.
+            i = Math.max(-i - 2, 0);
+        }
+        return mTimesUs[i];
+    }
+
+    /**
+     * @return the number of sync samples in the track.
+     */
+    public int size() {
+        return mTimesUs.length;
+    }
+}
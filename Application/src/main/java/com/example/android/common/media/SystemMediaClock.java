@@ -0,0 +1,59 @@
+package com.example.android.common.media;
+
+/**
+ * A {@link MediaClock} that advances with the monotonic system clock from the moment
+ * {@link #start()} is called, at the rate set by {@link #setSpeed(float)}. It stands still at
+ * zero until then.
+ */
+public class SystemMediaClock implements MediaClock {
+
+    // System.nanoTime() at which the clock was at mBasePositionUs, or Long.MIN_VALUE before
+    // start() is called. Guarded by this, together with the speed.
+    private long mBaseNs = Long.MIN_VALUE;
+    private long mBasePositionUs;
+    private float mSpeed = 1;
+
+    /**
+     * Starts the clock at position zero. Calling it again restarts the clock.
+     */
+    public void start() {
+        start(0);
+    }
+
+    /**
+     * Starts the clock at {@code positionUs}, e.g. after a seek. Calling it again restarts the
+     * clock.
+     */
+    public synchronized void start(long positionUs) {
+        mBaseNs = System.nanoTime();
+        mBasePositionUs = positionUs;
+    }
+
+    /**
+     * Sets how fast the clock advances relative to the system clock, e.g. 2 for twice as fast.
+     * The position carries on from where it is.
+     */
+    public synchronized void setSpeed(float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        if (mBaseNs != Long.MIN_VALUE) {
+            long nowNs = System.nanoTime();
+            mBasePositionUs = getTimeUsLocked(nowNs);
+            mBaseNs = nowNs;
+        }
+        mSpeed = speed;
+    }
+
+    @Override
+    public synchronized long getTimeUs() {
+        if (mBaseNs == Long.MIN_VALUE) {
+            return 0;
+        }
+        return getTimeUsLocked(System.nanoTime());
+    }
+
+    private long getTimeUsLocked(long nowNs) {
+        return mBasePositionUs + (long) ((nowNs - mBaseNs) / 1000 * (double) mSpeed);
+    }
+}
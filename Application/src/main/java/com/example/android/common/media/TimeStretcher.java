@@ -0,0 +1,398 @@
+package com.example.android.common.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Changes the speed of interleaved PCM without changing its pitch, with WSOLA (waveform
+ * similarity overlap-add): the input is cut into sequences that are overlapped in the output at
+ * a fixed spacing, while the input advances by that spacing times the speed. Each sequence
+ * starts at the offset within a small search window where it best continues the previous one,
+ * found by cross-correlating the overlapping parts, so periodic signals stay in phase.
+ *
+ * Samples are converted to float on the way in and back on the way out. All work areas are
+ * allocated up front, so queueing input and reading output never allocate. No Android
+ * dependencies, so it can be run and measured on a plain JVM.
+ *
+ * Not thread safe.
+ */
+public class TimeStretcher {
+
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 4f;
+
+    // Lengths of a sequence, of the search window for its start and of the overlap between
+    // two sequences, in milliseconds. Long sequences suit music, short ones speech.
+    private static final int SEQUENCE_MS = 60;
+    private static final int SEEK_MS = 20;
+    private static final int OVERLAP_MS = 10;
+
+    // Stride of the coarse pass of the offset search, which the fine pass refines.
+    private static final int COARSE_STEP = 4;
+
+    private final int mChannelCount;
+    private final int mSequenceFrames;
+    private final int mSeekFrames;
+    private final int mOverlapFrames;
+
+    private float mSpeed = 1;
+
+    // Input not consumed yet, interleaved, starting at frame 0.
+    private final float[] mInput;
+    private int mInputFrames;
+    // Fraction of a frame the input should have advanced beyond what was consumed.
+    private double mSkipRemainder;
+
+    // End of the previous sequence, which the next one is cross-faded with. Empty before the
+    // first sequence.
+    private final float[] mOverlap;
+    private boolean mHaveOverlap;
+
+    // Output not read yet, interleaved, starting at mOutputStart.
+    private final float[] mOutput;
+    private int mOutputStart;
+    private int mOutputFrames;
+
+    private boolean mEndOfStream;
+    // Position in the input of the unstretched tail after the end of stream, in frames.
+    private double mTailPosition;
+
+    /**
+     * @param sampleRate Sample rate of the PCM, in Hz.
+     * @param channelCount Number of interleaved channels.
+     */
+    public TimeStretcher(int sampleRate, int channelCount) {
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid format: " + sampleRate + " Hz, " + channelCount + " channels");
+        }
+        mChannelCount = channelCount;
+        mSequenceFrames = sampleRate * SEQUENCE_MS / 1000;
+        mSeekFrames = sampleRate * SEEK_MS / 1000;
+        mOverlapFrames = sampleRate * OVERLAP_MS / 1000;
+        int maxSkipFrames = (int) Math.ceil((mSequenceFrames - mOverlapFrames) * MAX_SPEED) + 1;
+        int inputFrames = Math.max(maxSkipFrames, mSeekFrames + mSequenceFrames) + mSequenceFrames;
+        mInput = new float[inputFrames * channelCount];
+        mOverlap = new float[mOverlapFrames * channelCount];
+        mOutput = new float[2 * mSequenceFrames * channelCount];
+    }
+
+    /**
+     * Sets the playback speed, e.g. 2 to play twice as fast. Takes effect with the next
+     * sequence.
+     */
+    public void setSpeed(float speed) {
+        if (speed < MIN_SPEED || speed > MAX_SPEED) {
+            throw new IllegalArgumentException("Speed out of range: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Queues as much of {@code pcm} as fits, advancing its position.
+     *
+     * @return the number of frames queued.
+     */
+    public int queueInput(ShortBuffer pcm) {
+        int frames = Math.min(pcm.remaining() / mChannelCount, getInputSpace());
+        int samples = frames * mChannelCount;
+        int offset = mInputFrames * mChannelCount;
+        for (int i = 0; i < samples; i++) {
+            mInput[offset + i] = pcm.get() * (1f / 32768);
+        }
+        mInputFrames += frames;
+        process();
+        return frames;
+    }
+
+    /**
+     * Queues as much of {@code pcm} as fits, advancing its position.
+     *
+     * @return the number of frames queued.
+     */
+    public int queueInput(FloatBuffer pcm) {
+        int frames = Math.min(pcm.remaining() / mChannelCount, getInputSpace());
+        int samples = frames * mChannelCount;
+        pcm.get(mInput, mInputFrames * mChannelCount, samples);
+        mInputFrames += frames;
+        process();
+        return frames;
+    }
+
+    /**
+     * Queues as much of the little-endian PCM in {@code pcm} as fits, advancing its position.
+     * Reads through absolute gets rather than a view, so a codec's output buffers can be passed
+     * as they are.
+     *
+     * @param isFloat True for 32-bit float samples, false for 16-bit integers.
+     * @return the number of frames queued.
+     */
+    public int queueInput(ByteBuffer pcm, boolean isFloat) {
+        int bytesPerSample = isFloat ? 4 : 2;
+        int frames = Math.min(pcm.remaining() / (bytesPerSample * mChannelCount),
+                getInputSpace());
+        int samples = frames * mChannelCount;
+        int offset = mInputFrames * mChannelCount;
+        int position = pcm.position();
+        ByteOrder order = pcm.order();
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        if (isFloat) {
+            for (int i = 0; i < samples; i++) {
+                mInput[offset + i] = pcm.getFloat(position + 4 * i);
+            }
+        } else {
+            for (int i = 0; i < samples; i++) {
+                mInput[offset + i] = pcm.getShort(position + 2 * i) * (1f / 32768);
+            }
+        }
+        pcm.order(order);
+        pcm.position(position + samples * bytesPerSample);
+        mInputFrames += frames;
+        process();
+        return frames;
+    }
+
+    /**
+     * Marks the end of the input. The remaining input is output without its speed changed
+     * by overlapping, just thinned out or repeated, which is inaudible for the few dozen
+     * milliseconds involved.
+     */
+    public void queueEndOfStream() {
+        mEndOfStream = true;
+        mTailPosition = 0;
+        process();
+    }
+
+    /**
+     * Writes as much stretched output to {@code pcm} as fits.
+     *
+     * @return the number of frames written.
+     */
+    public int getOutput(ShortBuffer pcm) {
+        int frames = Math.min(pcm.remaining() / mChannelCount, mOutputFrames);
+        int samples = frames * mChannelCount;
+        int offset = mOutputStart * mChannelCount;
+        for (int i = 0; i < samples; i++) {
+            float sample = mOutput[offset + i] * 32768;
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            pcm.put((short) Math.round(sample));
+        }
+        consumeOutput(frames);
+        return frames;
+    }
+
+    /**
+     * Writes as much stretched output to {@code pcm} as fits.
+     *
+     * @return the number of frames written.
+     */
+    public int getOutput(FloatBuffer pcm) {
+        int frames = Math.min(pcm.remaining() / mChannelCount, mOutputFrames);
+        pcm.put(mOutput, mOutputStart * mChannelCount, frames * mChannelCount);
+        consumeOutput(frames);
+        return frames;
+    }
+
+    /**
+     * @return the number of output frames ready to be read.
+     */
+    public int getOutputFrameCount() {
+        return mOutputFrames;
+    }
+
+    /**
+     * Drops all queued input and pending output, e.g. after a seek.
+     */
+    public void flush() {
+        mInputFrames = 0;
+        mSkipRemainder = 0;
+        mHaveOverlap = false;
+        mOutputStart = 0;
+        mOutputFrames = 0;
+        mEndOfStream = false;
+    }
+
+    private int getInputSpace() {
+        return mEndOfStream ? 0 : mInput.length / mChannelCount - mInputFrames;
+    }
+
+    private void consumeOutput(int frames) {
+        mOutputStart += frames;
+        mOutputFrames -= frames;
+        if (mOutputFrames == 0) {
+            mOutputStart = 0;
+        }
+        process();
+    }
+
+    /**
+     * Produces output for as long as there is enough input and room for it.
+     */
+    private void process() {
+        if (mOutputStart > 0 && mOutputFrames > 0) {
+            System.arraycopy(mOutput, mOutputStart * mChannelCount, mOutput, 0,
+                    mOutputFrames * mChannelCount);
+            mOutputStart = 0;
+        }
+        int outputCapacity = mOutput.length / mChannelCount;
+        while (mOutputFrames + mSequenceFrames <= outputCapacity) {
+            double skip = (mSequenceFrames - mOverlapFrames) * mSpeed + mSkipRemainder;
+            int required = Math.max(mSeekFrames + mSequenceFrames, (int) skip);
+            if (mInputFrames < required) {
+                break;
+            }
+            processSequence(skip);
+        }
+        if (mEndOfStream) {
+            processTail(outputCapacity);
+        }
+    }
+
+    /**
+     * Appends one sequence to the output and advances the input by {@code skip} frames.
+     */
+    private void processSequence(double skip) {
+        int channels = mChannelCount;
+        int offset;
+        if (mHaveOverlap) {
+            offset = findBestOffset(mSeekFrames);
+        } else {
+            // Nothing to continue from: start with the input as it is.
+            System.arraycopy(mInput, 0, mOverlap, 0, mOverlap.length);
+            mHaveOverlap = true;
+            offset = 0;
+        }
+
+        crossFade(offset);
+        int out = (mOutputFrames + mOverlapFrames) * channels;
+        int in = offset * channels;
+
+        // The middle of the sequence is copied as it is; its end is kept for the next fade.
+        int middleFrames = mSequenceFrames - 2 * mOverlapFrames;
+        System.arraycopy(mInput, in + mOverlapFrames * channels, mOutput, out,
+                middleFrames * channels);
+        System.arraycopy(mInput, in + (mSequenceFrames - mOverlapFrames) * channels, mOverlap, 0,
+                mOverlap.length);
+        mOutputFrames += mSequenceFrames - mOverlapFrames;
+
+        int skipFrames = (int) skip;
+        mSkipRemainder = skip - skipFrames;
+        consumeInput(skipFrames);
+    }
+
+    /**
+     * Writes the cross-fade from the end of the previous sequence into the input at frame
+     * {@code offset} to the end of the output, without counting it as output yet.
+     */
+    private void crossFade(int offset) {
+        int channels = mChannelCount;
+        int out = mOutputFrames * channels;
+        int in = offset * channels;
+        for (int i = 0; i < mOverlapFrames; i++) {
+            float fadeIn = (float) i / mOverlapFrames;
+            for (int c = 0; c < channels; c++) {
+                int sample = i * channels + c;
+                mOutput[out + sample] = mOverlap[sample] * (1 - fadeIn)
+                        + mInput[in + sample] * fadeIn;
+            }
+        }
+    }
+
+    /**
+     * Finds the offset below {@code seekFrames} at which the input best continues the end of
+     * the previous sequence, by normalized cross-correlation. A coarse pass over every
+     * {@link #COARSE_STEP}th offset is refined around the best candidate.
+     */
+    private int findBestOffset(int seekFrames) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < seekFrames; offset += COARSE_STEP) {
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int coarseBest = best;
+        int end = Math.min(coarseBest + COARSE_STEP, seekFrames);
+        for (int offset = Math.max(coarseBest - COARSE_STEP + 1, 0); offset < end; offset++) {
+            if (offset == coarseBest) {
+                continue;
+            }
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    private double correlate(int offset) {
+        int samples = mOverlap.length;
+        int in = offset * mChannelCount;
+        float product = 0;
+        float energy = 0;
+        for (int i = 0; i < samples; i++) {
+            float sample = mInput[in + i];
+            product += mOverlap[i] * sample;
+            energy += sample * sample;
+        }
+        return product / Math.sqrt(energy + 1e-9);
+    }
+
+    /**
+     * After the end of stream, cross-fades the kept overlap into the rest of the input like
+     * another sequence, and then outputs the input after the fade, picking the nearest frame at
+     * the current speed. Without enough input left to fade into, the overlap is output as it
+     * is.
+     */
+    private void processTail(int outputCapacity) {
+        int channels = mChannelCount;
+        if (mHaveOverlap) {
+            if (mOutputFrames + mOverlapFrames > outputCapacity) {
+                return;
+            }
+            int seekFrames = Math.min(mSeekFrames, mInputFrames - mOverlapFrames + 1);
+            if (seekFrames > 0) {
+                int offset = findBestOffset(seekFrames);
+                crossFade(offset);
+                mTailPosition = offset + mOverlapFrames;
+            } else {
+                System.arraycopy(mOverlap, 0, mOutput, mOutputFrames * channels,
+                        mOverlap.length);
+                mInputFrames = 0;
+            }
+            mOutputFrames += mOverlapFrames;
+            mHaveOverlap = false;
+        }
+        while (mOutputFrames < outputCapacity) {
+            int frame = (int) mTailPosition;
+            if (frame >= mInputFrames) {
+                mInputFrames = 0;
+                break;
+            }
+            System.arraycopy(mInput, frame * channels, mOutput, mOutputFrames * channels,
+                    channels);
+            mOutputFrames++;
+            mTailPosition += mSpeed;
+        }
+    }
+
+    private void consumeInput(int frames) {
+        frames = Math.min(frames, mInputFrames);
+        mInputFrames -= frames;
+        System.arraycopy(mInput, frames * mChannelCount, mInput, 0,
+                mInputFrames * mChannelCount);
+    }
+}
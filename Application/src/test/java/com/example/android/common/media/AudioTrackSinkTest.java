@@ -0,0 +1,194 @@
+package com.example.android.common.media;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AudioTrackSinkTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_SIZE = 2 * CHANNELS;
+
+    private static final int BUFFERS = 4;
+    // 1024 frames of 16-bit stereo PCM per decoded buffer, about 23 ms.
+    private static final int OUTPUT_SIZE = 1024 * FRAME_SIZE;
+    private static final long SAMPLE_DURATION_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int SAMPLE_SIZE = 400;
+
+    // Decoded buffers before and while allocations are counted. The warm-up is long enough for
+    // the path to be compiled, as the interpreter allocates where compiled code doesn't.
+    private static final int WARMUP_SAMPLES = 10000;
+    private static final int MEASURED_SAMPLES = 2000;
+
+    /**
+     * Plays steadily through {@link AudioMediaCodecWrapper#popSample(boolean)} into the sink and
+     * counts what the decode thread allocates once warmed up: nothing.
+     */
+    @Test
+    public void steadyPlaybackDoesNotAllocate() {
+        assertSteadyPlaybackDoesNotAllocate(1);
+    }
+
+    @Test
+    public void stretchedPlaybackDoesNotAllocate() {
+        assertSteadyPlaybackDoesNotAllocate(1.5f);
+    }
+
+    @Test
+    public void writesEveryDecodedFrame() {
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        FakeTrackSink sink = new FakeTrackSink(codec);
+        AudioMediaCodecWrapper decoder = new AudioMediaCodecWrapper(codec, sink, false);
+        decoder.start();
+        decoder.prepareAudioTrack(pcmFormat());
+
+        FakeSampleSource source = new FakeSampleSource(100, SAMPLE_SIZE, SAMPLE_DURATION_US, 1);
+        play(decoder, source, 100);
+        assertEquals(100L * OUTPUT_SIZE, sink.mTrack.mBytesWritten);
+        assertEquals(100 * 1024 * 1000000.0 / SAMPLE_RATE, sink.getWrittenPositionUs(), 1);
+        decoder.stopAndRelease();
+        assertTrue(sink.mTrack.mReleased);
+    }
+
+    @Test
+    public void stretchBufferGoesBackToThePool() {
+        ByteBufferPool previous = ByteBufferPool.getDefault();
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES, true);
+        ByteBufferPool.setDefault(pool);
+        try {
+            FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+            FakeTrackSink sink = new FakeTrackSink(codec);
+            AudioMediaCodecWrapper decoder = new AudioMediaCodecWrapper(codec, sink, false);
+            decoder.start();
+            decoder.prepareAudioTrack(pcmFormat());
+            decoder.setPlaybackSpeed(2);
+
+            play(decoder, new FakeSampleSource(10, SAMPLE_SIZE, SAMPLE_DURATION_US, 1), 10);
+            assertEquals(1, pool.getOutstandingCount());
+            decoder.stopAndRelease();
+            assertEquals(0, pool.getOutstandingCount());
+            assertTrue(pool.getPooledBytes() > 0);
+        } finally {
+            ByteBufferPool.setDefault(previous);
+        }
+    }
+
+    private static void assertSteadyPlaybackDoesNotAllocate(float speed) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        FakeTrackSink sink = new FakeTrackSink(codec);
+        AudioMediaCodecWrapper decoder = new AudioMediaCodecWrapper(codec, sink, false);
+        decoder.start();
+        decoder.prepareAudioTrack(pcmFormat());
+        decoder.setPlaybackSpeed(speed);
+
+        FakeSampleSource source = new FakeSampleSource(WARMUP_SAMPLES + MEASURED_SAMPLES,
+                SAMPLE_SIZE, SAMPLE_DURATION_US, 1);
+        play(decoder, source, WARMUP_SAMPLES);
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        play(decoder, source, MEASURED_SAMPLES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertEquals("Bytes allocated at speed " + speed, 0, allocated);
+        assertTrue(sink.mTrack.mBytesWritten > 0);
+        decoder.stopAndRelease();
+    }
+
+    /**
+     * Feeds and pops buffers one at a time, like a decode loop does, until {@code samples} have
+     * gone to the sink.
+     */
+    private static void play(AudioMediaCodecWrapper decoder, SampleSource source, int samples) {
+        int played = 0;
+        while (played < samples) {
+            decoder.fillAvailable(source);
+            while (played < samples && decoder.hasSample()) {
+                decoder.popSample(true);
+                played++;
+            }
+        }
+    }
+
+    private static MediaFormat pcmFormat() {
+        MediaFormat format = mock(MediaFormat.class);
+        when(format.getInteger(MediaFormat.KEY_SAMPLE_RATE)).thenReturn(SAMPLE_RATE);
+        when(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)).thenReturn(CHANNELS);
+        when(format.containsKey(anyString())).thenReturn(false);
+        return format;
+    }
+
+    /**
+     * Plays into a {@link CountingTrack} and gives every buffer back to the fake codec.
+     */
+    private static class FakeTrackSink extends AudioTrackSink {
+        private final FakeCodec mCodec;
+        CountingTrack mTrack;
+
+        FakeTrackSink(FakeCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        AudioTrack createAudioTrack(int sampleRate, int channelMask, int encoding,
+                int frameSizeInBytes) {
+            mTrack = new CountingTrack(sampleRate, channelMask, encoding);
+            return mTrack;
+        }
+
+        @Override
+        public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+                MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+            super.onOutputBuffer(codec, index, buffer, info, render, renderTimeNs);
+            mCodec.releaseOutputBuffer(index);
+        }
+    }
+
+    /**
+     * Track that counts the bytes written to it instead of playing them.
+     */
+    private static class CountingTrack extends AudioTrack {
+        long mBytesWritten;
+        boolean mReleased;
+
+        CountingTrack(int sampleRate, int channelMask, int encoding) {
+            super(AudioManager.STREAM_MUSIC, sampleRate, channelMask, encoding, OUTPUT_SIZE,
+                    AudioTrack.MODE_STREAM);
+        }
+
+        @Override
+        public int write(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            mBytesWritten += sizeInBytes;
+            return sizeInBytes;
+        }
+
+        @Override
+        public int write(ByteBuffer audioData, int sizeInBytes, int writeMode) {
+            audioData.position(audioData.position() + sizeInBytes);
+            mBytesWritten += sizeInBytes;
+            return sizeInBytes;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
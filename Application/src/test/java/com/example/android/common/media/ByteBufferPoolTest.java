@@ -0,0 +1,181 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteBufferPoolTest {
+
+    private static final long MAX_POOLED_BYTES = 1024 * 1024;
+
+    // Long enough that a test step never spans an interval by accident.
+    private static final long EVICTION_INTERVAL_MS = 200;
+
+    private static final int STRESS_THREADS = 4;
+    private static final int STRESS_OPS = 20000;
+    private static final int STRESS_MAX_SIZE = 64 * 1024;
+
+    @Test
+    public void roundsUpToSizeClass() {
+        ByteBufferPool pool = new ByteBufferPool(MAX_POOLED_BYTES, false);
+        assertEquals(1024, pool.acquire(1).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        ByteBuffer buffer = pool.acquire(1025);
+        assertEquals(2048, buffer.capacity());
+        assertTrue(buffer.isDirect());
+
+        buffer.position(100);
+        pool.release(buffer);
+        assertEquals(2048, pool.getPooledBytes());
+        ByteBuffer reused = pool.acquire(1500);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(2048, reused.limit());
+        assertEquals(0, pool.getPooledBytes());
+        // A smaller class doesn't take from a larger one.
+        pool.release(reused);
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(2048, pool.getPooledBytes());
+    }
+
+    @Test
+    public void keepsAtMostTheCap() {
+        ByteBufferPool pool = new ByteBufferPool(4096, false);
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(4096);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(4096, pool.getPooledBytes());
+        // Not a size class: left to the GC.
+        pool.trim();
+        pool.release(ByteBuffer.allocateDirect(3000));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void rejectsDoubleRelease() {
+        ByteBufferPool pool = new ByteBufferPool(MAX_POOLED_BYTES, true);
+        ByteBuffer buffer = pool.acquire(100);
+        assertEquals(1, pool.getOutstandingCount());
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstandingCount());
+        try {
+            pool.release(buffer);
+            fail("Released twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.release(ByteBuffer.allocateDirect(1024));
+            fail("Released a buffer of another pool");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    /**
+     * Buffers that sat in the pool for a whole interval are dropped, those taken out at some
+     * point during it are kept.
+     */
+    @Test
+    public void evictsBuffersIdleForAnInterval() throws InterruptedException {
+        ByteBufferPool pool = new ByteBufferPool(MAX_POOLED_BYTES, false, EVICTION_INTERVAL_MS);
+        ByteBuffer[] small = {pool.acquire(1024), pool.acquire(1024), pool.acquire(1024)};
+        ByteBuffer large = pool.acquire(4096);
+        for (ByteBuffer buffer : small) {
+            pool.release(buffer);
+        }
+        pool.release(large);
+
+        // The first eviction starts the interval the buffers are watched for. It is triggered
+        // through a size class of its own.
+        Thread.sleep(EVICTION_INTERVAL_MS + 50);
+        pool.release(pool.acquire(2048));
+        assertEquals(3 * 1024 + 4096 + 2048, pool.getPooledBytes());
+
+        // Two small buffers are needed at once during the interval, the large one isn't.
+        ByteBuffer a = pool.acquire(1024);
+        ByteBuffer b = pool.acquire(1024);
+        pool.release(a);
+        pool.release(b);
+        Thread.sleep(EVICTION_INTERVAL_MS + 50);
+        pool.release(pool.acquire(2048));
+        assertEquals(2 * 1024 + 2048, pool.getPooledBytes());
+    }
+
+    /**
+     * Hammers a leak tracking pool with a small cap and a short eviction interval from several
+     * threads. No buffer may be handed to two owners at once, and every one must come back.
+     */
+    @Test
+    public void concurrentAcquireAndRelease() throws InterruptedException {
+        final ByteBufferPool pool = new ByteBufferPool(256 * 1024, true, 1);
+        final Map<ByteBuffer, Boolean> owned =
+                Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[STRESS_THREADS];
+        for (int t = 0; t < STRESS_THREADS; t++) {
+            final byte marker = (byte) (t + 1);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stress(pool, owned, marker);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "Stress" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, pool.getOutstandingCount());
+        assertTrue(pool.getPooledBytes() <= 256 * 1024);
+    }
+
+    private static void stress(ByteBufferPool pool, Map<ByteBuffer, Boolean> owned,
+            byte marker) {
+        Random random = new Random(marker);
+        ByteBuffer[] held = new ByteBuffer[4];
+        for (int i = 0; i < STRESS_OPS; i++) {
+            int slot = random.nextInt(held.length);
+            ByteBuffer buffer = held[slot];
+            if (buffer != null) {
+                int last = buffer.capacity() - 1;
+                assertEquals(marker, buffer.get(0));
+                assertEquals(marker, buffer.get(last));
+                assertSame(Boolean.TRUE, owned.remove(buffer));
+                pool.release(buffer);
+                held[slot] = null;
+            } else {
+                int size = 1 + random.nextInt(STRESS_MAX_SIZE);
+                buffer = pool.acquire(size);
+                assertTrue(buffer.capacity() >= size);
+                assertNull("Handed out twice", owned.put(buffer, Boolean.TRUE));
+                buffer.put(0, marker);
+                buffer.put(buffer.capacity() - 1, marker);
+                held[slot] = buffer;
+            }
+        }
+        for (ByteBuffer buffer : held) {
+            if (buffer != null) {
+                owned.remove(buffer);
+                pool.release(buffer);
+            }
+        }
+    }
+}
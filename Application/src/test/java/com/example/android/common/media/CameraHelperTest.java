@@ -0,0 +1,203 @@
+package com.example.android.common.media;
+
+import android.hardware.Camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class CameraHelperTest {
+
+    // Resolutions cameras commonly report, in several aspect ratios.
+    private static final int[][] RESOLUTIONS = {
+            {4032, 3024}, {3840, 2160}, {3264, 2448}, {2592, 1944}, {2560, 1440},
+            {2048, 1536}, {1920, 1440}, {1920, 1080}, {1920, 960}, {1680, 1260},
+            {1600, 1200}, {1440, 1080}, {1440, 720}, {1280, 960}, {1280, 768},
+            {1280, 720}, {1280, 640}, {1200, 1200}, {1088, 1088}, {1024, 768},
+            {960, 720}, {960, 540}, {864, 480}, {800, 600}, {800, 480},
+            {768, 432}, {720, 720}, {720, 480}, {720, 360}, {640, 480},
+            {640, 360}, {640, 320}, {576, 432}, {480, 360}, {480, 320},
+            {480, 270}, {352, 288}, {320, 240}, {240, 160}, {176, 144},
+            {160, 120}, {144, 176}, {1080, 1920}, {720, 1280}, {480, 640},
+    };
+
+    private Camera mCamera;
+
+    @Before
+    public void setUp() {
+        // Camera.Size is an inner class, and Camera has no public constructor.
+        mCamera = mock(Camera.class);
+    }
+
+    @Test
+    public void picksClosestHeightWithMatchingAspectRatio() {
+        List<Camera.Size> sizes = sizes(640, 480, 1280, 720, 1920, 1080, 1440, 1080);
+        Camera.Size size = CameraHelper.getOptimalVideoSize(sizes, sizes, 1280, 700);
+        assertEquals(1280, size.width);
+        assertEquals(720, size.height);
+    }
+
+    @Test
+    public void ignoresVideoSizesThatAreNoPreviewSizes() {
+        List<Camera.Size> video = sizes(1280, 720, 1920, 1080);
+        List<Camera.Size> preview = sizes(1920, 1080);
+        Camera.Size size = CameraHelper.getOptimalVideoSize(video, preview, 1280, 720);
+        assertSame(video.get(1), size);
+    }
+
+    @Test
+    public void fallsBackToClosestHeightWithoutMatchingAspectRatio() {
+        List<Camera.Size> sizes = sizes(640, 480, 1600, 1200, 800, 600);
+        Camera.Size size = CameraHelper.getOptimalVideoSize(sizes, sizes, 1920, 620);
+        assertSame(sizes.get(2), size);
+    }
+
+    @Test
+    public void usesPreviewSizesWithoutVideoSizes() {
+        List<Camera.Size> preview = sizes(640, 480, 1280, 720);
+        assertSame(preview.get(1), CameraHelper.getOptimalVideoSize(null, preview, 1280, 720));
+    }
+
+    @Test
+    public void returnsNullWithoutCommonSizes() {
+        assertNull(CameraHelper.getOptimalVideoSize(sizes(1280, 720), sizes(640, 480), 1280,
+                720));
+    }
+
+    /**
+     * Hands back an entry of the caller's list, not of the list the result was first picked
+     * from, whose camera may be long gone.
+     */
+    @Test
+    public void memoizedSizeComesFromCallersList() {
+        List<Camera.Size> first = sizes(640, 480, 1280, 720, 1280, 720);
+        assertSame(first.get(1), CameraHelper.getOptimalVideoSize(10, first, first, 1280, 720));
+
+        mCamera = mock(Camera.class);
+        List<Camera.Size> second = sizes(640, 480, 1280, 720, 1280, 720);
+        assertSame(second.get(1), CameraHelper.getOptimalVideoSize(10, second, second, 1280,
+                720));
+    }
+
+    @Test
+    public void memoizedSizeIsPickedAgainForOtherSizeLists() {
+        List<Camera.Size> sizes = sizes(640, 480, 1280, 720);
+        assertSame(sizes.get(1), CameraHelper.getOptimalVideoSize(11, null, sizes, 1920, 1080));
+        List<Camera.Size> larger = sizes(640, 480, 1280, 720, 1920, 1080);
+        assertSame(larger.get(2), CameraHelper.getOptimalVideoSize(11, null, larger, 1920,
+                1080));
+        // The video sizes count too.
+        List<Camera.Size> video = sizes(640, 480);
+        assertSame(video.get(0), CameraHelper.getOptimalVideoSize(11, video, larger, 1920,
+                1080));
+    }
+
+    @Test
+    public void missingSizeIsNotReused() {
+        assertNull(CameraHelper.getOptimalVideoSize(12, sizes(1280, 720), sizes(640, 480), 1280,
+                720));
+        List<Camera.Size> sizes = sizes(1280, 720);
+        assertSame(sizes.get(0), CameraHelper.getOptimalVideoSize(12, sizes, sizes, 1280, 720));
+    }
+
+    /**
+     * Picks the same size as the original two-pass search on random size lists of realistic
+     * length and random view sizes, including ties and duplicate entries.
+     */
+    @Test
+    public void matchesTwoPassSearch() {
+        Random random = new Random(42);
+        for (int run = 0; run < 2000; run++) {
+            List<Camera.Size> preview = randomSizes(random, 40 + random.nextInt(41));
+            List<Camera.Size> video = random.nextInt(10) == 0 ? null
+                    : randomSizes(random, 40 + random.nextInt(41));
+            int w = 100 + random.nextInt(3000);
+            int h = 100 + random.nextInt(3000);
+            Camera.Size expected = getOptimalVideoSizeTwoPass(video, preview, w, h);
+            Camera.Size actual = CameraHelper.getOptimalVideoSize(video, preview, w, h);
+            assertSame("run " + run + ", view " + w + "x" + h, expected, actual);
+        }
+    }
+
+    /**
+     * The search as it was before the single pass: the closest height among the sizes that
+     * match the aspect ratio, or else among all sizes, taking the first on ties.
+     */
+    private static Camera.Size getOptimalVideoSizeTwoPass(List<Camera.Size> supportedVideoSizes,
+            List<Camera.Size> previewSizes, int w, int h) {
+        final double ASPECT_TOLERANCE = 0.1;
+        double targetRatio = (double) w / h;
+        List<Camera.Size> videoSizes = supportedVideoSizes != null ? supportedVideoSizes
+                : previewSizes;
+        Camera.Size optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+        for (Camera.Size size : videoSizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) {
+                continue;
+            }
+            if (Math.abs(size.height - h) < minDiff && contains(previewSizes, size)) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - h);
+            }
+        }
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (Camera.Size size : videoSizes) {
+                if (Math.abs(size.height - h) < minDiff && contains(previewSizes, size)) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - h);
+                }
+            }
+        }
+        return optimalSize;
+    }
+
+    /**
+     * {@link List#contains(Object)} as on a device, where {@link Camera.Size#equals(Object)}
+     * compares the dimensions.
+     */
+    private static boolean contains(List<Camera.Size> sizes, Camera.Size size) {
+        for (Camera.Size other : sizes) {
+            if (other.width == size.width && other.height == size.height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Camera.Size> randomSizes(Random random, int count) {
+        List<Camera.Size> sizes = new ArrayList<Camera.Size>();
+        for (int i = 0; i < count; i++) {
+            int[] resolution = RESOLUTIONS[random.nextInt(RESOLUTIONS.length)];
+            sizes.add(size(resolution[0], resolution[1]));
+        }
+        Collections.shuffle(sizes, random);
+        return sizes;
+    }
+
+    private List<Camera.Size> sizes(int... dimensions) {
+        List<Camera.Size> sizes = new ArrayList<Camera.Size>();
+        for (int i = 0; i < dimensions.length; i += 2) {
+            sizes.add(size(dimensions[i], dimensions[i + 1]));
+        }
+        return sizes;
+    }
+
+    private Camera.Size size(int width, int height) {
+        Camera.Size size = mCamera.new Size(width, height);
+        // The constructor of the Android stub jar doesn't set the fields.
+        size.width = width;
+        size.height = height;
+        return size;
+    }
+}
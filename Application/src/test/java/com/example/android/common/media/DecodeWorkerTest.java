@@ -0,0 +1,450 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DecodeWorkerTest {
+
+    private static final long SAMPLE_DURATION_US = 10000;
+    private static final int SYNC_INTERVAL = 5;
+    // Decoded samples the fake decoder holds at most, like a codec's output buffers.
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MS = 5000;
+
+    private Handler mHandler;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        // Runs the callbacks right away, on the decode thread.
+        mHandler = mock(Handler.class);
+        when(mHandler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArgument(0)).run();
+                return true;
+            }
+        });
+        mListener = new RecordingListener();
+    }
+
+    @Test
+    public void unpacedWorkerPresentsEverySampleAndReportsEnd() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        FakeSampleSource source = newSource(20);
+        DecodeWorker worker = newWorker(decoder, source, null);
+        worker.start();
+        worker.join();
+
+        assertTrue(worker.isEndOfStream());
+        assertEquals(20, decoder.mRendered.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i * SAMPLE_DURATION_US, (long) decoder.mRendered.get(i));
+        }
+        assertEquals(1, mListener.mFirstSamples);
+        assertEquals(1, mListener.mEnds);
+        assertNull(mListener.mError);
+        assertTrue(worker.getFirstSampleTimeNs() > 0);
+        assertTrue(decoder.mReleased);
+        assertTrue(source.isReleased());
+    }
+
+    /**
+     * Presents what is due by the clock and waits with the rest. Samples the clock has left
+     * behind by more than the drop threshold are dropped.
+     */
+    @Test
+    public void pacedWorkerFollowsTheClock() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        FakeClock clock = new FakeClock();
+        DecodeWorker worker = newWorker(decoder, newSource(10), clock);
+        worker.start();
+
+        // Up to the render-ahead window of 30 ms.
+        decoder.awaitPresented(4);
+        Thread.sleep(50);
+        assertEquals(4, decoder.mRendered.size());
+        assertFalse(worker.isEndOfStream());
+
+        // 40 and 50 ms are more than 40 ms late by now, the rest isn't.
+        clock.mTimeUs = 95000;
+        worker.join();
+        assertTrue(worker.isEndOfStream());
+        assertEquals(2, worker.getDroppedFrameCount());
+        assertEquals(8, decoder.mRendered.size());
+        assertEquals(60000, (long) decoder.mRendered.get(4));
+    }
+
+    @Test
+    public void heldWorkerPrerollsWithoutPresenting() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        DecodeWorker worker = newWorker(decoder, newSource(20), null);
+        worker.setHeld(true);
+        worker.start();
+
+        decoder.awaitDecoded(CAPACITY);
+        Thread.sleep(50);
+        assertTrue(decoder.mRendered.isEmpty());
+        assertEquals(0, mListener.mFirstSamples);
+
+        worker.setHeld(false);
+        worker.join();
+        assertTrue(worker.isEndOfStream());
+        assertEquals(20, decoder.mRendered.size());
+    }
+
+    /**
+     * Seeks between sync samples: the source goes back to the sync sample before the target,
+     * and what is decoded from there up to the target is released without being presented.
+     */
+    @Test
+    public void seekDiscardsSamplesBeforeTheTarget() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        FakeSampleSource source = newSource(40);
+        DecodeWorker worker = newWorker(decoder, source, null);
+        // Picked up by the first pass of the decode loop.
+        worker.seekTo(23 * SAMPLE_DURATION_US);
+        worker.start();
+        worker.join();
+
+        assertEquals(1, source.getSeekCount());
+        assertEquals(1, decoder.mFlushes);
+        assertEquals(20 * SAMPLE_DURATION_US, (long) decoder.mDiscarded.get(0));
+        assertEquals(22 * SAMPLE_DURATION_US, (long) decoder.mDiscarded.get(2));
+        assertEquals(3, decoder.mDiscarded.size());
+        assertEquals(23 * SAMPLE_DURATION_US, (long) decoder.mRendered.get(0));
+        assertEquals(40 - 23, decoder.mRendered.size());
+        assertTrue(worker.isEndOfStream());
+    }
+
+    @Test
+    public void seekWhilePlayingFlushesAndContinuesFromTarget() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        FakeClock clock = new FakeClock();
+        FakeSampleSource source = newSource(100);
+        DecodeWorker worker = newWorker(decoder, source, clock);
+        worker.start();
+        decoder.awaitPresented(4);
+
+        // The clock follows the seek, as with a player's clock, so nothing counts as late.
+        worker.seekTo(70 * SAMPLE_DURATION_US);
+        clock.mTimeUs = 70 * SAMPLE_DURATION_US;
+        decoder.awaitPresented(5);
+        worker.stop();
+
+        assertEquals(1, decoder.mFlushes);
+        assertEquals(70 * SAMPLE_DURATION_US, (long) decoder.mRendered.get(4));
+        assertTrue(decoder.mDiscarded.isEmpty());
+        assertEquals(0, worker.getDroppedFrameCount());
+    }
+
+    /**
+     * Seeks the way {@link PlaybackEngine} does in accurate mode: the samples from the sync
+     * sample before the target are decoded and released without being presented.
+     */
+    @Test
+    public void accurateSeekDiscardsUpToTheTarget() throws InterruptedException {
+        FakeDecoder decoder = seekWhilePlaying(PlaybackEngine.SEEK_MODE_ACCURATE);
+        assertEquals(4, decoder.mDiscarded.size());
+        assertEquals(55 * SAMPLE_DURATION_US, (long) decoder.mDiscarded.get(0));
+        assertEquals(58 * SAMPLE_DURATION_US, (long) decoder.mDiscarded.get(3));
+        assertEquals(59 * SAMPLE_DURATION_US, (long) decoder.mRendered.get(4));
+    }
+
+    /**
+     * In fast mode the seek lands on the sync sample, so nothing needs decoding forward.
+     */
+    @Test
+    public void fastSeekPresentsFromTheSyncSample() throws InterruptedException {
+        FakeDecoder decoder = seekWhilePlaying(PlaybackEngine.SEEK_MODE_FAST);
+        assertTrue(decoder.mDiscarded.isEmpty());
+        assertEquals(55 * SAMPLE_DURATION_US, (long) decoder.mRendered.get(4));
+    }
+
+    @Test
+    public void failureIsReportedAndReleasesEverything() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        decoder.mFailAfterFills = 3;
+        FakeSampleSource source = newSource(100);
+        DecodeWorker worker = newWorker(decoder, source, null);
+        worker.start();
+        worker.join();
+
+        assertFalse(worker.isEndOfStream());
+        assertSame(decoder.mFailure, mListener.mError);
+        assertEquals(0, mListener.mEnds);
+        assertTrue(decoder.mReleased);
+        assertTrue(source.isReleased());
+    }
+
+    /**
+     * Stops a worker that waits for the clock. It must come down promptly, woken rather than
+     * interrupted, and without reporting anything.
+     */
+    @Test
+    public void stopWakesTheWorkerWithoutInterrupting() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder();
+        FakeClock clock = new FakeClock();
+        FakeSampleSource source = newSource(100);
+        DecodeWorker worker = newWorker(decoder, source, clock);
+        worker.start();
+        decoder.awaitPresented(4);
+
+        long startNs = System.nanoTime();
+        worker.stop();
+        assertTrue(System.nanoTime() - startNs < TIMEOUT_MS * 1000000);
+
+        assertFalse(decoder.mInterrupted);
+        assertTrue(decoder.mReleased);
+        assertTrue(source.isReleased());
+        assertFalse(worker.isEndOfStream());
+        assertEquals(0, mListener.mEnds);
+        assertNull(mListener.mError);
+    }
+
+    /**
+     * Plays a track paced by a clock, seeks it to 59 samples in, resolved for {@code mode}
+     * against the sync samples of the track, and lets it present one sample after the seek.
+     */
+    private FakeDecoder seekWhilePlaying(int mode) throws InterruptedException {
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                FakeExtractor.regular(100, SAMPLE_DURATION_US, SYNC_INTERVAL));
+        FakeDecoder decoder = new FakeDecoder();
+        FakeClock clock = new FakeClock();
+        DecodeWorker worker = newWorker(decoder, newSource(100), clock);
+        worker.start();
+        decoder.awaitPresented(4);
+
+        long positionUs = PlaybackEngine.getSeekPositionUs(index, 59 * SAMPLE_DURATION_US, mode);
+        worker.seekTo(positionUs);
+        clock.mTimeUs = positionUs;
+        decoder.awaitPresented(5);
+        worker.stop();
+        assertEquals(1, decoder.mFlushes);
+        return decoder;
+    }
+
+    private DecodeWorker newWorker(FakeDecoder decoder, FakeSampleSource source,
+            MediaClock clock) {
+        DecodeWorker worker = new DecodeWorker("Decode", decoder, source, clock, true);
+        worker.setListener(mListener, mHandler);
+        return worker;
+    }
+
+    private static FakeSampleSource newSource(int samples) {
+        return new FakeSampleSource(samples, 100, SAMPLE_DURATION_US, SYNC_INTERVAL);
+    }
+
+    private static class FakeClock implements MediaClock {
+        volatile long mTimeUs;
+
+        @Override
+        public long getTimeUs() {
+            return mTimeUs;
+        }
+    }
+
+    private static class RecordingListener implements DecodeWorker.Listener {
+        volatile int mFirstSamples;
+        volatile int mEnds;
+        volatile Exception mError;
+
+        @Override
+        public void onFirstSample(DecodeWorker sender) {
+            mFirstSamples++;
+        }
+
+        @Override
+        public void onEndOfStream(DecodeWorker sender) {
+            mEnds++;
+        }
+
+        @Override
+        public void onError(DecodeWorker sender, Exception e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Decoder that "decodes" a sample as soon as it is queued, holding at most
+     * {@link #CAPACITY} of them, and records which samples were presented and which were
+     * released without.
+     */
+    private static class FakeDecoder implements SampleDecoder {
+
+        // Presentation times and flags of the decoded samples, in order.
+        private final ArrayDeque<long[]> mDecoded = new ArrayDeque<long[]>();
+        private boolean mEndOfInputQueued;
+
+        final List<Long> mRendered = new ArrayList<Long>();
+        final List<Long> mDiscarded = new ArrayList<Long>();
+        int mFlushes;
+        int mFills;
+        int mFailAfterFills = Integer.MAX_VALUE;
+        final RuntimeException mFailure = new IllegalStateException("Decoder failed");
+        volatile boolean mInterrupted;
+        volatile boolean mReleased;
+        private int mDecodedCount;
+
+        private boolean mWakeUpPending;
+
+        @Override
+        public synchronized int fillAvailable(SampleSource source) {
+            if (++mFills > mFailAfterFills) {
+                throw mFailure;
+            }
+            int count = 0;
+            while (!mEndOfInputQueued && mDecoded.size() < CAPACITY && source.isReady()) {
+                long ptsUs = source.getSampleTime();
+                if (ptsUs < 0) {
+                    mDecoded.add(new long[] {0, MediaCodec.BUFFER_FLAG_END_OF_STREAM});
+                    mEndOfInputQueued = true;
+                } else {
+                    boolean sync =
+                            (source.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                    mDecoded.add(new long[] {ptsUs, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0});
+                    source.advance();
+                }
+                mDecodedCount++;
+                count++;
+            }
+            notifyAll();
+            return count;
+        }
+
+        @Override
+        public synchronized boolean isEndOfInputQueued() {
+            return mEndOfInputQueued;
+        }
+
+        @Override
+        public synchronized boolean hasSample() {
+            return !mDecoded.isEmpty();
+        }
+
+        @Override
+        public synchronized long peekPresentationTimeUs() {
+            return mDecoded.getFirst()[0];
+        }
+
+        @Override
+        public int peekSize() {
+            return 100;
+        }
+
+        @Override
+        public synchronized int peekFlags() {
+            return (int) mDecoded.getFirst()[1];
+        }
+
+        @Override
+        public void popSample(boolean render) {
+            popSample(render, 0);
+        }
+
+        @Override
+        public synchronized void popSample(boolean render, long renderTimeNs) {
+            long[] sample = mDecoded.removeFirst();
+            if ((sample[1] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                (render ? mRendered : mDiscarded).add(sample[0]);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int drainReady(long clockUs) {
+            int count = 0;
+            while (!mDecoded.isEmpty() && mDecoded.getFirst()[0] <= clockUs
+                    && (mDecoded.getFirst()[1] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                popSample(true);
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public int drainReady(long clockUs, OutputSink sink) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void flush() {
+            mDecoded.clear();
+            mEndOfInputQueued = false;
+            mFlushes++;
+        }
+
+        @Override
+        public synchronized void awaitBuffers(long timeoutMs) throws InterruptedException {
+            try {
+                if (!mWakeUpPending) {
+                    wait(timeoutMs);
+                }
+                mWakeUpPending = false;
+            } catch (InterruptedException e) {
+                mInterrupted = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized void wakeUp() {
+            mWakeUpPending = true;
+            notifyAll();
+        }
+
+        @Override
+        public void stopAndRelease() {
+            mInterrupted |= Thread.currentThread().isInterrupted();
+            mReleased = true;
+        }
+
+        @Override
+        public boolean writeSample(MediaExtractor extractor, boolean isSecure,
+                long presentationTimeUs, int flags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean peekSample(MediaCodec.BufferInfo out_bufferInfo) {
+            throw new UnsupportedOperationException();
+        }
+
+        synchronized void awaitPresented(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mRendered.size() < count) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                assertTrue("Timed out", remainingMs > 0);
+                wait(remainingMs);
+            }
+        }
+
+        synchronized void awaitDecoded(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mDecodedCount < count) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                assertTrue("Timed out", remainingMs > 0);
+                wait(remainingMs);
+            }
+        }
+    }
+}
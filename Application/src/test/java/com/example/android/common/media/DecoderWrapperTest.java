@@ -0,0 +1,136 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecoderWrapperTest {
+
+    private static final int BUFFERS = 4;
+    private static final int SAMPLE_SIZE = 100;
+    private static final int OUTPUT_SIZE = 1000;
+    private static final long SAMPLE_DURATION_US = 10000;
+    private static final int SYNC_INTERVAL = 2;
+
+    /**
+     * Lets the codec finish several buffers before the wrapper synchronizes with it, so they are
+     * all dequeued into the same reused BufferInfo in one update. Each must keep its own
+     * metadata on the way to the sink.
+     */
+    @Test
+    public void outputsDequeuedTogetherKeepTheirMetadata() {
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        RecordingSink sink = new RecordingSink(codec, BUFFERS);
+        DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+        decoder.start();
+
+        FakeSampleSource source = newSource(BUFFERS);
+        assertEquals(BUFFERS, decoder.fillAvailable(source));
+        assertTrue(decoder.hasSample());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < BUFFERS; i++) {
+            assertTrue(decoder.peekSample(info));
+            assertEquals(i * SAMPLE_DURATION_US, info.presentationTimeUs);
+            assertEquals(i * SAMPLE_DURATION_US, decoder.peekPresentationTimeUs());
+            assertEquals(expectedFlags(i), decoder.peekFlags());
+            assertEquals(OUTPUT_SIZE, decoder.peekSize());
+            decoder.popSample(i % 2 == 0);
+        }
+        assertFalse(decoder.hasSample());
+
+        assertEquals(BUFFERS, sink.mCount);
+        for (int i = 0; i < BUFFERS; i++) {
+            assertEquals(i * SAMPLE_DURATION_US, sink.mPtsUs[i]);
+            assertEquals(expectedFlags(i), sink.mFlags[i]);
+            assertEquals(OUTPUT_SIZE, sink.mSizes[i]);
+            assertEquals(i % 2 == 0, sink.mRendered[i]);
+        }
+        decoder.stopAndRelease();
+    }
+
+    /**
+     * The same for callback mode, where the codec's thread reuses one BufferInfo for every
+     * buffer it hands over.
+     */
+    @Test
+    public void callbackOutputsKeepTheirMetadata() throws InterruptedException {
+        int samples = 50;
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        RecordingSink sink = new RecordingSink(codec, samples + 1);
+        DecoderWrapper decoder = new DecoderWrapper(codec, sink, true);
+        decoder.start();
+
+        FakeSampleSource source = newSource(samples);
+        long deadlineNs = System.nanoTime() + 5000000000L;
+        while (!(decoder.hasSample()
+                && (decoder.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)) {
+            assertTrue("Timed out", System.nanoTime() < deadlineNs);
+            decoder.fillAvailable(source);
+            if (decoder.drainReady(Long.MAX_VALUE) == 0) {
+                decoder.awaitBuffers(10);
+            }
+        }
+        decoder.stopAndRelease();
+
+        assertEquals(samples, sink.mCount);
+        for (int i = 0; i < samples; i++) {
+            assertEquals(i * SAMPLE_DURATION_US, sink.mPtsUs[i]);
+            assertEquals(expectedFlags(i), sink.mFlags[i]);
+            assertEquals(OUTPUT_SIZE, sink.mSizes[i]);
+        }
+        assertTrue(codec.isReleased());
+        assertTrue(sink.mReleased);
+    }
+
+    @Test
+    public void drainReadyStopsAtClockAndEndOfStream() {
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        RecordingSink sink = new RecordingSink(codec, BUFFERS);
+        DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+        decoder.start();
+
+        decoder.fillAvailable(newSource(BUFFERS - 1));
+        assertTrue(decoder.isEndOfInputQueued());
+        assertEquals(2, decoder.drainReady(SAMPLE_DURATION_US));
+        assertEquals(1, decoder.drainReady(Long.MAX_VALUE));
+        // The end-of-stream buffer stays for the caller to see.
+        assertTrue(decoder.hasSample());
+        assertTrue((decoder.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        assertEquals(0, decoder.drainReady(Long.MAX_VALUE));
+        assertEquals(BUFFERS - 1, sink.mCount);
+        decoder.stopAndRelease();
+    }
+
+    @Test
+    public void flushDropsDecodedOutput() {
+        FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        RecordingSink sink = new RecordingSink(codec, BUFFERS);
+        DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+        decoder.start();
+
+        FakeSampleSource source = newSource(2 * BUFFERS);
+        decoder.fillAvailable(source);
+        assertTrue(decoder.hasSample());
+        decoder.flush();
+        assertFalse(decoder.hasSample());
+        assertEquals(1, sink.mFlushCount);
+
+        // Every buffer is ours again.
+        assertEquals(BUFFERS, decoder.fillAvailable(source));
+        assertTrue(decoder.hasSample());
+        assertEquals(BUFFERS * SAMPLE_DURATION_US, decoder.peekPresentationTimeUs());
+        decoder.stopAndRelease();
+    }
+
+    private static FakeSampleSource newSource(int samples) {
+        return new FakeSampleSource(samples, SAMPLE_SIZE, SAMPLE_DURATION_US, SYNC_INTERVAL);
+    }
+
+    private static int expectedFlags(int sample) {
+        return sample % SYNC_INTERVAL == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+    }
+}
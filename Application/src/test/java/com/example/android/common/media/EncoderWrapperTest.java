@@ -0,0 +1,350 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class EncoderWrapperTest {
+
+    private static final int FRAME_BYTES = 1000;
+    private static final long FRAME_INTERVAL_NS = 20000000;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void encodesAndMuxesEverySubmittedFrame() throws InterruptedException {
+        FakeEncoder encoder = new FakeEncoder();
+        FakeMuxer muxer = new FakeMuxer();
+        Surface surface = mock(Surface.class);
+        EncoderWrapper wrapper = new EncoderWrapper(encoder, surface, muxer, 4,
+                100 * FRAME_BYTES);
+        wrapper.start();
+        for (int i = 0; i < 10; i++) {
+            submit(wrapper, encoder, i * FRAME_INTERVAL_NS);
+            Thread.sleep(FRAME_INTERVAL_NS / 1000000);
+        }
+        encoder.awaitReleased(10);
+        wrapper.stop();
+
+        assertEquals(10, wrapper.getEncodedFrameCount());
+        assertEquals(0, wrapper.getDroppedFrameCount());
+        assertEquals(10, muxer.mWrittenPtsUs.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * FRAME_INTERVAL_NS / 1000, (long) muxer.mWrittenPtsUs.get(i));
+        }
+        assertTrue(muxer.mStopped);
+        assertTrue(muxer.mReleased);
+        assertTrue(encoder.mReleased);
+        verify(surface).release();
+
+        // Frames leave the encoder about as fast as they were submitted, give or take the
+        // scheduling of the drain thread.
+        float framesPerSecond = wrapper.getFramesPerSecond();
+        assertTrue("" + framesPerSecond, framesPerSecond > 0
+                && framesPerSecond <= 1e9f / FRAME_INTERVAL_NS * 1.25f);
+
+        PipelineMetrics.Snapshot snapshot = wrapper.getMetrics().snapshot();
+        assertEquals(10, snapshot.getCount(PipelineMetrics.STAGE_ENCODE));
+        assertEquals(10, snapshot.getCount(PipelineMetrics.STAGE_MUX));
+        assertEquals(10, snapshot.getCount(PipelineMetrics.STAGE_END_TO_END));
+        assertTrue(snapshot.getTimeToFirstSampleUs() >= 0);
+    }
+
+    @Test
+    public void dropsFramesWhileEncoderIsBehind() throws InterruptedException {
+        FakeEncoder encoder = new FakeEncoder();
+        EncoderWrapper wrapper = new EncoderWrapper(encoder, mock(Surface.class),
+                new FakeMuxer(), 4, 100 * FRAME_BYTES);
+        wrapper.start();
+        encoder.setHeld(true);
+        for (int i = 0; i < 4; i++) {
+            submit(wrapper, encoder, i * FRAME_INTERVAL_NS);
+        }
+        assertFalse(wrapper.beginFrame(4 * FRAME_INTERVAL_NS));
+        assertFalse(wrapper.beginFrame(5 * FRAME_INTERVAL_NS));
+        assertEquals(2, wrapper.getDroppedFrameCount());
+
+        encoder.setHeld(false);
+        encoder.awaitReleased(4);
+        submit(wrapper, encoder, 6 * FRAME_INTERVAL_NS);
+        encoder.awaitReleased(5);
+        wrapper.stop();
+        assertEquals(5, wrapper.getEncodedFrameCount());
+        assertEquals(2, wrapper.getDroppedFrameCount());
+        // Dropped frames never reach the encoder, so aren't in the latencies.
+        assertEquals(5, wrapper.getMetrics().snapshot().getCount(PipelineMetrics.STAGE_ENCODE));
+    }
+
+    @Test
+    public void dropsFramesWhileMuxerIsBehind() throws InterruptedException {
+        FakeEncoder encoder = new FakeEncoder();
+        FakeMuxer muxer = new FakeMuxer();
+        EncoderWrapper wrapper = new EncoderWrapper(encoder, mock(Surface.class), muxer, 4,
+                3 * FRAME_BYTES);
+        wrapper.start();
+        muxer.setHeld(true);
+        // The writer holds on to the first sample, which stays pending until it's written.
+        for (int i = 0; i < 3; i++) {
+            submit(wrapper, encoder, i * FRAME_INTERVAL_NS);
+            encoder.awaitReleased(i + 1);
+        }
+        assertFalse(wrapper.beginFrame(3 * FRAME_INTERVAL_NS));
+        assertEquals(1, wrapper.getDroppedFrameCount());
+
+        muxer.setHeld(false);
+        muxer.awaitWritten(3);
+        submit(wrapper, encoder, 4 * FRAME_INTERVAL_NS);
+        encoder.awaitReleased(4);
+        wrapper.stop();
+        assertEquals(4, muxer.mWrittenPtsUs.size());
+        assertEquals(4, wrapper.getMetrics().snapshot().getCount(
+                PipelineMetrics.STAGE_END_TO_END));
+    }
+
+    @Test
+    public void stopWithoutStartReleasesEverything() {
+        FakeEncoder encoder = new FakeEncoder();
+        FakeMuxer muxer = new FakeMuxer();
+        Surface surface = mock(Surface.class);
+        new EncoderWrapper(encoder, surface, muxer, 4, 100 * FRAME_BYTES).stop();
+        assertTrue(encoder.mReleased);
+        assertTrue(muxer.mReleased);
+        assertFalse(muxer.mStopped);
+        verify(surface).release();
+    }
+
+    /**
+     * Does what the frame producer does for a frame the wrapper takes: draws it into the
+     * input surface.
+     */
+    private static void submit(EncoderWrapper wrapper, FakeEncoder encoder,
+            long presentationTimeNs) {
+        assertTrue(wrapper.beginFrame(presentationTimeNs));
+        encoder.draw(presentationTimeNs / 1000);
+    }
+
+    /**
+     * {@link EncoderWrapper.Encoder} that turns every frame drawn into an encoded buffer of
+     * {@link #FRAME_BYTES} right away, unless held, and reports the output format first.
+     */
+    private static class FakeEncoder implements EncoderWrapper.Encoder {
+
+        private static final int BUFFER_COUNT = 8;
+
+        private final ByteBuffer[] mOutputBuffers = new ByteBuffer[BUFFER_COUNT];
+        private final MediaFormat mFormat = mock(MediaFormat.class);
+
+        // Drawn frames not dequeued yet, and output buffers the wrapper holds.
+        private final List<Long> mDrawnPtsUs = new ArrayList<Long>();
+        private final boolean[] mDequeued = new boolean[BUFFER_COUNT];
+        private boolean mFormatReported;
+        private boolean mEndOfInput;
+        private boolean mEndOfStreamSent;
+        private int mEndOfStreamIndex = -1;
+        private boolean mHeld;
+        private int mReleasedBuffers;
+        volatile boolean mReleased;
+
+        FakeEncoder() {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                mOutputBuffers[i] = ByteBuffer.allocate(FRAME_BYTES);
+            }
+        }
+
+        synchronized void draw(long ptsUs) {
+            mDrawnPtsUs.add(ptsUs);
+            notifyAll();
+        }
+
+        synchronized void setHeld(boolean held) {
+            mHeld = held;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the wrapper has given back {@code count} encoded buffers, by which time
+         * it has queued their samples for the muxer.
+         */
+        synchronized void awaitReleased(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mReleasedBuffers < count) {
+                long waitMs = deadlineMs - System.currentTimeMillis();
+                assertTrue("Released " + mReleasedBuffers + " of " + count, waitMs > 0);
+                wait(waitMs);
+            }
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+
+        @Override
+        public synchronized void signalEndOfInputStream() {
+            mEndOfInput = true;
+            notifyAll();
+        }
+
+        @Override
+        public ByteBuffer[] getOutputBuffers() {
+            return mOutputBuffers;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mOutputBuffers[index];
+        }
+
+        @Override
+        public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info,
+                long timeoutUs) {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            long deadlineMs = System.currentTimeMillis() + timeoutUs / 1000;
+            while (true) {
+                int index = getFreeBuffer();
+                boolean ready = !mHeld && !mDrawnPtsUs.isEmpty();
+                boolean ended = mEndOfInput && mDrawnPtsUs.isEmpty() && !mEndOfStreamSent;
+                if (index >= 0 && (ready || ended)) {
+                    mDequeued[index] = true;
+                    info.offset = 0;
+                    if (ready) {
+                        info.size = FRAME_BYTES;
+                        info.presentationTimeUs = mDrawnPtsUs.remove(0);
+                        info.flags = 0;
+                    } else {
+                        mEndOfStreamSent = true;
+                        mEndOfStreamIndex = index;
+                        info.size = 0;
+                        info.presentationTimeUs = 0;
+                        info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                    }
+                    mOutputBuffers[index].clear();
+                    return index;
+                }
+                long waitMs = deadlineMs - System.currentTimeMillis();
+                if (waitMs <= 0) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+                try {
+                    wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+
+        private int getFreeBuffer() {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                if (!mDequeued[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index) {
+            assertTrue(mDequeued[index]);
+            mDequeued[index] = false;
+            // The end of stream buffer isn't a frame.
+            if (index != mEndOfStreamIndex) {
+                mReleasedBuffers++;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mFormat;
+        }
+    }
+
+    /**
+     * {@link EncoderWrapper.Muxer} that records the presentation times written, and can hold
+     * up the writer like a slow disk would.
+     */
+    private static class FakeMuxer implements EncoderWrapper.Muxer {
+
+        final List<Long> mWrittenPtsUs = new ArrayList<Long>();
+        private boolean mHeld;
+        private boolean mStarted;
+        volatile boolean mStopped;
+        volatile boolean mReleased;
+
+        synchronized void setHeld(boolean held) {
+            mHeld = held;
+            notifyAll();
+        }
+
+        synchronized void awaitWritten(int count) throws InterruptedException {
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mWrittenPtsUs.size() < count) {
+                long waitMs = deadlineMs - System.currentTimeMillis();
+                assertTrue("Wrote " + mWrittenPtsUs.size() + " of " + count, waitMs > 0);
+                wait(waitMs);
+            }
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            assertFalse(mStarted);
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public synchronized void writeSampleData(int track, ByteBuffer data,
+                MediaCodec.BufferInfo info) {
+            assertTrue(mStarted);
+            assertEquals(FRAME_BYTES, data.remaining());
+            assertEquals(FRAME_BYTES, info.size);
+            while (mHeld) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            mWrittenPtsUs.add(info.presentationTimeUs);
+            notifyAll();
+        }
+
+        @Override
+        public void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
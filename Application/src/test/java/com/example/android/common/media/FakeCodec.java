@@ -0,0 +1,363 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import org.objenesis.ObjenesisStd;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Codec} that "decodes" every input buffer into an output buffer of a fixed size after a
+ * fixed latency, carrying over the presentation time and the end-of-stream flag. It holds every
+ * input buffer until its output is produced, and every output buffer until
+ * {@link #releaseOutputBuffer(int)}, so it pushes back like a real codec does.
+ *
+ * In polled mode the work happens in the dequeue calls. In callback mode a thread of the fake's
+ * own calls the {@link MediaCodec.Callback}, the way the codec's callback thread would. Once
+ * started, neither mode allocates per sample.
+ */
+class FakeCodec implements Codec {
+
+    private final int mOutputSize;
+    private final long mLatencyNs;
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+
+    // Handed to the sinks, which may release buffers through it; its methods do nothing. Output
+    // buffers go back to the fake through releaseOutputBuffer().
+    private final MediaCodec mMediaCodec = new ObjenesisStd().newInstance(MediaCodec.class);
+
+    // Input buffers the client may fill, and output buffers free to be produced into.
+    private final IntRingQueue mFreeInputs;
+    private final IntRingQueue mFreeOutputs;
+
+    // Queued input buffers in order, with when their output is due.
+    private final int[] mPendingIndex;
+    private final long[] mPendingPtsUs;
+    private final int[] mPendingFlags;
+    private final int[] mPendingSize;
+    private final long[] mPendingReadyNs;
+    private int mPendingHead;
+    private int mPendingCount;
+
+    // Output produced and not yet dequeued, in polled mode.
+    private final IntRingQueue mReadyOutputs;
+    private final long[] mOutputPtsUs;
+    private final int[] mOutputFlags;
+    private final int[] mOutputSizes;
+
+    private MediaCodec.Callback mCallback;
+    private Thread mCallbackThread;
+    // Target of the output callbacks, reused.
+    private final MediaCodec.BufferInfo mCallbackInfo = new MediaCodec.BufferInfo();
+
+    // CPU time the callback thread took, once it has ended.
+    private volatile long mCallbackCpuTimeNs;
+
+    private boolean mStarted;
+    private boolean mReleased;
+    private int mQueuedCount;
+    private long mLastInputPtsUs = -1;
+
+    /**
+     * @param bufferCount Number of input and of output buffers.
+     * @param inputCapacity Capacity of each input buffer, in bytes.
+     * @param outputSize Size of each decoded buffer, in bytes.
+     * @param latencyNs Time from an input buffer being queued to its output being available.
+     */
+    FakeCodec(int bufferCount, int inputCapacity, int outputSize, long latencyNs) {
+        mOutputSize = outputSize;
+        mLatencyNs = latencyNs;
+        mInputBuffers = new ByteBuffer[bufferCount];
+        mOutputBuffers = new ByteBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(inputCapacity);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+        }
+        mFreeInputs = new IntRingQueue(bufferCount);
+        mFreeOutputs = new IntRingQueue(bufferCount);
+        mReadyOutputs = new IntRingQueue(bufferCount);
+        mPendingIndex = new int[bufferCount];
+        mPendingPtsUs = new long[bufferCount];
+        mPendingFlags = new int[bufferCount];
+        mPendingSize = new int[bufferCount];
+        mPendingReadyNs = new long[bufferCount];
+        mOutputPtsUs = new long[bufferCount];
+        mOutputFlags = new int[bufferCount];
+        mOutputSizes = new int[bufferCount];
+    }
+
+    /**
+     * Gives an output buffer back to the codec, which is what a sink does through
+     * {@link MediaCodec#releaseOutputBuffer(int, boolean)} on a real one.
+     */
+    synchronized void releaseOutputBuffer(int index) {
+        mFreeOutputs.add(index);
+        notifyAll();
+    }
+
+    /**
+     * @return the number of input buffers queued since the start or the last flush.
+     */
+    synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * @return the presentation time of the input buffer queued last, or -1.
+     */
+    synchronized long getLastInputPtsUs() {
+        return mLastInputPtsUs;
+    }
+
+    synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * @return the CPU time the callback thread took, in callback mode after {@link #stop()}.
+     */
+    long getCallbackCpuTimeNs() {
+        return mCallbackCpuTimeNs;
+    }
+
+    @Override
+    public MediaCodec getMediaCodec() {
+        return mMediaCodec;
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface) {
+    }
+
+    @Override
+    public synchronized void setCallback(MediaCodec.Callback callback, Handler handler) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            reset();
+            mStarted = true;
+            if (mCallback == null || mCallbackThread != null) {
+                notifyAll();
+                return;
+            }
+            mCallbackThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runCallbacks();
+                }
+            }, "FakeCodecCallback");
+        }
+        mCallbackThread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            mStarted = false;
+            thread = mCallbackThread;
+            mCallbackThread = null;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        reset();
+        // A real codec in callback mode waits for start() after a flush.
+        mStarted = mCallback == null;
+    }
+
+    @Override
+    public synchronized void release() {
+        mReleased = true;
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mInputBuffers;
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mOutputBuffers;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        produce();
+        return mFreeInputs.isEmpty() ? MediaCodec.INFO_TRY_AGAIN_LATER : mFreeInputs.remove();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        produce();
+        if (mReadyOutputs.isEmpty()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        int index = mReadyOutputs.remove();
+        setInfo(info, index);
+        return index;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        queue(index, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+            long presentationTimeUs, int flags) {
+        queue(index, 0, presentationTimeUs, flags);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    private synchronized void queue(int index, int size, long presentationTimeUs, int flags) {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        int tail = (mPendingHead + mPendingCount) % mPendingIndex.length;
+        mPendingIndex[tail] = index;
+        mPendingPtsUs[tail] = presentationTimeUs;
+        mPendingFlags[tail] = flags;
+        mPendingSize[tail] = size;
+        mPendingReadyNs[tail] = System.nanoTime() + mLatencyNs;
+        mPendingCount++;
+        mQueuedCount++;
+        mLastInputPtsUs = presentationTimeUs;
+        notifyAll();
+    }
+
+    /**
+     * Turns every pending input buffer that is due into an output buffer, as long as there are
+     * free ones. In polled mode the output is queued for dequeueOutputBuffer(); in callback mode
+     * the caller hands it over.
+     *
+     * @return the output buffer produced, in callback mode, or -1.
+     */
+    private int produce() {
+        long nowNs = System.nanoTime();
+        while (mStarted && mPendingCount > 0 && !mFreeOutputs.isEmpty()
+                && mPendingReadyNs[mPendingHead] <= nowNs) {
+            int head = mPendingHead;
+            int output = mFreeOutputs.remove();
+            mOutputPtsUs[output] = mPendingPtsUs[head];
+            mOutputFlags[output] = mPendingFlags[head]
+                    & (MediaCodec.BUFFER_FLAG_END_OF_STREAM | MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+            boolean endOfStream =
+                    (mOutputFlags[output] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            mOutputSizes[output] = endOfStream && mPendingSize[head] == 0 ? 0 : mOutputSize;
+            mFreeInputs.add(mPendingIndex[head]);
+            mPendingHead = (head + 1) % mPendingIndex.length;
+            mPendingCount--;
+            if (mCallback != null) {
+                return output;
+            }
+            mReadyOutputs.add(output);
+        }
+        return -1;
+    }
+
+    private void setInfo(MediaCodec.BufferInfo info, int index) {
+        // BufferInfo.set() is a stub that does nothing off the device.
+        info.offset = 0;
+        info.size = mOutputSizes[index];
+        info.presentationTimeUs = mOutputPtsUs[index];
+        info.flags = mOutputFlags[index];
+    }
+
+    /**
+     * Empties the pipeline and takes every buffer back.
+     */
+    private void reset() {
+        mFreeInputs.clear();
+        mFreeOutputs.clear();
+        mReadyOutputs.clear();
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mFreeInputs.add(i);
+            mFreeOutputs.add(i);
+        }
+        mPendingCount = 0;
+        mQueuedCount = 0;
+    }
+
+    /**
+     * Calls the callback like the codec's callback thread: announces input buffers as they
+     * become free and output buffers as they are produced.
+     */
+    private void runCallbacks() {
+        MediaCodec.Callback callback;
+        synchronized (this) {
+            callback = mCallback;
+        }
+        try {
+            while (true) {
+                int input = -1;
+                int output;
+                synchronized (this) {
+                    while (true) {
+                        if (mCallbackThread == null) {
+                            return;
+                        }
+                        output = produce();
+                        if (output >= 0) {
+                            setInfo(mCallbackInfo, output);
+                            break;
+                        }
+                        if (mStarted && !mFreeInputs.isEmpty()) {
+                            input = mFreeInputs.remove();
+                            break;
+                        }
+                        long waitNs = mPendingCount > 0 && !mFreeOutputs.isEmpty()
+                                ? mPendingReadyNs[mPendingHead] - System.nanoTime() : 0;
+                        if (waitNs > 0) {
+                            wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                        } else if (mPendingCount == 0 || mFreeOutputs.isEmpty() || !mStarted) {
+                            wait();
+                        }
+                    }
+                }
+                // Outside the lock, like the platform does.
+                if (output >= 0) {
+                    callback.onOutputBufferAvailable(mMediaCodec, output, mCallbackInfo);
+                } else {
+                    callback.onInputBufferAvailable(mMediaCodec, input);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mCallbackCpuTimeNs = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        }
+    }
+}
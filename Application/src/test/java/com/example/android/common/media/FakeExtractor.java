@@ -0,0 +1,57 @@
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+
+/**
+ * {@link MediaExtractor} over a single track of given sample times and flags, in decode order.
+ * Only walks the samples; there is no sample data.
+ */
+class FakeExtractor extends MediaExtractor {
+
+    private final long[] mTimesUs;
+    private final int[] mFlags;
+    private int mIndex;
+
+    FakeExtractor(long[] timesUs, int[] flags) {
+        mTimesUs = timesUs;
+        mFlags = flags;
+    }
+
+    /**
+     * @return an extractor over {@code sampleCount} samples of {@code sampleDurationUs} each,
+     * with a sync sample every {@code syncInterval}.
+     */
+    static FakeExtractor regular(int sampleCount, long sampleDurationUs, int syncInterval) {
+        long[] timesUs = new long[sampleCount];
+        int[] flags = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            timesUs[i] = i * sampleDurationUs;
+            flags[i] = i % syncInterval == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+        }
+        return new FakeExtractor(timesUs, flags);
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        // Only ever used to rewind.
+        mIndex = 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mIndex < mTimesUs.length) {
+            mIndex++;
+        }
+        return mIndex < mTimesUs.length;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mIndex < mTimesUs.length ? mTimesUs[mIndex] : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mIndex < mTimesUs.length ? mFlags[mIndex] : 0;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSource} of a synthetic track: {@code sampleCount} samples of a fixed size, one
+ * every {@code sampleDurationUs}, starting at zero, with every {@code syncInterval}th one a sync
+ * sample. Always ready. Remembers when each sample was read, for latencies.
+ */
+class FakeSampleSource implements SampleSource {
+
+    private final int mSampleCount;
+    private final int mSampleSize;
+    private final long mSampleDurationUs;
+    private final int mSyncInterval;
+    private final long[] mReadNs;
+
+    private volatile int mIndex;
+    private volatile int mSeekCount;
+    private volatile boolean mReleased;
+
+    FakeSampleSource(int sampleCount, int sampleSize, long sampleDurationUs, int syncInterval) {
+        mSampleCount = sampleCount;
+        mSampleSize = sampleSize;
+        mSampleDurationUs = sampleDurationUs;
+        mSyncInterval = syncInterval;
+        mReadNs = new long[sampleCount];
+    }
+
+    /**
+     * Starts over from the first sample.
+     */
+    void rewind() {
+        mIndex = 0;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the sample at {@code presentationTimeUs} was last
+     * read.
+     */
+    long getReadTimeNs(long presentationTimeUs) {
+        return mReadNs[(int) (presentationTimeUs / mSampleDurationUs)];
+    }
+
+    int getSeekCount() {
+        return mSeekCount;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public long getSampleTime() {
+        int index = mIndex;
+        return index < mSampleCount ? index * mSampleDurationUs : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mIndex % mSyncInterval == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int index = mIndex;
+        if (index >= mSampleCount) {
+            return -1;
+        }
+        mReadNs[index] = System.nanoTime();
+        buffer.clear();
+        buffer.position(offset + mSampleSize);
+        return mSampleSize;
+    }
+
+    @Override
+    public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+        return false;
+    }
+
+    @Override
+    public void advance() {
+        mIndex++;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        int index = (int) Math.min(mSampleCount, Math.max(0, timeUs / mSampleDurationUs));
+        int previous = index - index % mSyncInterval;
+        int next = index == previous ? index : Math.min(mSampleCount, previous + mSyncInterval);
+        switch (mode) {
+            case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                mIndex = next;
+                break;
+            case MediaExtractor.SEEK_TO_CLOSEST_SYNC:
+                mIndex = index - previous <= next - index ? previous : next;
+                break;
+            default:
+                mIndex = previous;
+                break;
+        }
+        mSeekCount++;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+}
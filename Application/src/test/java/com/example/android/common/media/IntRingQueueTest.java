@@ -0,0 +1,114 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IntRingQueueTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new IntRingQueue(0).capacity());
+        assertEquals(1, new IntRingQueue(1).capacity());
+        assertEquals(8, new IntRingQueue(5).capacity());
+        assertEquals(16, new IntRingQueue(16).capacity());
+    }
+
+    @Test
+    public void keepsOrderAcrossWraparound() {
+        IntRingQueue queue = new IntRingQueue(4);
+        int next = 0;
+        int expected = 0;
+        // Offset head and tail by varying amounts so every slot is the wrap point at least once.
+        for (int round = 0; round < 20; round++) {
+            int adds = 1 + round % 4;
+            for (int i = 0; i < adds && queue.size() < queue.capacity(); i++) {
+                queue.add(next++);
+            }
+            int removes = 1 + (round * 3) % 4;
+            for (int i = 0; i < removes && !queue.isEmpty(); i++) {
+                assertEquals(expected, queue.peek());
+                assertEquals(expected++, queue.remove());
+            }
+        }
+        while (!queue.isEmpty()) {
+            assertEquals(expected++, queue.remove());
+        }
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void rejectsAddWhenFull() {
+        IntRingQueue queue = new IntRingQueue(2);
+        queue.add(1);
+        queue.add(2);
+        try {
+            queue.add(3);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, queue.remove());
+        queue.add(3);
+        assertEquals(2, queue.remove());
+        assertEquals(3, queue.remove());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void removeFromEmptyThrows() {
+        new IntRingQueue(4).remove();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void peekAtEmptyThrows() {
+        new IntRingQueue(4).peek();
+    }
+
+    @Test
+    public void ensureCapacityKeepsWrappedElementsInOrder() {
+        IntRingQueue queue = new IntRingQueue(4);
+        queue.add(0);
+        queue.add(1);
+        queue.add(2);
+        queue.remove();
+        queue.remove();
+        // Head at slot 2, elements in slots 2, 3, 0, 1.
+        queue.add(3);
+        queue.add(4);
+        queue.add(5);
+        assertEquals(4, queue.size());
+
+        queue.ensureCapacity(6);
+        assertEquals(8, queue.capacity());
+        queue.add(6);
+        queue.add(7);
+        queue.add(8);
+        queue.add(9);
+        for (int i = 2; i <= 9; i++) {
+            assertEquals(i, queue.remove());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void ensureCapacityNeverShrinks() {
+        IntRingQueue queue = new IntRingQueue(16);
+        queue.ensureCapacity(4);
+        assertEquals(16, queue.capacity());
+    }
+
+    @Test
+    public void clearEmptiesQueue() {
+        IntRingQueue queue = new IntRingQueue(4);
+        queue.add(1);
+        queue.add(2);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        queue.add(3);
+        assertEquals(3, queue.remove());
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.android.common.media;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileDataSourceTest {
+
+    private static final int WINDOW_BYTES = 1024;
+
+    // Bytes the data source caches from a seek target on.
+    private static final int SEEK_RANGE_BYTES = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsAcrossWindows() throws IOException {
+        byte[] content = pattern(10 * WINDOW_BYTES + 100);
+        MappedFileDataSource source = open(write(content), 3, 0);
+        try {
+            assertEquals(content.length, source.getSize());
+            byte[] buffer = new byte[3 * WINDOW_BYTES];
+            assertEquals(buffer.length - 10, source.readAt(WINDOW_BYTES - 50, buffer, 10,
+                    buffer.length - 10));
+            assertRange(content, WINDOW_BYTES - 50, buffer, 10, buffer.length - 10);
+
+            // Short at the end, nothing past it.
+            assertEquals(100, source.readAt(10 * WINDOW_BYTES, buffer, 0, 1000));
+            assertRange(content, 10 * WINDOW_BYTES, buffer, 0, 100);
+            assertEquals(-1, source.readAt(content.length, buffer, 0, 10));
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void unmapsLeastRecentlyUsedWindow() throws IOException {
+        byte[] content = pattern(10 * WINDOW_BYTES);
+        MappedFileDataSource source = open(write(content), 3, 0);
+        try {
+            byte[] buffer = new byte[16];
+            source.readAt(0, buffer, 0, 16);
+            source.readAt(WINDOW_BYTES, buffer, 0, 16);
+            source.readAt(2 * WINDOW_BYTES, buffer, 0, 16);
+            source.readAt(0, buffer, 0, 16);
+            assertEquals(3, source.getMappedWindowCount());
+
+            source.readAt(5 * WINDOW_BYTES, buffer, 0, 16);
+            assertEquals(3, source.getMappedWindowCount());
+            assertTrue(source.isWindowMapped(0));
+            assertFalse(source.isWindowMapped(1));
+            assertTrue(source.isWindowMapped(2));
+            assertTrue(source.isWindowMapped(5));
+            assertRange(content, 5 * WINDOW_BYTES, buffer, 0, 16);
+
+            // Mapped again on demand.
+            source.readAt(WINDOW_BYTES + 8, buffer, 0, 16);
+            assertTrue(source.isWindowMapped(1));
+            assertFalse(source.isWindowMapped(2));
+            assertRange(content, WINDOW_BYTES + 8, buffer, 0, 16);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void pinsMovieBoxAfterLargeSizeBox() throws IOException {
+        // ftyp, an mdat with a 64-bit size, then the moov.
+        ByteBuffer file = ByteBuffer.allocate(16 + 16 + 5000 + 2000);
+        putBox(file, "ftyp", 16);
+        file.putInt(1).putInt(fourCc("mdat")).putLong(16 + 5000);
+        file.position(file.position() + 5000);
+        putBox(file, "moov", 2000);
+        byte[] content = fill(file);
+
+        MappedFileDataSource source = open(write(content), 4, 64 * 1024);
+        try {
+            assertEquals(2000, source.getCachedBytes());
+            byte[] buffer = new byte[100];
+            source.readAt(content.length - 1000, buffer, 0, 100);
+            assertEquals(1, source.getCacheHitCount());
+            assertRange(content, content.length - 1000, buffer, 0, 100);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void pinsMovieBoxRunningToEndOfFile() throws IOException {
+        // A box size of 0 means the box extends to the end of the file.
+        ByteBuffer file = ByteBuffer.allocate(16 + 3000);
+        putBox(file, "ftyp", 16);
+        file.putInt(0).putInt(fourCc("moov"));
+        byte[] content = fill(file);
+
+        MappedFileDataSource source = open(write(content), 4, 64 * 1024);
+        try {
+            assertEquals(3000, source.getCachedBytes());
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void skipsMovieBoxLargerThanCache() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(16 + 5000);
+        putBox(file, "ftyp", 16);
+        putBox(file, "moov", 5000);
+        MappedFileDataSource source = open(write(fill(file)), 4, 4000);
+        try {
+            assertEquals(0, source.getCachedBytes());
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Caches the range after every seek target, evicting the least recently used range when
+     * full but never the moov box.
+     */
+    @Test
+    public void evictsLeastRecentlyUsedSeekRange() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(8 * SEEK_RANGE_BYTES);
+        putBox(file, "moov", 1024);
+        file.putInt(0).putInt(fourCc("mdat"));
+        byte[] content = fill(file);
+        long a = SEEK_RANGE_BYTES;
+        long b = 3 * SEEK_RANGE_BYTES;
+        long c = 5 * SEEK_RANGE_BYTES;
+
+        MappedFileDataSource source = new MappedFileDataSource(write(content), 64 * 1024, 4, 0,
+                1024 + 2 * SEEK_RANGE_BYTES);
+        try {
+            byte[] buffer = new byte[100];
+            source.readAt(a, buffer, 0, 100);
+            source.readAt(b, buffer, 0, 100);
+            assertEquals(1024 + 2 * SEEK_RANGE_BYTES, source.getCachedBytes());
+            assertEquals(2, source.getCacheMissCount());
+
+            // Served from the cache, and the range starting at b is now the oldest.
+            source.readAt(a + 1000, buffer, 0, 100);
+            assertEquals(1, source.getCacheHitCount());
+            assertRange(content, a + 1000, buffer, 0, 100);
+
+            source.readAt(c, buffer, 0, 100);
+            assertEquals(3, source.getCacheMissCount());
+            assertEquals(1024 + 2 * SEEK_RANGE_BYTES, source.getCachedBytes());
+
+            source.readAt(b + 1000, buffer, 0, 100);
+            assertEquals(4, source.getCacheMissCount());
+            assertRange(content, b + 1000, buffer, 0, 100);
+            source.readAt(10, buffer, 0, 100);
+            assertEquals(2, source.getCacheHitCount());
+            assertRange(content, 10, buffer, 0, 100);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsReadsAfterClose() throws IOException {
+        MappedFileDataSource source = open(write(pattern(WINDOW_BYTES)), 2, 0);
+        source.close();
+        source.readAt(0, new byte[10], 0, 10);
+    }
+
+    private static MappedFileDataSource open(File file, int maxWindows, int cacheBytes)
+            throws IOException {
+        // No readahead: it runs on a looper thread.
+        return new MappedFileDataSource(file, WINDOW_BYTES, maxWindows, 0, cacheBytes);
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = mFolder.newFile();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return bytes that differ from their neighbours, so misplaced reads show.
+     */
+    private static byte[] pattern(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return content;
+    }
+
+    /**
+     * Fills the rest of {@code file} past its position with a pattern, leaving the boxes
+     * written so far in place.
+     */
+    private static byte[] fill(ByteBuffer file) {
+        byte[] content = pattern(file.capacity());
+        file.flip();
+        file.get(content, 0, file.limit());
+        return content;
+    }
+
+    /**
+     * Writes the header of a box of {@code size} bytes and skips its payload.
+     */
+    private static void putBox(ByteBuffer file, String type, int size) {
+        file.putInt(size).putInt(fourCc(type));
+        file.position(file.position() + size - 8);
+    }
+
+    private static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8
+                | type.charAt(3);
+    }
+
+    private static void assertRange(byte[] expected, long position, byte[] actual, int offset,
+            int size) {
+        for (int i = 0; i < size; i++) {
+            assertEquals("Byte " + (position + i), expected[(int) position + i],
+                    actual[offset + i]);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFileSinkTest {
+
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void wavHeaderCoversWrittenData() throws IOException {
+        File file = mFolder.newFile();
+        PcmFileSink sink = new PcmFileSink(file, true);
+        sink.write(ByteBuffer.allocateDirect(1000));
+        sink.write(ByteBuffer.allocate(24));
+        sink.release();
+        assertEquals(1024, sink.getDataBytes());
+        assertWav(file, 1024);
+    }
+
+    @Test
+    public void rawFileHasNoHeader() throws IOException {
+        File file = mFolder.newFile();
+        PcmFileSink sink = new PcmFileSink(file, false);
+        sink.write(ByteBuffer.allocate(100));
+        sink.release();
+        assertEquals(100, file.length());
+    }
+
+    @Test
+    public void releaseTwiceIsHarmless() throws IOException {
+        File file = mFolder.newFile();
+        PcmFileSink sink = new PcmFileSink(file, true);
+        sink.release();
+        sink.release();
+        assertWav(file, 0);
+    }
+
+    /**
+     * Stops a worker while its decoder keeps writing to the sink, at varying points of the
+     * write. The worker must come down without a write error and release the source, and the
+     * file must be a complete WAV file of what was written.
+     */
+    @Test
+    public void survivesStopDuringWrite() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            File file = mFolder.newFile();
+            PcmFileSink sink = new PcmFileSink(file, true);
+            WritingDecoder decoder = new WritingDecoder(sink);
+            FakeSource source = new FakeSource();
+            DecodeWorker worker = new DecodeWorker("Decode", decoder, source, null, true);
+            worker.start();
+            while (sink.getDataBytes() == 0) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(round % 3);
+            worker.stop();
+
+            assertFalse(worker.isEndOfStream());
+            assertNull(decoder.mWriteError);
+            assertTrue(decoder.mReleased);
+            assertTrue(source.mReleased);
+            assertWav(file, sink.getDataBytes());
+        }
+    }
+
+    private static void assertWav(File file, long dataBytes) throws IOException {
+        assertEquals(WAV_HEADER_SIZE + dataBytes, file.length());
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(header.array());
+        } finally {
+            in.close();
+        }
+        assertEquals("RIFF", tag(header, 0));
+        assertEquals(dataBytes + WAV_HEADER_SIZE - 8, header.getInt(4));
+        assertEquals("WAVE", tag(header, 8));
+        assertEquals("data", tag(header, 36));
+        assertEquals(dataBytes, header.getInt(40));
+    }
+
+    private static String tag(ByteBuffer header, int offset) {
+        return new String(header.array(), offset, 4);
+    }
+
+    /**
+     * Decoder that always has a decoded sample and writes it to a {@link PcmFileSink} on every
+     * drain, like an audio decoder that is never short of input.
+     */
+    private static class WritingDecoder implements SampleDecoder {
+
+        private final PcmFileSink mSink;
+        private final ByteBuffer mChunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        volatile RuntimeException mWriteError;
+        volatile boolean mReleased;
+
+        WritingDecoder(PcmFileSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public int drainReady(long clockUs) {
+            mChunk.clear();
+            try {
+                mSink.write(mChunk);
+            } catch (RuntimeException e) {
+                mWriteError = e;
+                throw e;
+            }
+            return 1;
+        }
+
+        @Override
+        public void stopAndRelease() {
+            mSink.release();
+            mReleased = true;
+        }
+
+        @Override
+        public boolean hasSample() {
+            return true;
+        }
+
+        @Override
+        public boolean writeSample(MediaExtractor extractor, boolean isSecure,
+                long presentationTimeUs, int flags) {
+            return false;
+        }
+
+        @Override
+        public int fillAvailable(SampleSource source) {
+            return 0;
+        }
+
+        @Override
+        public boolean isEndOfInputQueued() {
+            return false;
+        }
+
+        @Override
+        public boolean peekSample(MediaCodec.BufferInfo out_bufferInfo) {
+            return true;
+        }
+
+        @Override
+        public long peekPresentationTimeUs() {
+            return 0;
+        }
+
+        @Override
+        public int peekSize() {
+            return CHUNK_BYTES;
+        }
+
+        @Override
+        public int peekFlags() {
+            return 0;
+        }
+
+        @Override
+        public void popSample(boolean render) {
+        }
+
+        @Override
+        public void popSample(boolean render, long renderTimeNs) {
+        }
+
+        @Override
+        public int drainReady(long clockUs, OutputSink sink) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void awaitBuffers(long timeoutMs) throws InterruptedException {
+            Thread.sleep(timeoutMs);
+        }
+
+        @Override
+        public void wakeUp() {
+        }
+    }
+
+    private static class FakeSource implements SampleSource {
+
+        volatile boolean mReleased;
+
+        @Override
+        public boolean isReady() {
+            return false;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return 0;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            return -1;
+        }
+
+        @Override
+        public boolean getSampleCryptoInfo(MediaCodec.CryptoInfo info) {
+            return false;
+        }
+
+        @Override
+        public void advance() {
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package com.example.android.common.media;
+
+import android.hardware.Camera;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Micro-benchmarks of the pieces of the decode pipeline that don't need a device: the queues of
+ * codec buffer indices, the handoff of output buffers between the codec's callback thread and
+ * the decode thread, time stretching, the buffer pool, reading a file through mappings, the
+ * camera's video size selection, the decoder wrapper end to end over a {@link FakeCodec}, and
+ * seeks. Each is compared with the
+ * straightforward alternative where there is one, and reports time and allocated bytes per
+ * operation, or latency percentiles, on standard output.
+ *
+ * Skipped unless the {@code benchmark} system property is true, e.g. through
+ * {@code ./gradlew test -Pbenchmark --tests '*PipelineBenchmark'}. Every measurement is
+ * repeated after a warm-up and the median reported; compare numbers from the same machine
+ * only.
+ */
+public class PipelineBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 11;
+
+    // Buffer counts of a typical codec.
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int QUEUE_OPS = 1000000;
+
+    private static final int HANDOFF_CAPACITY = 64;
+    private static final int HANDOFF_ELEMENTS = 200000;
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+
+    // The synthetic track pushed through the decoder wrapper: 30 fps with a sync sample every
+    // second, and buffer sizes of a small video decoder.
+    private static final int PIPELINE_SAMPLES = 20000;
+    private static final int PIPELINE_BUFFERS = 8;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int OUTPUT_SIZE = 16384;
+    private static final long SAMPLE_DURATION_US = 33333;
+    private static final int SYNC_INTERVAL = 30;
+    private static final int VSYNC_HZ = 60;
+
+    // Frames decoded per round by a worker, and how long the fake codec takes for each.
+    private static final int WORKER_FRAMES = 300;
+    private static final long CODEC_LATENCY_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    // Sample buffers taken and given back per round, cycling through these sizes.
+    private static final int BUFFER_OPS = 20000;
+    private static final int[] BUFFER_SIZES = {SAMPLE_SIZE, OUTPUT_SIZE, 3000, 60000};
+
+    // A file scrubbed back and forth between a few spots, reading a run of samples after each
+    // seek like the extractor does.
+    private static final int FILE_BYTES = 64 * 1024 * 1024;
+    private static final int FILE_SEEK_SPOTS = 8;
+    private static final int FILE_READS_PER_SEEK = 16;
+    private static final int FILE_SEEKS = 2000;
+
+    // Camera size lists of a realistic length, and the view sizes of a device turned back and
+    // forth, each picked for per round.
+    private static final int CAMERA_SIZES = 60;
+    private static final int[][] VIEW_SIZES = {{1080, 1920}, {1920, 1080}, {720, 1280},
+            {1280, 720}};
+    private static final int SIZE_SELECTIONS = 20000;
+
+    // Seeks to random positions of the synthetic track, per seek mode.
+    private static final int WARMUP_SEEKS = 20;
+    private static final int SEEKS = 200;
+
+    /**
+     * One round of a benchmark.
+     */
+    private interface Round {
+        /**
+         * @return anything derived from the work, so it can't be optimized away.
+         */
+        long run() throws Exception;
+    }
+
+    // Collects the results of the rounds.
+    private long mSink;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void indexQueues() throws Exception {
+        final IntRingQueue ring = new IntRingQueue(QUEUE_CAPACITY);
+        measure("IntRingQueue add/remove", QUEUE_OPS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < QUEUE_OPS; i++) {
+                    ring.add(i & (QUEUE_CAPACITY - 1));
+                    if (ring.size() == QUEUE_CAPACITY) {
+                        while (!ring.isEmpty()) {
+                            sum += ring.remove();
+                        }
+                    }
+                }
+                return sum;
+            }
+        });
+        final ArrayDeque<Integer> deque = new ArrayDeque<Integer>(QUEUE_CAPACITY);
+        measure("ArrayDeque<Integer> add/remove", QUEUE_OPS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < QUEUE_OPS; i++) {
+                    // Beyond the Integer cache, like codec buffer indices aren't always.
+                    deque.addLast(1000 + (i & (QUEUE_CAPACITY - 1)));
+                    if (deque.size() == QUEUE_CAPACITY) {
+                        while (!deque.isEmpty()) {
+                            sum += deque.pollFirst();
+                        }
+                    }
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Hands elements stamped with {@link System#nanoTime()} from a producer to a consumer
+     * thread and reports the throughput and the percentiles of the time each element took,
+     * through the ring, the locked deque it replaced, and a blocking queue. Busy-waiting is only
+     * measured with a core for each side.
+     */
+    @Test
+    public void outputHandoff() throws Exception {
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            handoffRing(SpscRing.WAIT_SPIN, "SpscRing, spin");
+        }
+        handoffRing(SpscRing.WAIT_PARK, "SpscRing, park");
+        handoffLockedDeque();
+        handoffLockedQueue();
+    }
+
+    @Test
+    public void timeStretcher() throws Exception {
+        final int frames = SAMPLE_RATE;
+        final float[] input = new float[frames * CHANNELS];
+        for (int i = 0; i < frames; i++) {
+            float sample = (float) Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+            for (int c = 0; c < CHANNELS; c++) {
+                input[i * CHANNELS + c] = sample;
+            }
+        }
+        final float[] output = new float[4 * input.length];
+        for (final float speed : new float[] {0.5f, 1.5f, 2f}) {
+            final TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+            stretcher.setSpeed(speed);
+            long ns = measure("TimeStretcher, speed " + speed + ", per frame", frames,
+                    new Round() {
+                        @Override
+                        public long run() {
+                            stretcher.flush();
+                            FloatBuffer in = FloatBuffer.wrap(input);
+                            FloatBuffer out = FloatBuffer.wrap(output);
+                            while (in.hasRemaining()) {
+                                in.position(in.position()
+                                        + stretcher.queueInput(in.slice()) * CHANNELS);
+                                stretcher.getOutput(out);
+                            }
+                            stretcher.queueEndOfStream();
+                            while (stretcher.getOutputFrameCount() > 0) {
+                                stretcher.getOutput(out);
+                            }
+                            return out.position();
+                        }
+                    });
+            System.out.printf("  %.0fx real time on one core%n",
+                    1e9 / SAMPLE_RATE / ((double) ns / frames));
+        }
+    }
+
+    /**
+     * Takes sample buffers from a {@link ByteBufferPool} and gives them back, against allocating
+     * a direct buffer per sample, which is what the pool saves the pipeline from.
+     */
+    @Test
+    public void bufferPool() throws Exception {
+        final ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_POOLED_BYTES,
+                false);
+        measure("ByteBufferPool acquire/release", BUFFER_OPS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < BUFFER_OPS; i++) {
+                    ByteBuffer buffer = pool.acquire(BUFFER_SIZES[i % BUFFER_SIZES.length]);
+                    buffer.put(0, (byte) i);
+                    sum += buffer.capacity();
+                    pool.release(buffer);
+                }
+                return sum;
+            }
+        });
+        measure("ByteBuffer.allocateDirect", BUFFER_OPS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < BUFFER_OPS; i++) {
+                    ByteBuffer buffer =
+                            ByteBuffer.allocateDirect(BUFFER_SIZES[i % BUFFER_SIZES.length]);
+                    buffer.put(0, (byte) i);
+                    sum += buffer.capacity();
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Scrubs over a file through a {@link MappedFileDataSource}, and through positional reads
+     * of a {@link RandomAccessFile}, which is what the framework does for a path. Reports the
+     * time per seek with the sample reads that follow it. Both read from the page cache after
+     * the warm-up; the mapped source also serves the seek targets from its heap cache.
+     */
+    @Test
+    public void mappedDataSource() throws Exception {
+        File file = File.createTempFile("benchmark", ".mp4");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(FILE_BYTES);
+            } finally {
+                out.close();
+            }
+            final byte[] buffer = new byte[SAMPLE_SIZE];
+            final MappedFileDataSource mapped = new MappedFileDataSource(file,
+                    MappedFileDataSource.DEFAULT_WINDOW_BYTES,
+                    MappedFileDataSource.DEFAULT_MAX_WINDOWS, 0,
+                    MappedFileDataSource.DEFAULT_CACHE_BYTES);
+            try {
+                measure("MappedFileDataSource, per seek", FILE_SEEKS, new Round() {
+                    @Override
+                    public long run() throws IOException {
+                        long sum = 0;
+                        for (int i = 0; i < FILE_SEEKS; i++) {
+                            long position = getSeekTarget(i);
+                            for (int j = 0; j < FILE_READS_PER_SEEK; j++) {
+                                sum += mapped.readAt(position, buffer, 0, buffer.length);
+                                position += buffer.length;
+                            }
+                        }
+                        return sum;
+                    }
+                });
+            } finally {
+                mapped.close();
+            }
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                measure("RandomAccessFile positional reads, per seek", FILE_SEEKS, new Round() {
+                    @Override
+                    public long run() throws IOException {
+                        long sum = 0;
+                        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                        for (int i = 0; i < FILE_SEEKS; i++) {
+                            long position = getSeekTarget(i);
+                            for (int j = 0; j < FILE_READS_PER_SEEK; j++) {
+                                wrapped.clear();
+                                sum += in.getChannel().read(wrapped, position);
+                                position += buffer.length;
+                            }
+                        }
+                        return sum;
+                    }
+                });
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return the position of the {@code seek}th seek over the test file, going back and forth
+     * between a few spots.
+     */
+    private static long getSeekTarget(int seek) {
+        int spot = (seek * 5) % FILE_SEEK_SPOTS;
+        return (long) spot * (FILE_BYTES / FILE_SEEK_SPOTS) + 4096;
+    }
+
+    /**
+     * Picks the video size for a view through {@link CameraHelper#getOptimalVideoSize}, once
+     * searching the size lists every time and once through the overload that remembers the
+     * result per view size.
+     */
+    @Test
+    public void sizeSelection() throws Exception {
+        Random random = new Random(CAMERA_SIZES);
+        // Half the video sizes are preview sizes too.
+        final List<Camera.Size> previewSizes = cameraSizes(random);
+        final List<Camera.Size> videoSizes = cameraSizes(random);
+        for (int i = 0; i < CAMERA_SIZES; i += 2) {
+            videoSizes.set(i, previewSizes.get(i));
+        }
+        Collections.shuffle(videoSizes, random);
+        measure("CameraHelper.getOptimalVideoSize, search", SIZE_SELECTIONS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < SIZE_SELECTIONS; i++) {
+                    int[] view = VIEW_SIZES[i % VIEW_SIZES.length];
+                    sum += CameraHelper.getOptimalVideoSize(videoSizes, previewSizes, view[0],
+                            view[1]).width;
+                }
+                return sum;
+            }
+        });
+        measure("CameraHelper.getOptimalVideoSize, memoized", SIZE_SELECTIONS, new Round() {
+            @Override
+            public long run() {
+                long sum = 0;
+                for (int i = 0; i < SIZE_SELECTIONS; i++) {
+                    int[] view = VIEW_SIZES[i % VIEW_SIZES.length];
+                    sum += CameraHelper.getOptimalVideoSize(0, videoSizes, previewSizes,
+                            view[0], view[1]).width;
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * @return {@link #CAMERA_SIZES} random sizes between QCIF and 4K in steps of 16, landscape
+     * and portrait.
+     */
+    private static List<Camera.Size> cameraSizes(Random random) {
+        // Camera.Size is an inner class, and Camera has no public constructor.
+        Camera camera = mock(Camera.class);
+        List<Camera.Size> sizes = new ArrayList<Camera.Size>();
+        for (int i = 0; i < CAMERA_SIZES; i++) {
+            int width = 176 + 16 * random.nextInt(230);
+            int height = 144 + 16 * random.nextInt(130);
+            Camera.Size size = camera.new Size(width, height);
+            // The constructor of the Android stub jar doesn't set the fields.
+            size.width = i % 2 == 0 ? width : height;
+            size.height = i % 2 == 0 ? height : width;
+            sizes.add(size);
+        }
+        return sizes;
+    }
+
+    /**
+     * Pushes a synthetic track through a {@link DecoderWrapper} over a {@link FakeCodec} in
+     * polled mode, calling fillAvailable() and drainReady() on this thread like an unpaced
+     * {@link DecodeWorker} does. Reports the cost per sample and the latency from a sample being
+     * read to its output reaching the sink, which the fake codec adds nothing to.
+     */
+    @Test
+    public void decodePipeline() throws Exception {
+        FakeCodec codec = new FakeCodec(PIPELINE_BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        final FakeSampleSource source = new FakeSampleSource(PIPELINE_SAMPLES, SAMPLE_SIZE,
+                SAMPLE_DURATION_US, SYNC_INTERVAL);
+        final RecordingSink sink = new RecordingSink(codec, PIPELINE_SAMPLES);
+        final DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+        decoder.start();
+        measure("DecoderWrapper fillAvailable/drainReady, per sample", PIPELINE_SAMPLES,
+                new Round() {
+                    @Override
+                    public long run() {
+                        return decodeTrack(decoder, source, sink, true);
+                    }
+                });
+        decoder.stopAndRelease();
+
+        // The latencies of the last round.
+        long[] latencies = new long[PIPELINE_SAMPLES];
+        for (int i = 0; i < PIPELINE_SAMPLES; i++) {
+            latencies[i] = sink.mReceivedNs[i] - source.getReadTimeNs(sink.mPtsUs[i]);
+        }
+        printLatencies("  read to sink", latencies);
+    }
+
+    /**
+     * Decodes the synthetic track in ticks that drain everything decoded, as drainReady() does,
+     * and in ticks that pop a single buffer, as a render loop calling popSample() once per tick
+     * did, and reports the decoded buffers per second and per tick of both.
+     */
+    @Test
+    public void drainThroughput() throws Exception {
+        FakeCodec codec = new FakeCodec(PIPELINE_BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE, 0);
+        final FakeSampleSource source = new FakeSampleSource(PIPELINE_SAMPLES, SAMPLE_SIZE,
+                SAMPLE_DURATION_US, SYNC_INTERVAL);
+        final RecordingSink sink = new RecordingSink(codec, 0);
+        final DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+        decoder.start();
+        for (final boolean batch : new boolean[] {true, false}) {
+            final long[] ticks = new long[1];
+            long ns = measure(batch ? "drainReady() per tick, per buffer"
+                    : "popSample() per tick, per buffer", PIPELINE_SAMPLES, new Round() {
+                        @Override
+                        public long run() {
+                            ticks[0] = decodeTrack(decoder, source, sink, batch);
+                            return ticks[0];
+                        }
+                    });
+            double perTick = (double) PIPELINE_SAMPLES / ticks[0];
+            System.out.printf("  %.0f buffers per second unpaced, %.2f per tick, so %.0f per "
+                    + "second at one tick per vsync%n", PIPELINE_SAMPLES * 1e9 / ns, perTick,
+                    perTick * VSYNC_HZ);
+        }
+        decoder.stopAndRelease();
+    }
+
+    /**
+     * Decodes a track with a {@link DecodeWorker} over a {@link FakeCodec} that takes
+     * {@link #CODEC_LATENCY_NS} per buffer, once with the wrapper polling the codec and once
+     * with the codec calling back. Reports the CPU time per frame of the decode thread and the
+     * codec's callback thread together, and the wall time per frame.
+     */
+    @Test
+    public void polledVersusCallbackMode() throws Exception {
+        for (boolean async : new boolean[] {false, true}) {
+            long[] cpuNs = new long[ROUNDS];
+            long[] wallNs = new long[ROUNDS];
+            for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+                FakeCodec codec = new FakeCodec(PIPELINE_BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE,
+                        CODEC_LATENCY_NS);
+                RecordingSink sink = new RecordingSink(codec, 0);
+                DecoderWrapper decoder = new DecoderWrapper(codec, sink, async);
+                decoder.start();
+                DecodeWorker worker = new DecodeWorker("Decode", decoder,
+                        new FakeSampleSource(WORKER_FRAMES, SAMPLE_SIZE, SAMPLE_DURATION_US,
+                                SYNC_INTERVAL), null, true);
+                long startNs = System.nanoTime();
+                long startCpuNs = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+                // On this thread, for its CPU time; it releases the codec when done.
+                worker.run();
+                long endCpuNs = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+                if (round >= 0) {
+                    wallNs[round] = System.nanoTime() - startNs;
+                    cpuNs[round] = endCpuNs - startCpuNs + codec.getCallbackCpuTimeNs();
+                }
+                mSink += sink.mCount;
+            }
+            long cpu = cpuNs[medianIndex(cpuNs)];
+            long wall = wallNs[medianIndex(wallNs)];
+            System.out.printf("DecodeWorker, %s mode: %.1f us CPU, %.1f us wall time per "
+                            + "frame%n", async ? "callback" : "polled",
+                    cpu / 1000.0 / WORKER_FRAMES, wall / 1000.0 / WORKER_FRAMES);
+        }
+    }
+
+    /**
+     * Seeks a {@link DecodeWorker} paced by a clock over a {@link FakeCodec} that takes
+     * {@link #CODEC_LATENCY_NS} per buffer to random positions, resolved in fast and in accurate
+     * mode as {@link PlaybackEngine} does, and reports the percentiles of the time from seekTo()
+     * to the first frame presented after the seek. The wrapper polls the codec, as a flush in
+     * callback mode needs a looper, so decoded frames are noticed at the granularity of the
+     * worker's idle wait.
+     */
+    @Test
+    public void seekLatency() throws Exception {
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                FakeExtractor.regular(PIPELINE_SAMPLES, SAMPLE_DURATION_US, SYNC_INTERVAL));
+        for (int mode : new int[] {PlaybackEngine.SEEK_MODE_FAST,
+                PlaybackEngine.SEEK_MODE_ACCURATE}) {
+            FakeCodec codec = new FakeCodec(PIPELINE_BUFFERS, SAMPLE_SIZE, OUTPUT_SIZE,
+                    CODEC_LATENCY_NS);
+            SeekProbe probe = new SeekProbe();
+            DecoderWrapper decoder =
+                    new DecoderWrapper(codec, new RecordingSink(codec, 0, probe), false);
+            decoder.start();
+            ManualClock clock = new ManualClock();
+            DecodeWorker worker = new DecodeWorker("Decode", decoder, new FakeSampleSource(
+                    PIPELINE_SAMPLES, SAMPLE_SIZE, SAMPLE_DURATION_US, SYNC_INTERVAL), clock, true);
+            worker.start();
+
+            Random random = new Random(SEEKS);
+            long[] latencies = new long[SEEKS];
+            for (int i = -WARMUP_SEEKS; i < SEEKS; i++) {
+                long targetUs =
+                        random.nextInt(PIPELINE_SAMPLES - SYNC_INTERVAL) * SAMPLE_DURATION_US;
+                long positionUs = PlaybackEngine.getSeekPositionUs(index, targetUs, mode);
+                probe.arm();
+                long startNs = System.nanoTime();
+                // The clock first, so the worker doesn't wait on the old position.
+                clock.mTimeUs = positionUs;
+                worker.seekTo(positionUs);
+                long landedNs = probe.awaitLanding();
+                if (i >= 0) {
+                    latencies[i] = landedNs - startNs;
+                }
+            }
+            worker.stop();
+            printLatencies(mode == PlaybackEngine.SEEK_MODE_FAST ? "Seek, fast mode"
+                    : "Seek, accurate mode", latencies);
+        }
+    }
+
+    /**
+     * Decodes the whole of {@code source} from the start on this thread, like an unpaced
+     * {@link DecodeWorker}: every tick fills the free input buffers and then hands either
+     * everything decoded or a single buffer to the sink.
+     *
+     * @return the number of ticks it took.
+     */
+    private static long decodeTrack(DecoderWrapper decoder, FakeSampleSource source,
+            RecordingSink sink, boolean batch) {
+        decoder.flush();
+        source.rewind();
+        sink.reset();
+        long ticks = 0;
+        while (true) {
+            ticks++;
+            decoder.fillAvailable(source);
+            if (!decoder.hasSample()) {
+                continue;
+            }
+            if ((decoder.peekFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                decoder.popSample(false);
+                return ticks;
+            }
+            if (batch) {
+                decoder.drainReady(Long.MAX_VALUE);
+            } else {
+                decoder.popSample(true);
+            }
+        }
+    }
+
+    private void handoffRing(int waitStrategy, String name) throws Exception {
+        final SpscRing ring = new SpscRing(HANDOFF_CAPACITY, waitStrategy);
+        final long[] latencies = new long[HANDOFF_ELEMENTS];
+        Runnable producer = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                    ring.put(i, 0, 0, 0, 0, System.nanoTime());
+                }
+            }
+        };
+        Round consumer = new Round() {
+            @Override
+            public long run() throws InterruptedException {
+                for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                    while (ring.isEmpty()) {
+                        ring.await(ring.getProducedCount(), TimeUnit.MILLISECONDS.toNanos(1));
+                    }
+                    latencies[i] = System.nanoTime() - ring.peekTimestamp();
+                    ring.remove();
+                }
+                return ring.getProducedCount();
+            }
+        };
+        handoff(name, producer, consumer, latencies);
+    }
+
+    /**
+     * The handoff the ring replaced: buffer indices in an {@link ArrayDeque} and their
+     * {@link MediaCodec.BufferInfo} in an array by index, both guarded by a lock the consumer
+     * waits on.
+     */
+    private void handoffLockedDeque() throws Exception {
+        final Object lock = new Object();
+        final ArrayDeque<Integer> indices = new ArrayDeque<Integer>(HANDOFF_CAPACITY);
+        final MediaCodec.BufferInfo[] infos = new MediaCodec.BufferInfo[HANDOFF_CAPACITY];
+        for (int i = 0; i < HANDOFF_CAPACITY; i++) {
+            infos[i] = new MediaCodec.BufferInfo();
+        }
+        final long[] latencies = new long[HANDOFF_ELEMENTS];
+        Runnable producer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                        synchronized (lock) {
+                            // The codec has no more buffers than the queue holds.
+                            while (indices.size() == HANDOFF_CAPACITY) {
+                                lock.wait();
+                            }
+                            int index = i & (HANDOFF_CAPACITY - 1);
+                            infos[index].presentationTimeUs = System.nanoTime();
+                            indices.addLast(index);
+                            lock.notifyAll();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Round consumer = new Round() {
+            @Override
+            public long run() throws InterruptedException {
+                for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                    synchronized (lock) {
+                        while (indices.isEmpty()) {
+                            lock.wait();
+                        }
+                        int index = indices.pollFirst();
+                        latencies[i] = System.nanoTime() - infos[index].presentationTimeUs;
+                        lock.notifyAll();
+                    }
+                }
+                return latencies[0];
+            }
+        };
+        handoff("ArrayDeque<Integer> + lock", producer, consumer, latencies);
+    }
+
+    private void handoffLockedQueue() throws Exception {
+        final BlockingQueue<Long> queue = new ArrayBlockingQueue<Long>(HANDOFF_CAPACITY);
+        final long[] latencies = new long[HANDOFF_ELEMENTS];
+        Runnable producer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                        queue.put(System.nanoTime());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Round consumer = new Round() {
+            @Override
+            public long run() throws InterruptedException {
+                for (int i = 0; i < HANDOFF_ELEMENTS; i++) {
+                    latencies[i] = System.nanoTime() - queue.take();
+                }
+                return latencies[0];
+            }
+        };
+        handoff("ArrayBlockingQueue<Long>", producer, consumer, latencies);
+    }
+
+    /**
+     * Runs {@code producer} on a thread of its own against {@code consumer} on this one, which
+     * fills {@code latencies}, and reports the latencies of the median round.
+     */
+    private void handoff(String name, final Runnable producer, final Round consumer,
+            long[] latencies) throws Exception {
+        long[] roundNs = new long[ROUNDS];
+        long[][] roundLatencies = new long[ROUNDS][];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            Thread thread = new Thread(producer, "Producer");
+            long startNs = System.nanoTime();
+            thread.start();
+            mSink += consumer.run();
+            thread.join();
+            if (round >= 0) {
+                roundNs[round] = System.nanoTime() - startNs;
+                roundLatencies[round] = latencies.clone();
+            }
+        }
+        int median = medianIndex(roundNs);
+        System.out.printf("%s: %.1f ns per element%n", name,
+                (double) roundNs[median] / HANDOFF_ELEMENTS);
+        printLatencies("  latency", roundLatencies[median]);
+    }
+
+    /**
+     * Clock that stands still wherever it was put.
+     */
+    private static class ManualClock implements MediaClock {
+        volatile long mTimeUs;
+
+        @Override
+        public long getTimeUs() {
+            return mTimeUs;
+        }
+    }
+
+    /**
+     * Notes when the first frame is presented after the decoder was flushed for a seek.
+     */
+    private static class SeekProbe implements OutputSink {
+        private boolean mFlushed;
+        private long mLandedNs;
+
+        synchronized void arm() {
+            mFlushed = false;
+            mLandedNs = 0;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} at which the first frame after the seek arrived.
+         */
+        synchronized long awaitLanding() throws InterruptedException {
+            while (mLandedNs == 0) {
+                wait();
+            }
+            return mLandedNs;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public synchronized void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+                MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+            if (render && mFlushed && mLandedNs == 0) {
+                mLandedNs = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            mFlushed = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Reports the percentiles of {@code latencies}, in nanoseconds, which get sorted.
+     */
+    private static void printLatencies(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("%s: p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns%n", name,
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1]);
+    }
+
+    /**
+     * Runs {@code round} repeatedly and reports the median time and the allocated bytes per
+     * operation.
+     *
+     * @return the median time of a round in nanoseconds.
+     */
+    private long measure(String name, int ops, Round round) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            mSink += round.run();
+        }
+        long[] roundNs = new long[ROUNDS];
+        long allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            long startNs = System.nanoTime();
+            mSink += round.run();
+            roundNs[i] = System.nanoTime() - startNs;
+        }
+        long allocated = getAllocatedBytes() - allocatedBefore;
+        long ns = roundNs[medianIndex(roundNs)];
+        System.out.printf("%s: %.2f ns, %.2f bytes allocated per operation%n", name,
+                (double) ns / ops, allocatedBefore < 0 ? Double.NaN
+                        : (double) allocated / ROUNDS / ops);
+        return ns;
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM doesn't tell.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static int medianIndex(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        long median = sorted[sorted.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == median) {
+                return i;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(fraction * sorted.length))];
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void recordsPercentilesPerStage() {
+        PipelineMetrics metrics = new PipelineMetrics("video");
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(PipelineMetrics.STAGE_DECODE, i * 1000000L);
+        }
+        PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.getCount(PipelineMetrics.STAGE_DECODE));
+        assertEquals(50500, snapshot.getMeanUs(PipelineMetrics.STAGE_DECODE));
+        assertEquals(100000, snapshot.getMaxUs(PipelineMetrics.STAGE_DECODE));
+        // Upper bounds at the power-of-two resolution of the buckets.
+        assertEquals(65536, snapshot.getPercentileUs(PipelineMetrics.STAGE_DECODE, 50));
+        assertEquals(100000, snapshot.getPercentileUs(PipelineMetrics.STAGE_DECODE, 99));
+        assertEquals(0, snapshot.getCount(PipelineMetrics.STAGE_RENDER));
+    }
+
+    @Test
+    public void timeToFirstSampleNeedsStartAndFirstSample() {
+        PipelineMetrics metrics = new PipelineMetrics("video");
+        assertEquals(-1, metrics.snapshot().getTimeToFirstSampleUs());
+        metrics.markStart();
+        assertEquals(-1, metrics.snapshot().getTimeToFirstSampleUs());
+        metrics.markFirstSample();
+        long timeToFirstSampleUs = metrics.snapshot().getTimeToFirstSampleUs();
+        assertTrue(timeToFirstSampleUs >= 0);
+        // Only the first sample counts.
+        metrics.markFirstSample();
+        assertEquals(timeToFirstSampleUs, metrics.snapshot().getTimeToFirstSampleUs());
+    }
+
+    /**
+     * Starts with a new and with a pooled decoder are kept apart, so the report compares them.
+     */
+    @Test
+    public void reportsTimeToFirstFrameByCodecSource() {
+        PipelineMetrics metrics = new PipelineMetrics("startup");
+        metrics.record(PipelineMetrics.STAGE_FIRST_FRAME_NEW_CODEC, 120000000L);
+        metrics.record(PipelineMetrics.STAGE_FIRST_FRAME_NEW_CODEC, 140000000L);
+        metrics.record(PipelineMetrics.STAGE_FIRST_FRAME_POOLED_CODEC, 60000000L);
+
+        PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getCount(PipelineMetrics.STAGE_FIRST_FRAME_NEW_CODEC));
+        assertEquals(130000, snapshot.getMeanUs(PipelineMetrics.STAGE_FIRST_FRAME_NEW_CODEC));
+        assertEquals(1, snapshot.getCount(PipelineMetrics.STAGE_FIRST_FRAME_POOLED_CODEC));
+        assertEquals(60000, snapshot.getMeanUs(PipelineMetrics.STAGE_FIRST_FRAME_POOLED_CODEC));
+        String report = snapshot.toString();
+        assertTrue(report, report.contains("first frame, new codec n=2 mean=130000us"));
+        assertTrue(report, report.contains("first frame, pooled codec n=1 mean=60000us"));
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.android.common.media;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaFormat;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Plays playlists of synthetic items through {@link FakeCodec}s into an audio track that plays
+ * in real time, with a single thread standing in for the control thread.
+ */
+public class PlaylistEngineTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_SIZE = 2 * CHANNELS;
+
+    private static final int BUFFERS = 4;
+    private static final int SAMPLE_SIZE = 400;
+    // 1024 frames of 16-bit stereo PCM per decoded buffer, about 23 ms.
+    private static final int AUDIO_FRAMES = 1024;
+    private static final int AUDIO_OUTPUT_SIZE = AUDIO_FRAMES * FRAME_SIZE;
+    private static final int VIDEO_OUTPUT_SIZE = 16;
+    private static final long VIDEO_SAMPLE_DURATION_US = 33333;
+
+    // What the fake track holds before writes block, like a real one sized to the latency.
+    private static final int TRACK_CAPACITY_FRAMES = 4 * AUDIO_FRAMES;
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private ScheduledExecutorService mControlThread;
+    private Handler mControlHandler;
+    private Handler mListenerHandler;
+
+    private final Map<String, Media> mMedia = new HashMap<String, Media>();
+
+    @Before
+    public void setUp() {
+        mControlThread = Executors.newSingleThreadScheduledExecutor();
+        mControlHandler = mock(Handler.class);
+        when(mControlHandler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                mControlThread.execute((Runnable) invocation.getArgument(0));
+                return true;
+            }
+        });
+        when(mControlHandler.postDelayed(any(Runnable.class), anyLong())).thenAnswer(
+                new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        mControlThread.schedule((Runnable) invocation.getArgument(0),
+                                (Long) invocation.getArgument(1), TimeUnit.MILLISECONDS);
+                        return true;
+                    }
+                });
+        // Runs the listener callbacks right away, on the control thread.
+        mListenerHandler = mock(Handler.class);
+        when(mListenerHandler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArgument(0)).run();
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mControlThread.shutdownNow();
+    }
+
+    /**
+     * The pre-rolled audio of the next item continues on the same track right after the
+     * current item's, well within what the track holds, so playback never runs dry.
+     */
+    @Test
+    public void handsAudioOverWithoutGap() throws Exception {
+        addMedia("a", 8, SAMPLE_RATE, 0);
+        addMedia("b", 8, SAMPLE_RATE, 0);
+        addMedia("c", 8, SAMPLE_RATE, 0);
+        TimedTrackSink audioSink = new TimedTrackSink();
+        TestEngine engine = new TestEngine(Arrays.asList("a", "b", "c"), audioSink);
+        RecordingListener listener = play(engine);
+
+        assertEquals(Arrays.asList(0, 1, 2), listener.mStarted);
+        assertEquals(1, audioSink.mTracks.size());
+        assertEquals(24L * AUDIO_FRAMES, audioSink.mTracks.get(0).mWrittenFrames);
+        PipelineMetrics.Snapshot snapshot = engine.getAudioMetrics().snapshot();
+        assertEquals(2, snapshot.getCount(PipelineMetrics.STAGE_ITEM_GAP));
+        long trackCapacityUs = TRACK_CAPACITY_FRAMES * 1000000L / SAMPLE_RATE;
+        assertTrue("Gap of " + snapshot.getMaxUs(PipelineMetrics.STAGE_ITEM_GAP) + " us",
+                snapshot.getMaxUs(PipelineMetrics.STAGE_ITEM_GAP) < trackCapacityUs);
+        engine.release();
+        assertReleased("a", "b", "c");
+    }
+
+    /**
+     * The video of an item plays out after its audio has handed over to the next item, and
+     * the next item's video follows.
+     */
+    @Test
+    public void playsVideoOfEveryItem() throws Exception {
+        addMedia("a", 6, SAMPLE_RATE, 6);
+        addMedia("b", 6, SAMPLE_RATE, 6);
+        TestEngine engine = new TestEngine(Arrays.asList("a", "b"), new TimedTrackSink());
+        RecordingListener listener = play(engine);
+
+        assertEquals(Arrays.asList(0, 1), listener.mStarted);
+        for (String path : Arrays.asList("a", "b")) {
+            RecordingSink video = engine.mVideoSinks.get(mMedia.get(path).mVideoFormat);
+            assertTrue(path + ": " + video.mCount + " frames", video.mCount >= 6);
+            assertEquals(5 * VIDEO_SAMPLE_DURATION_US, video.mPtsUs[5]);
+        }
+        engine.release();
+        assertReleased("a", "b");
+    }
+
+    /**
+     * When the next item's audio needs a track in another format, the video still finishing
+     * carries on at the pace of its audio instead of dropping all of its remaining frames.
+     */
+    @Test
+    public void videoOutlivesReplacedAudioTrack() throws Exception {
+        addMedia("a", 4, SAMPLE_RATE, 8);
+        addMedia("b", 8, 48000, 0);
+        TimedTrackSink audioSink = new TimedTrackSink();
+        TestEngine engine = new TestEngine(Arrays.asList("a", "b"), audioSink);
+        play(engine);
+
+        assertEquals(2, audioSink.mTracks.size());
+        RecordingSink video = engine.mVideoSinks.get(mMedia.get("a").mVideoFormat);
+        String frames = Arrays.toString(Arrays.copyOf(video.mRendered, video.mCount));
+        assertEquals(frames, 7 * VIDEO_SAMPLE_DURATION_US, video.mPtsUs[7]);
+        assertTrue("Last frame dropped: " + frames, video.mRendered[7]);
+        engine.release();
+        assertReleased("a", "b");
+    }
+
+    @Test
+    public void seeksOnTheControlThread() throws Exception {
+        addMedia("a", 200, SAMPLE_RATE, 100);
+        TestEngine engine = new TestEngine(Collections.singletonList("a"),
+                new TimedTrackSink());
+        engine.start();
+        engine.seekTo(2000000);
+        final CountDownLatch seekDone = new CountDownLatch(1);
+        mControlThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                seekDone.countDown();
+            }
+        });
+        assertTrue(seekDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        Media media = mMedia.get("a");
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (media.mAudioSource.getSeekCount() == 0 || media.mVideoSource.getSeekCount() == 0) {
+            assertTrue("Seek not carried out", System.currentTimeMillis() < deadlineMs);
+            Thread.sleep(10);
+        }
+        engine.release();
+        assertReleased("a");
+    }
+
+    private RecordingListener play(PlaylistEngine engine) throws Exception {
+        RecordingListener listener = new RecordingListener();
+        engine.setListener(listener, mListenerHandler);
+        engine.start();
+        assertTrue("Playlist not completed",
+                listener.mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return listener;
+    }
+
+    private void addMedia(String path, int audioBuffers, int sampleRate, int videoFrames) {
+        mMedia.put(path, new Media(audioBuffers, sampleRate, videoFrames));
+    }
+
+    private void assertReleased(String... paths) {
+        for (String path : paths) {
+            Media media = mMedia.get(path);
+            assertTrue(path + " audio", media.mAudioSource.isReleased());
+            if (media.mVideoSource != null) {
+                assertTrue(path + " video", media.mVideoSource.isReleased());
+            }
+        }
+    }
+
+    /**
+     * The tracks of an item: audio buffers of {@link #AUDIO_FRAMES} at a sample rate, and
+     * optionally video frames at 30 fps.
+     */
+    private static class Media {
+        final int mAudioBuffers;
+        final int mVideoFrames;
+        final MediaFormat mAudioFormat;
+        final MediaFormat mVideoFormat;
+        volatile FakeSampleSource mAudioSource;
+        volatile FakeSampleSource mVideoSource;
+
+        Media(int audioBuffers, int sampleRate, int videoFrames) {
+            mAudioBuffers = audioBuffers;
+            mVideoFrames = videoFrames;
+            mAudioFormat = mock(MediaFormat.class);
+            when(mAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)).thenReturn(sampleRate);
+            when(mAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)).thenReturn(CHANNELS);
+            when(mAudioFormat.containsKey(anyString())).thenReturn(false);
+            mVideoFormat = videoFrames > 0 ? mock(MediaFormat.class) : null;
+        }
+    }
+
+    /**
+     * Opens the items from {@link #mMedia}, decoding them with fake codecs.
+     */
+    private class TestEngine extends PlaylistEngine {
+        final Map<MediaFormat, RecordingSink> mVideoSinks =
+                Collections.synchronizedMap(new HashMap<MediaFormat, RecordingSink>());
+
+        TestEngine(List<String> paths, AudioTrackSink audioSink) {
+            super(paths, null, audioSink, mControlHandler);
+        }
+
+        @Override
+        Tracks openTracks(String path) {
+            Media media = mMedia.get(path);
+            Tracks tracks = new Tracks();
+            // No duration: the next item is opened right away.
+            tracks.audioFormat = media.mAudioFormat;
+            media.mAudioSource = new FakeSampleSource(media.mAudioBuffers, SAMPLE_SIZE,
+                    AUDIO_FRAMES * 1000000L / SAMPLE_RATE, 1);
+            tracks.audioSource = media.mAudioSource;
+            if (media.mVideoFormat != null) {
+                tracks.videoFormat = media.mVideoFormat;
+                media.mVideoSource = new FakeSampleSource(media.mVideoFrames, SAMPLE_SIZE,
+                        VIDEO_SAMPLE_DURATION_US, 1);
+                tracks.videoSource = media.mVideoSource;
+            }
+            return tracks;
+        }
+
+        @Override
+        SampleDecoder createAudioDecoder(MediaFormat format, OutputSink sink) {
+            FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, AUDIO_OUTPUT_SIZE, 0);
+            DecoderWrapper decoder = new DecoderWrapper(codec,
+                    new RecordingSink(codec, 0, sink), false);
+            decoder.configure(format, null);
+            decoder.start();
+            // What the codec reports before its first buffer.
+            sink.onOutputFormatChanged(format);
+            return decoder;
+        }
+
+        @Override
+        SampleDecoder createVideoDecoder(MediaFormat format) {
+            FakeCodec codec = new FakeCodec(BUFFERS, SAMPLE_SIZE, VIDEO_OUTPUT_SIZE, 0);
+            RecordingSink sink = new RecordingSink(codec, 1000);
+            mVideoSinks.put(format, sink);
+            DecoderWrapper decoder = new DecoderWrapper(codec, sink, false);
+            decoder.configure(format, null);
+            decoder.start();
+            return decoder;
+        }
+    }
+
+    /**
+     * Plays into {@link TimedTrack}s.
+     */
+    private static class TimedTrackSink extends AudioTrackSink {
+        final List<TimedTrack> mTracks = Collections.synchronizedList(new ArrayList<TimedTrack>());
+
+        @Override
+        AudioTrack createAudioTrack(int sampleRate, int channelMask, int encoding,
+                int frameSizeInBytes) {
+            TimedTrack track = new TimedTrack(sampleRate, channelMask, encoding);
+            mTracks.add(track);
+            return track;
+        }
+    }
+
+    /**
+     * Track that plays what is written to it in real time, without an audio device: it holds
+     * {@link #TRACK_CAPACITY_FRAMES}, and writes block while it is full.
+     */
+    private static class TimedTrack extends AudioTrack {
+        private final int mSampleRate;
+        volatile long mWrittenFrames;
+        private long mPlayedFrames;
+        // System.nanoTime() up to which mPlayedFrames is brought.
+        private long mPlayedNs;
+
+        TimedTrack(int sampleRate, int channelMask, int encoding) {
+            super(AudioManager.STREAM_MUSIC, sampleRate, channelMask, encoding,
+                    TRACK_CAPACITY_FRAMES * FRAME_SIZE, AudioTrack.MODE_STREAM);
+            mSampleRate = sampleRate;
+        }
+
+        @Override
+        public int write(byte[] audioData, int offsetInBytes, int sizeInBytes) {
+            queue(sizeInBytes / FRAME_SIZE);
+            return sizeInBytes;
+        }
+
+        @Override
+        public int write(ByteBuffer audioData, int sizeInBytes, int writeMode) {
+            audioData.position(audioData.position() + sizeInBytes);
+            queue(sizeInBytes / FRAME_SIZE);
+            return sizeInBytes;
+        }
+
+        @Override
+        public synchronized int getPlaybackHeadPosition() {
+            update();
+            return (int) mPlayedFrames;
+        }
+
+        private synchronized void queue(long frames) {
+            update();
+            while (mWrittenFrames + frames - mPlayedFrames > TRACK_CAPACITY_FRAMES) {
+                long excess = mWrittenFrames + frames - mPlayedFrames - TRACK_CAPACITY_FRAMES;
+                try {
+                    wait(excess * 1000 / mSampleRate + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                update();
+            }
+            mWrittenFrames += frames;
+        }
+
+        /**
+         * Plays what was written since the last call, as far as the time passed allows.
+         */
+        private void update() {
+            long nowNs = System.nanoTime();
+            if (mPlayedNs != 0) {
+                long frames = (nowNs - mPlayedNs) * mSampleRate / 1000000000L;
+                mPlayedFrames = Math.min(mWrittenFrames, mPlayedFrames + frames);
+                // Keep the remainder, unless the track ran dry.
+                mPlayedNs = mPlayedFrames == mWrittenFrames ? nowNs
+                        : mPlayedNs + frames * 1000000000L / mSampleRate;
+            } else {
+                mPlayedNs = nowNs;
+            }
+        }
+    }
+
+    private static class RecordingListener implements PlaylistEngine.Listener {
+        final List<Integer> mStarted = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch mCompleted = new CountDownLatch(1);
+
+        @Override
+        public void onItemStarted(PlaylistEngine sender, int index) {
+            mStarted.add(index);
+        }
+
+        @Override
+        public void onPlaylistCompleted(PlaylistEngine sender) {
+            mCompleted.countDown();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputSink} for a {@link FakeCodec}: records the metadata of every buffer it is handed,
+ * up to its capacity, and gives the buffer back to the codec. Optionally passes every call on to
+ * another sink first. Doesn't allocate.
+ */
+class RecordingSink implements OutputSink {
+
+    private final FakeCodec mCodec;
+    private final OutputSink mDelegate;
+
+    final long[] mPtsUs;
+    final int[] mFlags;
+    final int[] mSizes;
+    final boolean[] mRendered;
+    // System.nanoTime() when each buffer arrived.
+    final long[] mReceivedNs;
+
+    volatile int mCount;
+    volatile int mFlushCount;
+    volatile boolean mReleased;
+
+    RecordingSink(FakeCodec codec, int capacity) {
+        this(codec, capacity, null);
+    }
+
+    RecordingSink(FakeCodec codec, int capacity, OutputSink delegate) {
+        mCodec = codec;
+        mDelegate = delegate;
+        mPtsUs = new long[capacity];
+        mFlags = new int[capacity];
+        mSizes = new int[capacity];
+        mRendered = new boolean[capacity];
+        mReceivedNs = new long[capacity];
+    }
+
+    /**
+     * Forgets the buffers recorded so far.
+     */
+    void reset() {
+        mCount = 0;
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        if (mDelegate != null) {
+            mDelegate.onOutputFormatChanged(format);
+        }
+    }
+
+    @Override
+    public void onOutputBuffer(MediaCodec codec, int index, ByteBuffer buffer,
+            MediaCodec.BufferInfo info, boolean render, long renderTimeNs) {
+        if (mDelegate != null) {
+            mDelegate.onOutputBuffer(codec, index, buffer, info, render, renderTimeNs);
+        }
+        int count = mCount;
+        if (count < mPtsUs.length) {
+            mPtsUs[count] = info.presentationTimeUs;
+            mFlags[count] = info.flags;
+            mSizes[count] = buffer != null ? buffer.remaining() : info.size;
+            mRendered[count] = render;
+            mReceivedNs[count] = System.nanoTime();
+        }
+        mCount = count + 1;
+        mCodec.releaseOutputBuffer(index);
+    }
+
+    @Override
+    public void flush() {
+        mFlushCount++;
+        if (mDelegate != null) {
+            mDelegate.flush();
+        }
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        if (mDelegate != null) {
+            mDelegate.release();
+        }
+    }
+}
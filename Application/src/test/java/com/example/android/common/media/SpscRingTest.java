@@ -0,0 +1,207 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SpscRingTest {
+
+    private static final int STRESS_ELEMENTS = 200000;
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new SpscRing(1, SpscRing.WAIT_SPIN).capacity());
+        assertEquals(64, new SpscRing(33, SpscRing.WAIT_SPIN).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownWaitStrategy() {
+        new SpscRing(4, 3);
+    }
+
+    @Test
+    public void offerFailsWhenFullAndSucceedsAfterRemove() {
+        SpscRing ring = new SpscRing(4, SpscRing.WAIT_SPIN);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i, 0, 0, 0, 0, 0));
+        }
+        assertFalse(ring.offer(4, 0, 0, 0, 0, 0));
+        assertEquals(4, ring.size());
+        ring.remove();
+        assertTrue(ring.offer(4, 0, 0, 0, 0, 0));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, ring.peekIndex());
+            ring.remove();
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void keepsEverySlotField() {
+        SpscRing ring = new SpscRing(2, SpscRing.WAIT_SPIN);
+        ring.offer(7, 16, 4096, 123456789L, 4, 987654321L);
+        assertEquals(7, ring.peekIndex());
+        assertEquals(16, ring.peekOffset());
+        assertEquals(4096, ring.peekSize());
+        assertEquals(123456789L, ring.peekPresentationTimeUs());
+        assertEquals(4, ring.peekFlags());
+        assertEquals(987654321L, ring.peekTimestamp());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void peekAtEmptyThrows() {
+        new SpscRing(2, SpscRing.WAIT_SPIN).peekIndex();
+    }
+
+    @Test
+    public void discardToKeepsLaterElements() {
+        SpscRing ring = new SpscRing(8, SpscRing.WAIT_SPIN);
+        for (int i = 0; i < 5; i++) {
+            ring.offer(i, 0, 0, 0, 0, 0);
+        }
+        ring.remove();
+        ring.discardTo(3);
+        assertEquals(3, ring.peekIndex());
+        // Not behind the head: nothing changes.
+        ring.discardTo(1);
+        assertEquals(3, ring.peekIndex());
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertEquals(5, ring.getProducedCount());
+    }
+
+    @Test
+    public void awaitReturnsOnSignalAndTimesOut() throws InterruptedException {
+        SpscRing ring = new SpscRing(2, SpscRing.WAIT_PARK);
+        assertFalse(ring.await(0, TimeUnit.MILLISECONDS.toNanos(5)));
+        ring.signal();
+        assertTrue(ring.await(0, TimeUnit.SECONDS.toNanos(5)));
+        // The signal is consumed.
+        assertFalse(ring.await(0, TimeUnit.MILLISECONDS.toNanos(5)));
+    }
+
+    @Test
+    public void spinStrategyKeepsOrderUnderContention() throws Exception {
+        // A busy-waiting side only makes way for the other at the end of its time slice.
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        stress(SpscRing.WAIT_SPIN);
+    }
+
+    @Test
+    public void yieldStrategyKeepsOrderUnderContention() throws Exception {
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        stress(SpscRing.WAIT_YIELD);
+    }
+
+    @Test
+    public void parkStrategyKeepsOrderUnderContention() throws Exception {
+        stress(SpscRing.WAIT_PARK);
+    }
+
+    /**
+     * What the producer writes to plain memory before putting an element, like the codec
+     * filling an output buffer, is what the consumer reads after peeking it, and the consumer
+     * is done with a slot's memory before the producer reuses it.
+     */
+    @Test
+    public void publishesWritesMadeBeforePut() throws Exception {
+        final SpscRing ring = new SpscRing(4, SpscRing.WAIT_PARK);
+        // Not volatile: only the ring orders the accesses. Twice the capacity, as a payload is
+        // written before the put that waits for room: by then the previous put has only seen
+        // the elements up to a ring earlier removed, and the slot was last used two rings
+        // earlier.
+        final long[] payloads = new long[2 * ring.capacity()];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < STRESS_ELEMENTS; i++) {
+                    int slot = i & (payloads.length - 1);
+                    if (payloads[slot] != 0) {
+                        failure.compareAndSet(null,
+                                new AssertionError("Slot " + slot + " reused before it was read"));
+                        return;
+                    }
+                    payloads[slot] = i + 1;
+                    ring.put(slot, 0, 0, 0, 0, 0);
+                }
+            }
+        }, "Producer");
+        producer.start();
+        try {
+            for (int i = 0; i < STRESS_ELEMENTS && failure.get() == null; i++) {
+                while (ring.isEmpty() && producer.isAlive()) {
+                    ring.await(ring.getProducedCount(), TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                int slot = ring.peekIndex();
+                assertEquals(i + 1, payloads[slot]);
+                payloads[slot] = 0;
+                ring.remove();
+            }
+        } finally {
+            producer.join(TimeUnit.SECONDS.toMillis(60));
+        }
+        assertNull(failure.get());
+        assertEquals(STRESS_ELEMENTS, ring.getProducedCount());
+    }
+
+    /**
+     * Pushes many elements from a producer thread through a small ring to a consumer
+     * thread, which checks that they arrive in order, complete, and never more of them than the
+     * ring holds.
+     */
+    private static void stress(int waitStrategy) throws Exception {
+        final SpscRing ring = new SpscRing(8, waitStrategy);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < STRESS_ELEMENTS; i++) {
+                    // Every field derived from the element, so a torn slot shows.
+                    ring.put(i, i + 1, i + 2, i * 3L, i & 7, ~(long) i);
+                }
+            }
+        }, "Producer");
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < STRESS_ELEMENTS; i++) {
+                        while (ring.isEmpty()) {
+                            ring.await(ring.getProducedCount(), TimeUnit.MILLISECONDS.toNanos(1));
+                        }
+                        int size = ring.size();
+                        if (size > ring.capacity()) {
+                            throw new AssertionError("Size " + size + " above capacity");
+                        }
+                        assertEquals(i, ring.peekIndex());
+                        assertEquals(i + 1, ring.peekOffset());
+                        assertEquals(i + 2, ring.peekSize());
+                        assertEquals(i * 3L, ring.peekPresentationTimeUs());
+                        assertEquals(i & 7, ring.peekFlags());
+                        assertEquals(~(long) i, ring.peekTimestamp());
+                        ring.remove();
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        }, "Consumer");
+        consumer.start();
+        producer.start();
+        producer.join(TimeUnit.SECONDS.toMillis(60));
+        consumer.join(TimeUnit.SECONDS.toMillis(60));
+        assertFalse("Stress test timed out", producer.isAlive() || consumer.isAlive());
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+        assertEquals(STRESS_ELEMENTS, ring.getProducedCount());
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncPolicyTest {
+
+    private static final long FRAME_US = 33333;
+
+    @Test
+    public void waitsUntilFrameEntersRenderAheadWindow() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 10);
+        assertEquals(SyncPolicy.ACTION_WAIT, policy.decide(100000, 0));
+        assertEquals(70000, policy.getWaitUs(100000, 0));
+        assertEquals(SyncPolicy.ACTION_WAIT, policy.decide(100000, 69999));
+        assertEquals(SyncPolicy.ACTION_RENDER, policy.decide(100000, 70000));
+        assertEquals(0, policy.getWaitUs(100000, 70000));
+    }
+
+    @Test
+    public void renderTimeIsDueTimeOnNanoTimeline() {
+        SyncPolicy policy = new SyncPolicy();
+        long nowNs = 5000000000L;
+        assertEquals(nowNs + 20000000L, policy.getRenderTimeNs(120000, 100000, nowNs));
+        // Late frames go out right away.
+        assertEquals(nowNs, policy.getRenderTimeNs(100000, 120000, nowNs));
+    }
+
+    @Test
+    public void lateFrameWithinThresholdIsRenderedAndCounted() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 10);
+        assertEquals(SyncPolicy.ACTION_RENDER, policy.decide(100000, 100000));
+        assertEquals(0, policy.getLateFrameCount());
+        assertEquals(SyncPolicy.ACTION_RENDER, policy.decide(100000, 140000));
+        assertEquals(1, policy.getLateFrameCount());
+        assertEquals(0, policy.getDroppedFrameCount());
+    }
+
+    @Test
+    public void speedScalesWaitAndRenderTimeButNotDecisions() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 10);
+        policy.setSpeed(2);
+        assertEquals(35000, policy.getWaitUs(100000, 0));
+        assertEquals(10000000L, policy.getRenderTimeNs(120000, 100000, 0));
+        assertEquals(SyncPolicy.ACTION_WAIT, policy.decide(100000, 0));
+        assertEquals(SyncPolicy.ACTION_RENDER, policy.decide(100000, 70000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSpeed() {
+        new SyncPolicy().setSpeed(0);
+    }
+
+    /**
+     * Plays a second of 30 fps video against a simulated clock with a decoder that keeps up:
+     * every frame is released once, ahead of time, with a render time on its due time.
+     */
+    @Test
+    public void simulatedPlaybackRendersEveryFrameOnTime() {
+        SyncPolicy policy = new SyncPolicy();
+        long startNs = 1000000000L;
+        long clockUs = 0;
+        int rendered = 0;
+        for (int frame = 0; frame < 30; frame++) {
+            long ptsUs = frame * FRAME_US;
+            int action;
+            while ((action = policy.decide(ptsUs, clockUs)) == SyncPolicy.ACTION_WAIT) {
+                long waitUs = policy.getWaitUs(ptsUs, clockUs);
+                clockUs += Math.max(waitUs, 1);
+            }
+            assertEquals(SyncPolicy.ACTION_RENDER, action);
+            long nowNs = startNs + clockUs * 1000;
+            assertEquals(startNs + ptsUs * 1000, policy.getRenderTimeNs(ptsUs, clockUs, nowNs));
+            rendered++;
+            // Decoding the next frame takes a third of a frame.
+            clockUs += FRAME_US / 3;
+        }
+        assertEquals(30, rendered);
+        assertEquals(0, policy.getDroppedFrameCount());
+        assertEquals(0, policy.getLateFrameCount());
+    }
+
+    @Test
+    public void frameBeyondDropThresholdIsDropped() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 10);
+        assertEquals(SyncPolicy.ACTION_DROP, policy.decide(100000, 140001));
+        assertEquals(1, policy.getDroppedFrameCount());
+        assertEquals(0, policy.getLateFrameCount());
+    }
+
+    @Test
+    public void asksToSkipAfterRunOfDrops() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 3);
+        long clockUs = 1000000;
+        policy.decide(0, clockUs);
+        policy.decide(FRAME_US, clockUs);
+        assertFalse(policy.shouldSkipToKeyFrame());
+        policy.decide(2 * FRAME_US, clockUs);
+        assertTrue(policy.shouldSkipToKeyFrame());
+
+        policy.onSkippedToKeyFrame();
+        assertFalse(policy.shouldSkipToKeyFrame());
+        assertEquals(1, policy.getKeyFrameSkipCount());
+        assertEquals(3, policy.getDroppedFrameCount());
+    }
+
+    @Test
+    public void renderedFrameEndsRunOfDrops() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 3);
+        policy.decide(0, 1000000);
+        policy.decide(FRAME_US, 1000000);
+        assertEquals(SyncPolicy.ACTION_RENDER, policy.decide(1000000, 1000000));
+        policy.decide(0, 1000000);
+        policy.decide(FRAME_US, 1000000);
+        assertFalse(policy.shouldSkipToKeyFrame());
+        assertEquals(4, policy.getDroppedFrameCount());
+    }
+
+    @Test
+    public void resetForgetsRunButKeepsCounters() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 2);
+        policy.decide(0, 1000000);
+        policy.decide(FRAME_US, 1000000);
+        assertTrue(policy.shouldSkipToKeyFrame());
+        policy.reset();
+        assertFalse(policy.shouldSkipToKeyFrame());
+        assertEquals(2, policy.getDroppedFrameCount());
+    }
+
+    /**
+     * Plays 30 fps video with a decoder that needs twice the frame time per frame and a sync
+     * sample every 30 frames. Once it has fallen behind, late frames are dropped and decoding
+     * skips ahead to the next sync sample, after which playback is back on time.
+     */
+    @Test
+    public void simulatedSlowDecoderDropsAndSkipsToCatchUp() {
+        SyncPolicy policy = new SyncPolicy(30000, 40000, 5);
+        int gop = 30;
+        long clockUs = 0;
+        int frame = 0;
+        int rendered = 0;
+        boolean recovered = false;
+        while (frame < 300) {
+            long ptsUs = frame * FRAME_US;
+            int action;
+            while ((action = policy.decide(ptsUs, clockUs)) == SyncPolicy.ACTION_WAIT) {
+                clockUs += Math.max(policy.getWaitUs(ptsUs, clockUs), 1);
+            }
+            if (action == SyncPolicy.ACTION_RENDER) {
+                rendered++;
+                if (policy.getKeyFrameSkipCount() > 0 && frame % gop == 0) {
+                    recovered = true;
+                }
+            }
+            // The first second decodes in time, afterwards every frame takes two frame times.
+            clockUs += frame < gop ? FRAME_US / 3 : 2 * FRAME_US;
+            frame++;
+            if (policy.shouldSkipToKeyFrame()) {
+                // The skipped samples are never decoded.
+                frame = (frame / gop + 1) * gop;
+                policy.onSkippedToKeyFrame();
+            }
+        }
+        assertTrue(policy.getDroppedFrameCount() > 0);
+        assertTrue(policy.getKeyFrameSkipCount() > 0);
+        assertTrue(recovered);
+        assertTrue(rendered > gop);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncSampleIndexTest {
+
+    private static final long SAMPLE_DURATION_US = 10000;
+    private static final int SYNC_INTERVAL = 30;
+
+    @Test
+    public void findsSyncSampleAtOrBefore() {
+        // More sync samples than the initial capacity of the scan.
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                FakeExtractor.regular(100 * SYNC_INTERVAL, SAMPLE_DURATION_US, SYNC_INTERVAL));
+        assertEquals(100, index.size());
+        long gopUs = SYNC_INTERVAL * SAMPLE_DURATION_US;
+        assertEquals(0, index.getSyncTimeAtOrBefore(0));
+        assertEquals(0, index.getSyncTimeAtOrBefore(gopUs - 1));
+        assertEquals(gopUs, index.getSyncTimeAtOrBefore(gopUs));
+        assertEquals(5 * gopUs, index.getSyncTimeAtOrBefore(5 * gopUs + 7 * SAMPLE_DURATION_US));
+        assertEquals(99 * gopUs, index.getSyncTimeAtOrBefore(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void sortsSyncSamplesIntoPresentationOrder() {
+        // A track whose first sync sample isn't at 0, with sync samples out of presentation
+        // order, as reordered frames can be.
+        long[] timesUs = {5000, 40000, 20000, 30000, 10000};
+        int[] flags = {MediaExtractor.SAMPLE_FLAG_SYNC, MediaExtractor.SAMPLE_FLAG_SYNC, 0, 0,
+                MediaExtractor.SAMPLE_FLAG_SYNC};
+        SyncSampleIndex index = SyncSampleIndex.scan(new FakeExtractor(timesUs, flags));
+        assertEquals(3, index.size());
+        assertEquals(5000, index.getSyncTimeAtOrBefore(0));
+        assertEquals(10000, index.getSyncTimeAtOrBefore(39999));
+        assertEquals(40000, index.getSyncTimeAtOrBefore(40000));
+    }
+
+    @Test
+    public void trackWithoutSyncSamplesSeeksToTarget() {
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                new FakeExtractor(new long[] {0, 10000}, new int[] {0, 0}));
+        assertEquals(0, index.size());
+        assertEquals(12345, index.getSyncTimeAtOrBefore(12345));
+    }
+
+    @Test
+    public void interruptedScanReturnsNull() {
+        Thread.currentThread().interrupt();
+        assertNull(SyncSampleIndex.scan(
+                FakeExtractor.regular(10, SAMPLE_DURATION_US, SYNC_INTERVAL)));
+    }
+
+    @Test
+    public void fastSeekResumesFromSyncSample() {
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                FakeExtractor.regular(10 * SYNC_INTERVAL, SAMPLE_DURATION_US, SYNC_INTERVAL));
+        long targetUs = 3 * SYNC_INTERVAL * SAMPLE_DURATION_US + 12 * SAMPLE_DURATION_US;
+        assertEquals(3 * SYNC_INTERVAL * SAMPLE_DURATION_US, PlaybackEngine.getSeekPositionUs(
+                index, targetUs, PlaybackEngine.SEEK_MODE_FAST));
+    }
+
+    @Test
+    public void accurateSeekResumesFromTarget() {
+        SyncSampleIndex index = SyncSampleIndex.scan(
+                FakeExtractor.regular(10 * SYNC_INTERVAL, SAMPLE_DURATION_US, SYNC_INTERVAL));
+        long targetUs = 3 * SYNC_INTERVAL * SAMPLE_DURATION_US + 12 * SAMPLE_DURATION_US;
+        assertEquals(targetUs, PlaybackEngine.getSeekPositionUs(
+                index, targetUs, PlaybackEngine.SEEK_MODE_ACCURATE));
+    }
+
+    @Test
+    public void fastSeekBeforeIndexIsReadyIsAccurate() {
+        assertEquals(12345, PlaybackEngine.getSeekPositionUs(
+                null, 12345, PlaybackEngine.SEEK_MODE_FAST));
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final double FREQUENCY = 440;
+    private static final double AMPLITUDE = 0.5;
+    private static final float[] SPEEDS = {0.5f, 0.75f, 1f, 1.5f, 2f};
+
+    // Largest difference of two neighbouring samples of the sine.
+    private static final double SINE_STEP = AMPLITUDE * 2 * Math.PI * FREQUENCY / SAMPLE_RATE;
+
+    // Output may be off by up to a sequence plus its search window, as the last sequence
+    // doesn't start at its nominal position: 80 ms.
+    private static final int LENGTH_TOLERANCE = SAMPLE_RATE * 80 / 1000;
+
+    // Input is queued in pieces of this many frames, which don't line up with the sequences.
+    private static final int CHUNK_FRAMES = 777;
+
+    @Test
+    public void outputLengthIsInputLengthOverSpeed() {
+        int frames = 2 * SAMPLE_RATE;
+        for (float speed : SPEEDS) {
+            float[] output = stretch(sine(frames, 2), 2, speed);
+            int expected = Math.round(frames / speed);
+            int actual = output.length / 2;
+            assertTrue("speed " + speed + ": " + actual + " frames instead of " + expected,
+                    Math.abs(actual - expected) <= LENGTH_TOLERANCE);
+        }
+    }
+
+    /**
+     * Stretches a sine and checks that no two neighbouring output samples are further apart
+     * than the sine ever is, so the sequences are spliced in phase. The tail after the end of
+     * stream skips or repeats single frames, which may double the step.
+     */
+    @Test
+    public void sineHasNoDiscontinuities() {
+        for (float speed : SPEEDS) {
+            float[] output = stretch(sine(2 * SAMPLE_RATE, 2), 2, speed);
+            double maxStep = 0;
+            for (int i = 2; i < output.length; i++) {
+                maxStep = Math.max(maxStep, Math.abs(output[i] - output[i - 2]));
+            }
+            assertTrue("speed " + speed + ": step of " + maxStep,
+                    maxStep <= 2.1 * SINE_STEP);
+        }
+    }
+
+    @Test
+    public void stretches16BitPcm() {
+        int frames = 2 * SAMPLE_RATE;
+        float[] sine = sine(frames, 1);
+        short[] input = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            input[i] = (short) Math.round(sine[i] * 32767);
+        }
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        stretcher.setSpeed(1.5f);
+        ShortBuffer in = ShortBuffer.wrap(input);
+        ShortBuffer out = ShortBuffer.allocate(frames);
+        while (in.hasRemaining()) {
+            ShortBuffer chunk = in.duplicate();
+            chunk.limit(Math.min(in.limit(), in.position() + CHUNK_FRAMES));
+            in.position(in.position() + stretcher.queueInput(chunk));
+            stretcher.getOutput(out);
+        }
+        stretcher.queueEndOfStream();
+        while (stretcher.getOutputFrameCount() > 0) {
+            stretcher.getOutput(out);
+        }
+
+        int expected = Math.round(frames / 1.5f);
+        assertTrue(Math.abs(out.position() - expected) <= LENGTH_TOLERANCE);
+        int maxStep = 0;
+        for (int i = 1; i < out.position(); i++) {
+            maxStep = Math.max(maxStep, Math.abs(out.get(i) - out.get(i - 1)));
+        }
+        assertTrue("step of " + maxStep, maxStep <= 2.1 * SINE_STEP * 32768);
+    }
+
+    @Test
+    public void flushDropsInputAndOutput() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.queueInput(FloatBuffer.wrap(sine(SAMPLE_RATE / 2, 2)));
+        assertTrue(stretcher.getOutputFrameCount() > 0);
+        stretcher.flush();
+        assertEquals(0, stretcher.getOutputFrameCount());
+        stretcher.queueEndOfStream();
+        assertEquals(0, stretcher.getOutputFrameCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSpeedOutOfRange() {
+        new TimeStretcher(SAMPLE_RATE, 2).setSpeed(TimeStretcher.MAX_SPEED * 2);
+    }
+
+    /**
+     * @return {@code frames} frames of the sine, the same on every channel.
+     */
+    private static float[] sine(int frames, int channels) {
+        float[] pcm = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float sample = (float) (AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * i
+                    / SAMPLE_RATE));
+            for (int c = 0; c < channels; c++) {
+                pcm[i * channels + c] = sample;
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Queues {@code input} piece by piece while reading the output, then ends the stream.
+     *
+     * @return the complete output.
+     */
+    private static float[] stretch(float[] input, int channels, float speed) {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, channels);
+        stretcher.setSpeed(speed);
+        FloatBuffer in = FloatBuffer.wrap(input);
+        FloatBuffer out = FloatBuffer.allocate((int) (input.length / speed) + input.length);
+        while (in.hasRemaining()) {
+            FloatBuffer chunk = in.duplicate();
+            chunk.limit(Math.min(in.limit(), in.position() + CHUNK_FRAMES * channels));
+            in.position(in.position() + stretcher.queueInput(chunk) * channels);
+            stretcher.getOutput(out);
+        }
+        stretcher.queueEndOfStream();
+        while (stretcher.getOutputFrameCount() > 0) {
+            stretcher.getOutput(out);
+        }
+        float[] output = new float[out.position()];
+        out.flip();
+        out.get(output);
+        return output;
+    }
+}